@@ -0,0 +1,88 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * Automatic gain control that brings speech towards a target level, so distant or quiet talkers
+ * are recognized as well as close ones.
+ *
+ * <p>The level is measured per block and only on blocks loud enough to be speech, so the gain
+ * does not rise during pauses and pump up the background noise. Gain falls quickly when speech
+ * gets louder and rises slowly, and changes are ramped across each block to avoid clicks.
+ */
+public class AgcStage implements CaptureStage {
+    // Blocks quieter than -50 dBFS are not speech and do not move the level estimate.
+    private static final float SPEECH_GATE = 0.0032f * Short.MAX_VALUE;
+    private static final float ATTACK = 0.5f;
+    private static final float RELEASE = 0.05f;
+
+    private final float mTarget;
+    private final float mMaxGain;
+    private float mLevel;
+    private float mGain = 1f;
+
+    /**
+     * @param targetDbfs The RMS level to bring speech to, in dB relative to full scale, for
+     *     example -20.
+     * @param maxGainDb The most the audio may be amplified, for example 20.
+     */
+    public AgcStage(float targetDbfs, float maxGainDb) {
+        mTarget = (float) Math.pow(10, targetDbfs / 20) * Short.MAX_VALUE;
+        mMaxGain = (float) Math.pow(10, maxGainDb / 20);
+    }
+
+    @Override
+    public void process(short[] samples, int length) {
+        if (length == 0) {
+            return;
+        }
+        float sumSquares = 0;
+        for (int i = 0; i < length; i++) {
+            sumSquares += (float) samples[i] * samples[i];
+        }
+        float rms = (float) Math.sqrt(sumSquares / length);
+        float targetGain = mGain;
+        if (rms >= SPEECH_GATE) {
+            mLevel = mLevel == 0 ? rms
+                    : mLevel + (rms > mLevel ? ATTACK : RELEASE) * (rms - mLevel);
+            targetGain = Math.max(1f / mMaxGain, Math.min(mMaxGain, mTarget / mLevel));
+        }
+        float gain = mGain;
+        float step = (targetGain - gain) / length;
+        for (int i = 0; i < length; i++) {
+            gain += step;
+            samples[i] = clip(samples[i] * gain);
+        }
+        mGain = targetGain;
+    }
+
+    @Override
+    public void reset() {
+        mLevel = 0;
+        mGain = 1f;
+    }
+
+    private static short clip(float sample) {
+        if (sample > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        }
+        if (sample < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) sample;
+    }
+}
@@ -0,0 +1,865 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.google.assistant.embedded.v1alpha2.AssistRequest;
+import com.google.assistant.embedded.v1alpha2.AssistResponse;
+import com.google.assistant.embedded.v1alpha2.SpeechRecognitionResult;
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * A single {@code assist} call whose requests respect gRPC flow control.
+ *
+ * <p>Requests are written only while the transport reports it is ready. While the uplink is
+ * stalled, audio is held in a bounded queue and the {@link EmbeddedAssistant.DropPolicy} decides
+ * which audio to discard when it fills. All methods except the response callbacks must be called
+ * on the thread of the handler passed to the constructor.
+ *
+ * <p>Responses are handed to the response executor, so the transport thread never runs
+ * application code or blocks.
+ *
+ * <p>The call may be attempted on several endpoints of an {@link EndpointPool}. Requests written
+ * so far are kept, so a call that fails with a retryable status before the Assistant starts
+ * answering with audio is retried with the same config, preferably on another endpoint. The
+ * kept audio is sent as fast as flow control allows, then live audio follows. A call can also be
+ * hedged: if no
+ * response has arrived after a delay, a second attempt is started on another endpoint and the
+ * first one to respond is kept while the others are cancelled.
+ *
+ * <p>A spoken call can also race several languages: one attempt per language, each with its own
+ * config and the same audio. Their responses are held until every attempt has reached the end
+ * of the utterance, or shortly after the first one did. The attempt whose recognition is most
+ * stable is then kept and the others are cancelled.
+ */
+class AssistStream {
+    private static final String TAG = AssistStream.class.getSimpleName();
+    // Audio chunks with a peak below -40 dBFS are considered silent.
+    private static final int SILENCE_PEAK = 328;
+    // Requests kept for another attempt; a longer call can no longer fail over.
+    private static final int MAX_REPLAY_BYTES = 1024 * 1024;
+    private static final int MAX_RETRIES = 2;
+    // How long to wait for the other languages after the first end of the utterance.
+    private static final long LANGUAGE_DECISION_MS = 300;
+
+    private final StreamObserver<AssistResponse> mResponseObserver;
+    private final Executor mResponseExecutor;
+    private final Handler mHandler;
+    private final int mCapacity;
+    private final int mDropPolicy;
+    private final UploadStats mStats;
+    private final NetworkQuality.Call mQuality;
+    private final AssistantMetrics mMetrics;
+    private final ConversationRecorder mRecorder;
+    private ConversationRecorder.Trace mTrace;
+
+    // Request side, only accessed on the handler thread.
+    private final ArrayDeque<AssistRequest> mPending = new ArrayDeque<>();
+    private final List<AssistRequest> mWritten = new ArrayList<>();
+    private int mWrittenCount;
+    private int mWrittenBytes;
+    private boolean mReplayable = true;
+    private boolean mHalfClosed;
+    private boolean mUploadCompleted;
+    private volatile boolean mCancelled;
+    private long mStallStartMs;
+    private boolean mAudioCompressed;
+    private EndpointPool mPool;
+    private final Set<AssistantEndpoint> mTried = new HashSet<>();
+    private volatile Attempt mActive;
+    private long mHedgeDelayMs;
+    private int mRetries;
+
+    // Response side, guarded by mLock.
+    private final Object mLock = new Object();
+    private final List<Attempt> mAttempts = new ArrayList<>();
+    private Attempt mWinner;
+    private boolean mAudioOutReceived;
+    private boolean mEndOfUtteranceReceived;
+    private boolean mFinished;
+    // Whether attempts in several languages race until one is chosen.
+    private boolean mRacing;
+    private long mFirstEndOfUtteranceMs;
+    // The language of the shared config, set before racing starts.
+    private volatile String mLanguageCode = "";
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private final Runnable mHedge = new Runnable() {
+        @Override
+        public void run() {
+            hedge();
+        }
+    };
+
+    private final Runnable mChooseLanguage = new Runnable() {
+        @Override
+        public void run() {
+            chooseLanguage(true);
+        }
+    };
+
+    /**
+     * @param responseObserver Receives the responses of this call.
+     * @param responseExecutor Serial executor the response observer is called on.
+     * @param handler Handler of the thread that sends requests.
+     * @param capacity Maximum number of audio requests held while the uplink is stalled.
+     * @param dropPolicy How to make room when the queue is full.
+     * @param stats Upload statistics to update.
+     * @param quality Link measurements of this call.
+     * @param metrics Metrics to record.
+     * @param recorder Records the frames of this call, or null.
+     */
+    AssistStream(StreamObserver<AssistResponse> responseObserver, Executor responseExecutor,
+            Handler handler, int capacity, @EmbeddedAssistant.DropPolicy int dropPolicy,
+            UploadStats stats, NetworkQuality.Call quality, AssistantMetrics metrics,
+            @Nullable ConversationRecorder recorder) {
+        mResponseObserver = responseObserver;
+        mResponseExecutor = responseExecutor;
+        mHandler = handler;
+        mCapacity = capacity;
+        mDropPolicy = dropPolicy;
+        mStats = stats;
+        mQuality = quality;
+        mMetrics = metrics;
+        mRecorder = recorder;
+    }
+
+    /**
+     * Starts the call on the best endpoint of the pool.
+     *
+     * @param pool The endpoints the call may use.
+     * @param hedgeDelayMs Time without a response after which another endpoint is tried in
+     * parallel, or 0 to never hedge.
+     */
+    AssistStream start(EndpointPool pool, long hedgeDelayMs) {
+        mPool = pool;
+        mHedgeDelayMs = hedgeDelayMs;
+        if (mRecorder != null) {
+            mTrace = mRecorder.startTrace();
+        }
+        startAttempt(false);
+        if (hedgeDelayMs > 0 && pool.getEndpoints().size() > 1) {
+            mHandler.postDelayed(mHedge, hedgeDelayMs);
+        }
+        return this;
+    }
+
+    /**
+     * Races the call in other languages. Must be called right after {@link #start}, before the
+     * config is sent.
+     *
+     * @param languageCode The language of the config sent with {@link #send}.
+     * @param configs For each other language, the config request to send instead of the one
+     *     sent with {@link #send}. The rest of the requests are shared.
+     */
+    void race(String languageCode, List<AssistRequest> configs) {
+        if (configs.isEmpty()) {
+            return;
+        }
+        mLanguageCode = languageCode;
+        synchronized (mLock) {
+            mRacing = true;
+        }
+        for (AssistRequest config : configs) {
+            // The best endpoint serves every language.
+            startAttempt(mPool.choose(Collections.<AssistantEndpoint>emptySet()), config);
+        }
+    }
+
+    /**
+     * Sets whether audio chunks are compressed. Compressed chunks cannot be checked for silence,
+     * so the oldest is dropped when the queue is full.
+     */
+    void setAudioCompressed(boolean compressed) {
+        mAudioCompressed = compressed;
+    }
+
+    /**
+     * Sends a request that must not be dropped, such as the config.
+     */
+    void send(AssistRequest request) {
+        enqueue(request);
+    }
+
+    /**
+     * Sends a chunk of audio, which may be dropped if the uplink is stalled.
+     */
+    void sendAudio(ByteString audio) {
+        if (mPending.size() >= mCapacity) {
+            makeRoom();
+        }
+        enqueue(AssistRequest.newBuilder().setAudioIn(audio).build());
+    }
+
+    /**
+     * Completes the request side once any queued requests have been written.
+     */
+    void halfClose() {
+        mHalfClosed = true;
+        drain();
+    }
+
+    /**
+     * Cancels the call and discards queued requests.
+     */
+    void cancel(String message) {
+        if (mCancelled) {
+            return;
+        }
+        mCancelled = true;
+        // Nothing more is delivered, not even the cancellation error.
+        finish();
+        mStats.onDequeued(mPending.size());
+        mPending.clear();
+        mWritten.clear();
+        endStall();
+        mHandler.removeCallbacks(mHedge);
+        for (Attempt attempt : liveAttempts()) {
+            attempt.cancel(message);
+        }
+    }
+
+    /**
+     * Starts an attempt on the best endpoint not tried yet. Returns null if none is left.
+     */
+    private Attempt startAttempt(boolean hedged) {
+        AssistantEndpoint endpoint = mPool.choose(mTried);
+        return endpoint == null ? null : startAttempt(endpoint, hedged, 0);
+    }
+
+    /**
+     * @param retryStartMs When the attempt this one retries failed, or 0 if it is not a retry.
+     */
+    private Attempt startAttempt(AssistantEndpoint endpoint, boolean hedged, long retryStartMs) {
+        return startAttempt(new Attempt(endpoint, hedged, retryStartMs, null));
+    }
+
+    private Attempt startAttempt(AssistantEndpoint endpoint, AssistRequest config) {
+        return startAttempt(new Attempt(endpoint, false, 0, config));
+    }
+
+    private Attempt startAttempt(Attempt attempt) {
+        AssistantEndpoint endpoint = attempt.mEndpoint;
+        mTried.add(endpoint);
+        endpoint.onCallStarted();
+        synchronized (mLock) {
+            mAttempts.add(attempt);
+        }
+        mActive = attempt;
+        endpoint.getStub().assist(attempt);
+        drain();
+        return attempt;
+    }
+
+    private void hedge() {
+        synchronized (mLock) {
+            if (mWinner != null || mFinished) {
+                return;
+            }
+        }
+        if (mCancelled || !mReplayable) {
+            return;
+        }
+        Attempt hedge = startAttempt(true);
+        if (hedge != null) {
+            mMetrics.hedges.increment();
+            Log.i(TAG, "no response after " + mHedgeDelayMs + " ms, hedging on "
+                    + hedge.mEndpoint.getName());
+        }
+    }
+
+    /**
+     * Handles an attempt that ended with an error, on the handler thread.
+     */
+    private void onAttemptFailed(Attempt attempt, final Throwable t) {
+        // A language that failed no longer holds up the choice.
+        chooseLanguage(false);
+        Status status = Status.fromThrowable(t);
+        boolean canRetry;
+        synchronized (mLock) {
+            if (mFinished || (mWinner != null && mWinner != attempt)) {
+                // Lost a hedge, or the call is already over.
+                return;
+            }
+            if (mWinner == null && hasLiveAttempt()) {
+                // Another attempt may still answer.
+                return;
+            }
+            canRetry = !mCancelled && !mAudioOutReceived && mReplayable
+                    && mRetries < MAX_RETRIES && isRetryable(status.getCode());
+            if (canRetry) {
+                mWinner = null;
+            }
+        }
+        if (canRetry) {
+            AssistantEndpoint endpoint = mPool.choose(mTried);
+            if (endpoint == null) {
+                // Every endpoint has been tried, so retry the one that looks best now.
+                endpoint = mPool.choose(Collections.<AssistantEndpoint>emptySet());
+            }
+            mRetries++;
+            mMetrics.onRetry(status);
+            if (endpoint != attempt.mEndpoint) {
+                mMetrics.failovers.increment();
+            }
+            Log.w(TAG, "retrying on " + endpoint.getName() + " after " + status + " from "
+                    + attempt.mEndpoint.getName() + ", replaying " + mWrittenCount + " requests");
+            startAttempt(endpoint, false, SystemClock.elapsedRealtime());
+            return;
+        }
+        if (finish()) {
+            mMetrics.onError(t);
+            mResponseExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mResponseObserver.onError(t);
+                }
+            });
+        }
+    }
+
+    private static boolean isRetryable(Status.Code code) {
+        switch (code) {
+            case UNAVAILABLE:
+            case DEADLINE_EXCEEDED:
+            case ABORTED:
+            case INTERNAL:
+            case UNKNOWN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean hasLiveAttempt() {
+        for (Attempt attempt : mAttempts) {
+            if (!attempt.mDone) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Attempt> liveAttempts() {
+        List<Attempt> live = new ArrayList<>();
+        synchronized (mLock) {
+            for (Attempt attempt : mAttempts) {
+                if (!attempt.mDone) {
+                    live.add(attempt);
+                }
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Keeps the racing attempt whose recognition is most stable, once every attempt has reached
+     * the end of the utterance or failed.
+     *
+     * @param force Whether to choose among the attempts that reached it so far.
+     */
+    private void chooseLanguage(boolean force) {
+        Attempt winner = null;
+        List<Attempt> losers = new ArrayList<>();
+        synchronized (mLock) {
+            if (!mRacing || mWinner != null || mFinished) {
+                return;
+            }
+            boolean waiting = false;
+            for (Attempt attempt : mAttempts) {
+                if (attempt.mFailed) {
+                    continue;
+                }
+                if (attempt.mEndOfUtteranceMs == 0 && !attempt.mCompletedEarly) {
+                    waiting |= !attempt.mDone;
+                } else if (winner == null || attempt.mStability > winner.mStability
+                        || (attempt.mStability == winner.mStability
+                                && attempt.endOfUtteranceMs() < winner.endOfUtteranceMs())) {
+                    winner = attempt;
+                }
+            }
+            if (winner == null || (waiting && !force)) {
+                return;
+            }
+            long nowMs = SystemClock.elapsedRealtime();
+            mWinner = winner;
+            mActive = winner;
+            mEndOfUtteranceReceived = true;
+            if (!winner.mHeld.isEmpty()) {
+                winner.mEndpoint.onLatency(winner.mFirstResponseMs - winner.mStartMs);
+                mMetrics.responseLatencyMs.record(winner.mFirstResponseMs - winner.mStartMs);
+            }
+            if (mFirstEndOfUtteranceMs != 0) {
+                mMetrics.languageDecisionMs.record(nowMs - mFirstEndOfUtteranceMs);
+            }
+            mMetrics.onLanguageChosen(winner.getLanguageCode());
+            if (winner.mConfig != null) {
+                // Without the race, the user would have had to repeat the query.
+                mMetrics.languageSavedMs.record(nowMs - winner.mStartMs);
+            }
+            for (Attempt attempt : mAttempts) {
+                if (attempt != winner && !attempt.mDone) {
+                    attempt.mDone = true;
+                    losers.add(attempt);
+                }
+            }
+            // Delivered under the lock, so they are ahead of the winner's later responses.
+            for (AssistResponse response : winner.mHeld) {
+                mAudioOutReceived |= response.hasAudioOut();
+                deliver(response, nowMs);
+            }
+            winner.mHeld.clear();
+        }
+        mHandler.removeCallbacks(mChooseLanguage);
+        Log.i(TAG, "recognized " + winner.getLanguageCode() + " with stability "
+                + winner.mStability);
+        for (Attempt loser : losers) {
+            loser.cancel("another language was recognized");
+        }
+        // Requests queued for the losers go to the winner.
+        mHandler.post(mDrain);
+        if (winner.mCompletedEarly) {
+            complete();
+        }
+    }
+
+    /**
+     * Hands a response to the response observer, in order.
+     */
+    private void deliver(final AssistResponse response, long nowMs) {
+        mQuality.onResponse(response, nowMs);
+        if (mTrace != null) {
+            mTrace.recordResponse(response);
+        }
+        mMetrics.responseQueueDepth.add(1);
+        mResponseExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mMetrics.responseQueueDepth.add(-1);
+                if (!mCancelled) {
+                    mResponseObserver.onNext(response);
+                }
+            }
+        });
+    }
+
+    /**
+     * Ends the call once its winning attempt completed.
+     */
+    private void complete() {
+        if (finish()) {
+            mMetrics.conversationsFinished.increment();
+            mResponseExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled) {
+                        mResponseObserver.onCompleted();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Marks the call as over. Returns false if it already was.
+     */
+    private boolean finish() {
+        synchronized (mLock) {
+            if (mFinished) {
+                return false;
+            }
+            mFinished = true;
+        }
+        mHandler.removeCallbacks(mHedge);
+        mHandler.removeCallbacks(mChooseLanguage);
+        mQuality.finish();
+        if (mTrace != null) {
+            mTrace.close();
+        }
+        return true;
+    }
+
+    private void enqueue(AssistRequest request) {
+        if (mCancelled || mHalfClosed) {
+            return;
+        }
+        mPending.add(request);
+        mStats.onEnqueued();
+        drain();
+    }
+
+    private void drain() {
+        if (mCancelled) {
+            return;
+        }
+        // Bring attempts started late up to date first.
+        for (Attempt attempt : liveAttempts()) {
+            while (attempt.mNext < mWrittenCount && attempt.isReady()) {
+                if (!mReplayable) {
+                    attempt.cancel("requests no longer available");
+                    break;
+                }
+                attempt.write(mWritten.get(attempt.mNext));
+            }
+        }
+        Attempt active = mActive;
+        while (!mPending.isEmpty() && active != null && !active.mDone
+                && active.mNext == mWrittenCount && active.isReady()) {
+            AssistRequest request = mPending.poll();
+            if (mTrace != null) {
+                mTrace.recordRequest(request);
+            }
+            keep(request);
+            for (Attempt attempt : liveAttempts()) {
+                if (attempt.mNext == mWrittenCount - 1 && attempt.isReady()) {
+                    attempt.write(request);
+                }
+            }
+            mStats.onDequeued(1);
+            mMetrics.uploadBytes.add(request.getSerializedSize());
+            mQuality.onRequestWritten(SystemClock.elapsedRealtime());
+        }
+        if (mPending.isEmpty()) {
+            endStall();
+            if (active != null && active.mRetryStartMs != 0 && active.mNext == mWrittenCount) {
+                // The retry has caught up with live audio.
+                long addedMs = SystemClock.elapsedRealtime() - active.mRetryStartMs;
+                active.mRetryStartMs = 0;
+                mMetrics.retryAddedLatencyMs.record(addedMs);
+                Log.i(TAG, "retry caught up after " + addedMs + " ms");
+            }
+            if (mHalfClosed) {
+                for (Attempt attempt : liveAttempts()) {
+                    if (attempt.mNext == mWrittenCount) {
+                        attempt.completeRequests();
+                    }
+                }
+                if (!mUploadCompleted) {
+                    mUploadCompleted = true;
+                    mQuality.onRequestsCompleted(SystemClock.elapsedRealtime());
+                }
+            }
+        } else if (mStallStartMs == 0) {
+            mStallStartMs = SystemClock.elapsedRealtime();
+            mStats.onStallStarted();
+        }
+    }
+
+    private void keep(AssistRequest request) {
+        mWrittenCount++;
+        if (!mReplayable) {
+            return;
+        }
+        mWritten.add(request);
+        mWrittenBytes += request.getSerializedSize();
+        if (mWrittenBytes > MAX_REPLAY_BYTES) {
+            mReplayable = false;
+            mWritten.clear();
+        }
+    }
+
+    private void endStall() {
+        if (mStallStartMs != 0) {
+            long durationMs = SystemClock.elapsedRealtime() - mStallStartMs;
+            mStats.onStallEnded(durationMs);
+            mQuality.onStallEnded(durationMs);
+            mMetrics.uploadStallMs.record(durationMs);
+            mStallStartMs = 0;
+        }
+    }
+
+    private void makeRoom() {
+        if (mDropPolicy == EmbeddedAssistant.DROP_SILENCE && !mAudioCompressed) {
+            for (Iterator<AssistRequest> it = mPending.iterator(); it.hasNext(); ) {
+                AssistRequest request = it.next();
+                if (request.getTypeCase() == AssistRequest.TypeCase.AUDIO_IN
+                        && isSilent(request.getAudioIn())) {
+                    it.remove();
+                    mStats.onDropped();
+                    mMetrics.droppedAudioBlocks.increment();
+                    return;
+                }
+            }
+        }
+        for (Iterator<AssistRequest> it = mPending.iterator(); it.hasNext(); ) {
+            if (it.next().getTypeCase() == AssistRequest.TypeCase.AUDIO_IN) {
+                it.remove();
+                mStats.onDropped();
+                mMetrics.droppedAudioBlocks.increment();
+                return;
+            }
+        }
+    }
+
+    private static boolean isSilent(ByteString audio) {
+        for (int i = 0; i + 1 < audio.size(); i += 2) {
+            int sample = (short) ((audio.byteAt(i) & 0xff) | (audio.byteAt(i + 1) << 8));
+            if (sample > SILENCE_PEAK || sample < -SILENCE_PEAK) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The call made to one endpoint. Request methods are called on the handler thread and the
+     * response callbacks on a transport thread.
+     */
+    private class Attempt implements ClientResponseObserver<AssistRequest, AssistResponse> {
+        private final AssistantEndpoint mEndpoint;
+        private final long mStartMs = SystemClock.elapsedRealtime();
+        private ClientCallStreamObserver<AssistRequest> mRequestStream;
+        // Index of the next request to write.
+        private int mNext;
+        private boolean mRequestsCompleted;
+        private final boolean mHedged;
+        private long mRetryStartMs;
+        private volatile boolean mCancelledByUs;
+        // The config sent in place of the shared one, for another language, or null.
+        private final AssistRequest mConfig;
+        // Guarded by mLock.
+        private boolean mDone;
+        private boolean mFailed;
+        // Racing state, guarded by mLock: responses held until a language is chosen, and how
+        // the recognition went.
+        private final List<AssistResponse> mHeld = new ArrayList<>();
+        private long mFirstResponseMs;
+        private float mStability = -1;
+        private long mEndOfUtteranceMs;
+        private boolean mCompletedEarly;
+
+        Attempt(AssistantEndpoint endpoint, boolean hedged, long retryStartMs,
+                @Nullable AssistRequest config) {
+            mEndpoint = endpoint;
+            mHedged = hedged;
+            mRetryStartMs = retryStartMs;
+            mConfig = config;
+        }
+
+        String getLanguageCode() {
+            return mConfig != null
+                    ? mConfig.getConfig().getDialogStateIn().getLanguageCode() : mLanguageCode;
+        }
+
+        long endOfUtteranceMs() {
+            return mEndOfUtteranceMs != 0 ? mEndOfUtteranceMs : Long.MAX_VALUE;
+        }
+
+        boolean isReady() {
+            return !mRequestsCompleted && mRequestStream.isReady();
+        }
+
+        void write(AssistRequest request) {
+            if (mConfig != null) {
+                if (mNext == 0) {
+                    request = mConfig;
+                }
+                mMetrics.languageRaceUploadBytes.add(request.getSerializedSize());
+            }
+            mRequestStream.onNext(request);
+            mNext++;
+        }
+
+        void completeRequests() {
+            if (!mRequestsCompleted) {
+                mRequestsCompleted = true;
+                mRequestStream.onCompleted();
+            }
+        }
+
+        void cancel(String message) {
+            mCancelledByUs = true;
+            mRequestStream.cancel(message, null);
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<AssistRequest> requestStream) {
+            mRequestStream = requestStream;
+            requestStream.setOnReadyHandler(new Runnable() {
+                @Override
+                public void run() {
+                    // Called on a transport thread.
+                    mHandler.post(mDrain);
+                }
+            });
+        }
+
+        @Override
+        public void onNext(AssistResponse value) {
+            long nowMs = SystemClock.elapsedRealtime();
+            List<Attempt> losers = null;
+            boolean held = false;
+            boolean firstEndOfUtterance = false;
+            synchronized (mLock) {
+                if (mDone || mFinished || (mWinner != null && mWinner != this)) {
+                    return;
+                }
+                if (mRacing && mWinner == null) {
+                    mMetrics.downloadBytes.add(value.getSerializedSize());
+                    firstEndOfUtterance = hold(value, nowMs);
+                    held = true;
+                } else {
+                    if (mWinner == null) {
+                        mWinner = this;
+                        mActive = this;
+                        mEndpoint.onLatency(nowMs - mStartMs);
+                        mMetrics.responseLatencyMs.record(nowMs - mStartMs);
+                        if (mHedged) {
+                            mEndpoint.onHedgeWon();
+                        }
+                        losers = new ArrayList<>();
+                        for (Attempt attempt : mAttempts) {
+                            if (attempt != this && !attempt.mDone) {
+                                // It took at least as long, which is all that is known.
+                                attempt.mEndpoint.onLatency(nowMs - attempt.mStartMs);
+                                attempt.mDone = true;
+                                losers.add(attempt);
+                            }
+                        }
+                    }
+                    if (value.getEventType() == AssistResponse.EventType.END_OF_UTTERANCE) {
+                        if (mEndOfUtteranceReceived) {
+                            // Already delivered by an attempt that failed over.
+                            value = value.toBuilder().clearEventType().build();
+                            if (value.equals(AssistResponse.getDefaultInstance())) {
+                                return;
+                            }
+                        }
+                        mEndOfUtteranceReceived = true;
+                    }
+                    if (value.hasAudioOut()) {
+                        mAudioOutReceived = true;
+                    }
+                    mMetrics.downloadBytes.add(value.getSerializedSize());
+                    if (losers == null) {
+                        // Delivered under the lock, so a language chosen on another thread
+                        // delivers its held responses first.
+                        deliver(value, nowMs);
+                    }
+                }
+            }
+            if (firstEndOfUtterance) {
+                mHandler.postDelayed(mChooseLanguage, LANGUAGE_DECISION_MS);
+            }
+            if (held) {
+                chooseLanguage(false);
+            }
+            if (losers != null) {
+                for (Attempt loser : losers) {
+                    loser.cancel("another endpoint answered first");
+                }
+                // Requests queued for the loser go to the winner.
+                mHandler.post(mDrain);
+                deliver(value, nowMs);
+            }
+        }
+
+        /**
+         * Holds a response until a language is chosen. Returns whether it carried the first end
+         * of the utterance of the call. Called with mLock held.
+         */
+        private boolean hold(AssistResponse value, long nowMs) {
+            if (mHeld.isEmpty()) {
+                mFirstResponseMs = nowMs;
+            }
+            mHeld.add(value);
+            if (value.getSpeechResultsCount() > 0) {
+                // The latest results are the current hypothesis; an empty one counts for nothing.
+                float stability = 0;
+                boolean empty = true;
+                for (SpeechRecognitionResult result : value.getSpeechResultsList()) {
+                    stability += result.getStability();
+                    empty &= result.getTranscript().isEmpty();
+                }
+                mStability = empty ? -1 : stability / value.getSpeechResultsCount();
+            }
+            if (value.getEventType() != AssistResponse.EventType.END_OF_UTTERANCE
+                    || mEndOfUtteranceMs != 0) {
+                return false;
+            }
+            mEndOfUtteranceMs = nowMs;
+            if (mFirstEndOfUtteranceMs != 0) {
+                return false;
+            }
+            mFirstEndOfUtteranceMs = nowMs;
+            return true;
+        }
+
+        @Override
+        public void onError(final Throwable t) {
+            synchronized (mLock) {
+                if (mDone) {
+                    return;
+                }
+                mDone = true;
+                mFailed = true;
+            }
+            if (!mCancelledByUs) {
+                mEndpoint.onFailure();
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onAttemptFailed(Attempt.this, t);
+                }
+            });
+        }
+
+        @Override
+        public void onCompleted() {
+            synchronized (mLock) {
+                if (mDone) {
+                    return;
+                }
+                mDone = true;
+                if (mRacing && mWinner == null) {
+                    // Completes once chosen.
+                    mCompletedEarly = true;
+                } else if (mWinner == null && hasLiveAttempt()) {
+                    // Ended without a response while another attempt may still answer.
+                    return;
+                }
+            }
+            if (mCompletedEarly) {
+                chooseLanguage(false);
+            } else {
+                complete();
+            }
+        }
+    }
+}
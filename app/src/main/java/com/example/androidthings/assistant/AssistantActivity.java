@@ -25,13 +25,12 @@ import android.media.AudioManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.preference.PreferenceManager;
-import android.util.Base64;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.webkit.WebView;
-import android.widget.ArrayAdapter;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
@@ -44,10 +43,8 @@ import com.google.android.things.contrib.driver.voicehat.VoiceHat;
 import com.google.android.things.pio.Gpio;
 import com.google.android.things.pio.PeripheralManager;
 import com.google.assistant.embedded.v1alpha2.SpeechRecognitionResult;
-import com.google.auth.oauth2.UserCredentials;
+import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
 import java.util.List;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -57,6 +54,7 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
 
     // Peripheral and drivers constants.
     private static final int BUTTON_DEBOUNCE_DELAY_MS = 20;
+    private static final long PERIPHERAL_SHUTDOWN_TIMEOUT_MS = 1000;
     // Default on using the Voice Hat on Raspberry Pi 3.
     private static final boolean USE_VOICEHAT_I2S_DAC = Build.DEVICE.equals(BoardDefaults.DEVICE_RPI3);
 
@@ -70,20 +68,53 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
     private static final String DEVICE_INSTANCE_ID = "PLACEHOLDER";
     private static final String LANGUAGE_CODE = "en-US";
 
-    // Hardware peripherals.
+    // Debugging constants. Traces are written to the app's files directory.
+    private static final boolean RECORD_CONVERSATIONS = false;
+    private static final int MAX_CONVERSATION_TRACES = 50;
+
+    // Audio archive constants. Segments are written to the app's files directory.
+    private static final boolean ARCHIVE_AUDIO = false;
+    private static final long MAX_ARCHIVE_SEGMENT_BYTES = 1024 * 1024;
+    private static final long MAX_ARCHIVE_BYTES = 64 * 1024 * 1024;
+
+    // Metrics constants. When enabled, metrics are served for Prometheus on this port.
+    private static final boolean EXPORT_METRICS = false;
+    private static final int METRICS_PORT = 9100;
+
+    // Microphone processing constants. Enable on boards with a noisy or quiet microphone.
+    private static final boolean PROCESS_CAPTURE = false;
+    private static final float DC_CUTOFF_HZ = 60;
+    private static final float AGC_TARGET_DBFS = -20;
+    private static final float AGC_MAX_GAIN_DB = 20;
+    private static final float NOISE_GATE_DBFS = -50;
+    private static final int NOISE_GATE_HOLD_MS = 300;
+
+    // Transcript history constants. The log is written to the app's files directory.
+    private static final int TRANSCRIPT_HISTORY_SIZE = 200;
+    private static final boolean LOG_TRANSCRIPTS = false;
+    private static final long MAX_TRANSCRIPT_LOG_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_TRANSCRIPT_LOG_BACKUPS = 4;
+
+    // Hardware peripherals. They are opened and closed on the peripheral thread.
+    private HandlerThread mPeripheralThread;
+    private Handler mPeripheralHandler;
     private Button mButton;
     private android.widget.Button mButtonWidget;
-    private Gpio mLed;
-    private Max98357A mDac;
+    private volatile Gpio mLed;
+    private volatile Max98357A mDac;
 
-    private Handler mMainHandler;
-
-    // List & adapter to store and display the history of Assistant Requests.
     private EmbeddedAssistant mEmbeddedAssistant;
-    private ArrayList<String> mAssistantRequests = new ArrayList<>();
-    private ArrayAdapter<String> mAssistantRequestsAdapter;
+    private ConversationRecorder mConversationRecorder;
+    private AudioArchiver mAudioArchiver;
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    private MetricsServer mMetricsServer;
+    private MetricsRegistry.Counter mHypothesisUpdates;
+    // History & adapter to store and display the recent Assistant Requests.
+    private TranscriptHistory mAssistantRequests;
+    private TranscriptAdapter mAssistantRequestsAdapter;
     private CheckBox mHtmlOutputCheckbox;
     private WebView mWebView;
+    private ScreenOutRenderer mScreenOutRenderer;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -93,9 +124,10 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
         setContentView(R.layout.activity_main);
 
         final ListView assistantRequestsListView = findViewById(R.id.assistantRequestsListView);
-        mAssistantRequestsAdapter =
-            new ArrayAdapter<>(this, android.R.layout.simple_list_item_1,
-                mAssistantRequests);
+        mAssistantRequests = new TranscriptHistory(TRANSCRIPT_HISTORY_SIZE,
+                LOG_TRANSCRIPTS ? new File(getFilesDir(), "transcript.log") : null,
+                MAX_TRANSCRIPT_LOG_BYTES, MAX_TRANSCRIPT_LOG_BACKUPS);
+        mAssistantRequestsAdapter = new TranscriptAdapter(getLayoutInflater(), mAssistantRequests);
         assistantRequestsListView.setAdapter(mAssistantRequestsAdapter);
         mHtmlOutputCheckbox = findViewById(R.id.htmlOutput);
         mHtmlOutputCheckbox.setOnCheckedChangeListener(new OnCheckedChangeListener() {
@@ -109,9 +141,11 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
         });
         mWebView = findViewById(R.id.webview);
         mWebView.getSettings().setJavaScriptEnabled(true);
+        mScreenOutRenderer = new ScreenOutRenderer(mWebView);
 
-        mMainHandler = new Handler(getMainLooper());
         mButtonWidget = findViewById(R.id.assistantQueryButton);
+        // Enabled once the Assistant is ready.
+        mButtonWidget.setEnabled(false);
         mButtonWidget.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View view) {
@@ -134,93 +168,111 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
             }
         }
 
-        try {
-            if (USE_VOICEHAT_I2S_DAC) {
-                Log.i(TAG, "initializing DAC trigger");
-                mDac = VoiceHat.openDac();
-                mDac.setSdMode(Max98357A.SD_MODE_SHUTDOWN);
-
-                mButton = VoiceHat.openButton();
-                mLed = VoiceHat.openLed();
-            } else {
-                PeripheralManager pioManager = PeripheralManager.getInstance();
-                mButton = new Button(BoardDefaults.getGPIOForButton(),
-                    Button.LogicState.PRESSED_WHEN_LOW);
-                mLed = pioManager.openGpio(BoardDefaults.getGPIOForLED());
+        // Peripherals are opened in the background while the Assistant starts up. The button
+        // is enabled once the Assistant is ready.
+        mPeripheralThread = new HandlerThread("peripheralThread");
+        mPeripheralThread.start();
+        mPeripheralHandler = new Handler(mPeripheralThread.getLooper());
+        mPeripheralHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                openPeripherals();
             }
-
-            mButton.setDebounceDelay(BUTTON_DEBOUNCE_DELAY_MS);
-            mButton.setOnButtonEventListener(this);
-
-            mLed.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
-            mLed.setActiveType(Gpio.ACTIVE_HIGH);
-        } catch (IOException e) {
-            Log.e(TAG, "error configuring peripherals:", e);
-            return;
-        }
+        });
 
         // Set volume from preferences
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
         int initVolume = preferences.getInt(PREF_CURRENT_VOLUME, DEFAULT_VOLUME);
         Log.i(TAG, "setting audio track volume to: " + initVolume);
 
-        UserCredentials userCredentials = null;
-        try {
-            userCredentials =
-                    EmbeddedAssistant.generateCredentials(this, R.raw.credentials);
-        } catch (IOException | JSONException e) {
-            Log.e(TAG, "error getting user credentials", e);
+        if (RECORD_CONVERSATIONS) {
+            mConversationRecorder = new ConversationRecorder(new File(getFilesDir(), "traces"),
+                    MAX_CONVERSATION_TRACES);
+        }
+        if (ARCHIVE_AUDIO) {
+            mAudioArchiver = new AudioArchiver(new File(getFilesDir(), "audio"), SAMPLE_RATE,
+                    MAX_ARCHIVE_SEGMENT_BYTES, MAX_ARCHIVE_BYTES);
         }
-        mEmbeddedAssistant = new EmbeddedAssistant.Builder()
-                .setCredentials(userCredentials)
+        mHypothesisUpdates = mMetrics.counter("assistant_ui_hypothesis_updates_total",
+                "Speech recognition updates shown on screen.");
+        if (EXPORT_METRICS) {
+            try {
+                mMetricsServer = new MetricsServer(mMetrics, METRICS_PORT);
+            } catch (IOException e) {
+                Log.e(TAG, "cannot serve metrics", e);
+            }
+        }
+        EmbeddedAssistant.Builder builder = new EmbeddedAssistant.Builder();
+        if (PROCESS_CAPTURE) {
+            builder.addCaptureStage(new DcRemovalStage(SAMPLE_RATE, DC_CUTOFF_HZ))
+                    .addCaptureStage(new NoiseGateStage(SAMPLE_RATE, NOISE_GATE_DBFS,
+                            NOISE_GATE_HOLD_MS))
+                    .addCaptureStage(new AgcStage(AGC_TARGET_DBFS, AGC_MAX_GAIN_DB));
+        }
+        // Enable hands-free use if a recording of the hotword is bundled as res/raw/hotword.wav.
+        // The recording is loaded in the background, and listening starts once the Assistant
+        // is ready.
+        int hotwordResourceId = getResources().getIdentifier("hotword", "raw", getPackageName());
+        if (hotwordResourceId != 0) {
+            builder.setHotwordTemplate(this, hotwordResourceId);
+        }
+        mEmbeddedAssistant = builder
+                // Credentials are loaded in the background by connect().
+                .setCredentials(this, R.raw.credentials)
                 .setDeviceInstanceId(DEVICE_INSTANCE_ID)
                 .setDeviceModelId(DEVICE_MODEL_ID)
+                // Text commands for the LED are handled without a round trip.
+                .setLocalDeviceTraits("action.devices.traits.OnOff")
                 .setLanguageCode(LANGUAGE_CODE)
                 .setAudioInputDevice(audioInputDevice)
                 .setAudioOutputDevice(audioOutputDevice)
                 .setAudioSampleRate(SAMPLE_RATE)
                 .setAudioVolume(initVolume)
+                .setConversationRecorder(mConversationRecorder)
+                .setAudioArchiver(mAudioArchiver)
+                .setMetrics(mMetrics)
+                .setAudioOutputPower(!USE_VOICEHAT_I2S_DAC ? null : new AudioOutputPower() {
+                    @Override
+                    public void powerUp() {
+                        // When bus type is switched, the AudioManager needs to reset the stream volume
+                        setDacMode(Max98357A.SD_MODE_LEFT);
+                    }
+
+                    @Override
+                    public void powerDown() {
+                        setDacMode(Max98357A.SD_MODE_SHUTDOWN);
+                    }
+                })
                 .setRequestCallback(new RequestCallback() {
                     @Override
                     public void onRequestStart() {
                         Log.i(TAG, "starting assistant request, enable microphones");
+                        mAssistantRequestsAdapter.commitHypothesis();
                         mButtonWidget.setText(R.string.button_listening);
                         mButtonWidget.setEnabled(false);
                     }
 
                     @Override
                     public void onSpeechRecognition(List<SpeechRecognitionResult> results) {
+                        StringBuilder transcript = new StringBuilder();
                         for (final SpeechRecognitionResult result : results) {
                             Log.i(TAG, "assistant request text: " + result.getTranscript() +
                                 " stability: " + Float.toString(result.getStability()));
-                            mAssistantRequestsAdapter.add(result.getTranscript());
+                            transcript.append(result.getTranscript());
                         }
+                        mAssistantRequestsAdapter.setHypothesis(transcript.toString());
+                        mHypothesisUpdates.increment();
                     }
-                })
-                .setConversationCallback(new ConversationCallback() {
+
                     @Override
-                    public void onResponseStarted() {
-                        super.onResponseStarted();
-                        // When bus type is switched, the AudioManager needs to reset the stream volume
-                        if (mDac != null) {
-                            try {
-                                mDac.setSdMode(Max98357A.SD_MODE_LEFT);
-                            } catch (IOException e) {
-                                Log.e(TAG, "error enabling DAC", e);
-                            }
-                        }
+                    public void onRequestFinish() {
+                        mAssistantRequestsAdapter.commitHypothesis();
                     }
-
+                })
+                .setConversationCallback(new ConversationCallback() {
                     @Override
                     public void onResponseFinished() {
                         super.onResponseFinished();
-                        if (mDac != null) {
-                            try {
-                                mDac.setSdMode(Max98357A.SD_MODE_SHUTDOWN);
-                            } catch (IOException e) {
-                                Log.e(TAG, "error disabling DAC", e);
-                            }
-                        }
                         if (mLed != null) {
                             try {
                                 mLed.setValue(false);
@@ -246,6 +298,19 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
                         editor.apply();
                     }
 
+                    @Override
+                    public void onReady() {
+                        Log.i(TAG, "assistant ready");
+                        mButtonWidget.setEnabled(true);
+                        // Runs after the peripherals have been opened.
+                        mPeripheralHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                enableButton();
+                            }
+                        });
+                    }
+
                     @Override
                     public void onConversationFinished() {
                         Log.i(TAG, "assistant conversation finished");
@@ -256,32 +321,13 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
                     @Override
                     public void onAssistantResponse(final String response) {
                         if(!response.isEmpty()) {
-                            mMainHandler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    mAssistantRequestsAdapter.add("Google Assistant: " + response);
-                                }
-                            });
+                            mAssistantRequestsAdapter.add("Google Assistant: " + response);
                         }
                     }
 
                     @Override
                     public void onAssistantDisplayOut(final String html) {
-                        mMainHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                // Need to convert to base64
-                                try {
-                                    final byte[] data = html.getBytes("UTF-8");
-                                    final String base64String =
-                                        Base64.encodeToString(data, Base64.DEFAULT);
-                                    mWebView.loadData(base64String, "text/html; charset=utf-8",
-                                        "base64");
-                                } catch (UnsupportedEncodingException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                        });
+                        mScreenOutRenderer.render(html);
                     }
 
                     public void onDeviceAction(String intentName, JSONObject parameters) {
@@ -292,10 +338,11 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
                             Log.d(TAG, "Get device action " + intentName + " with no paramete"
                                 + "rs");
                         }
-                        if (intentName.equals("action.devices.commands.OnOff")) {
+                        Gpio led = mLed;
+                        if (intentName.equals("action.devices.commands.OnOff") && led != null) {
                             try {
                                 boolean turnOn = parameters.getBoolean("on");
-                                mLed.setValue(turnOn);
+                                led.setValue(turnOn);
                             } catch (JSONException e) {
                                 Log.e(TAG, "Cannot get value of command", e);
                             } catch (IOException e) {
@@ -308,6 +355,74 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
         mEmbeddedAssistant.connect();
     }
 
+    /**
+     * Opens the button, the LED and the DAC. Runs on the peripheral thread.
+     */
+    private void openPeripherals() {
+        try {
+            if (USE_VOICEHAT_I2S_DAC) {
+                Log.i(TAG, "initializing DAC trigger");
+                Max98357A dac = VoiceHat.openDac();
+                dac.setSdMode(Max98357A.SD_MODE_SHUTDOWN);
+                mDac = dac;
+
+                mButton = VoiceHat.openButton();
+                mLed = VoiceHat.openLed();
+            } else {
+                PeripheralManager pioManager = PeripheralManager.getInstance();
+                mButton = new Button(BoardDefaults.getGPIOForButton(),
+                    Button.LogicState.PRESSED_WHEN_LOW);
+                mLed = pioManager.openGpio(BoardDefaults.getGPIOForLED());
+            }
+
+            mButton.setDebounceDelay(BUTTON_DEBOUNCE_DELAY_MS);
+
+            mLed.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
+            mLed.setActiveType(Gpio.ACTIVE_HIGH);
+        } catch (IOException e) {
+            Log.e(TAG, "error configuring peripherals:", e);
+        }
+    }
+
+    /**
+     * Starts conversations from the button. Runs on the peripheral thread.
+     */
+    private void enableButton() {
+        if (mButton != null) {
+            mButton.setOnButtonEventListener(this);
+        }
+    }
+
+    /**
+     * Closes the peripherals. Runs on the peripheral thread.
+     */
+    private void closePeripherals() {
+        if (mLed != null) {
+            try {
+                mLed.close();
+            } catch (IOException e) {
+                Log.w(TAG, "error closing LED", e);
+            }
+            mLed = null;
+        }
+        if (mButton != null) {
+            try {
+                mButton.close();
+            } catch (IOException e) {
+                Log.w(TAG, "error closing button", e);
+            }
+            mButton = null;
+        }
+        if (mDac != null) {
+            try {
+                mDac.close();
+            } catch (IOException e) {
+                Log.w(TAG, "error closing voice hat trigger", e);
+            }
+            mDac = null;
+        }
+    }
+
     private AudioDeviceInfo findAudioDevice(int deviceFlag, int deviceType) {
         AudioManager manager = (AudioManager) this.getSystemService(Context.AUDIO_SERVICE);
         AudioDeviceInfo[] adis = manager.getDevices(deviceFlag);
@@ -333,34 +448,46 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
         }
     }
 
+    private void setDacMode(int mode) {
+        Max98357A dac = mDac;
+        if (dac == null) {
+            return;
+        }
+        try {
+            dac.setSdMode(mode);
+        } catch (IOException e) {
+            Log.e(TAG, "error switching DAC mode", e);
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
         Log.i(TAG, "destroying assistant demo");
-        if (mLed != null) {
-            try {
-                mLed.close();
-            } catch (IOException e) {
-                Log.w(TAG, "error closing LED", e);
+        // destroy() returns once the audio output is powered down, so the DAC can be closed.
+        mEmbeddedAssistant.destroy();
+        mPeripheralHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closePeripherals();
             }
-            mLed = null;
+        });
+        mPeripheralThread.quitSafely();
+        try {
+            mPeripheralThread.join(PERIPHERAL_SHUTDOWN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        if (mButton != null) {
-            try {
-                mButton.close();
-            } catch (IOException e) {
-                Log.w(TAG, "error closing button", e);
-            }
-            mButton = null;
+        mScreenOutRenderer.release();
+        mAssistantRequests.close();
+        if (mConversationRecorder != null) {
+            mConversationRecorder.shutdown();
         }
-        if (mDac != null) {
-            try {
-                mDac.close();
-            } catch (IOException e) {
-                Log.w(TAG, "error closing voice hat trigger", e);
-            }
-            mDac = null;
+        if (mAudioArchiver != null) {
+            mAudioArchiver.shutdown();
+        }
+        if (mMetricsServer != null) {
+            mMetricsServer.close();
         }
-        mEmbeddedAssistant.destroy();
     }
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.os.SystemClock;
+import com.google.assistant.embedded.v1alpha2.EmbeddedAssistantGrpc.EmbeddedAssistantStub;
+import io.grpc.ManagedChannel;
+
+/**
+ * One Assistant frontend and its health as seen by this device. Updated from the calls made to
+ * it and safe to read from any thread.
+ */
+public class AssistantEndpoint {
+    private static final float SMOOTHING = 0.3f;
+    private static final long MIN_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 60000;
+
+    private final String mName;
+    private final ManagedChannel mChannel;
+    private final EmbeddedAssistantStub mStub;
+
+    private volatile float mLatencyMs = -1;
+    private volatile long mCalls;
+    private volatile long mFailures;
+    private volatile long mHedgesWon;
+    private volatile int mConsecutiveFailures;
+    private volatile long mUnhealthyUntilMs;
+
+    AssistantEndpoint(String name, ManagedChannel channel, EmbeddedAssistantStub stub) {
+        mName = name;
+        mChannel = channel;
+        mStub = stub;
+    }
+
+    /**
+     * Returns the endpoint target or a description of its channel.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns the average time to the first response of a call, in milliseconds, or -1 before
+     * any response.
+     */
+    public float getLatencyMs() {
+        return mLatencyMs;
+    }
+
+    /**
+     * Returns the number of calls made to this endpoint.
+     */
+    public long getCalls() {
+        return mCalls;
+    }
+
+    /**
+     * Returns the number of calls that failed.
+     */
+    public long getFailures() {
+        return mFailures;
+    }
+
+    /**
+     * Returns the number of hedged calls this endpoint answered first.
+     */
+    public long getHedgesWon() {
+        return mHedgesWon;
+    }
+
+    /**
+     * Returns whether the endpoint is currently used for new calls. An endpoint is skipped for a
+     * backoff period after it fails.
+     */
+    public boolean isHealthy() {
+        return SystemClock.elapsedRealtime() >= mUnhealthyUntilMs;
+    }
+
+    @Override
+    public String toString() {
+        return mName + " latencyMs=" + mLatencyMs + " calls=" + mCalls + " failures=" + mFailures
+                + " hedgesWon=" + mHedgesWon + " healthy=" + isHealthy();
+    }
+
+    ManagedChannel getChannel() {
+        return mChannel;
+    }
+
+    EmbeddedAssistantStub getStub() {
+        return mStub;
+    }
+
+    synchronized void onCallStarted() {
+        mCalls++;
+    }
+
+    /**
+     * Records how long the endpoint took to respond, or at least took, for a call that lost a
+     * hedge.
+     */
+    synchronized void onLatency(long latencyMs) {
+        mLatencyMs = mLatencyMs < 0 ? latencyMs : mLatencyMs + SMOOTHING * (latencyMs - mLatencyMs);
+        mConsecutiveFailures = 0;
+    }
+
+    synchronized void onHedgeWon() {
+        mHedgesWon++;
+    }
+
+    synchronized void onFailure() {
+        mFailures++;
+        mConsecutiveFailures++;
+        long backoffMs = Math.min(MAX_BACKOFF_MS,
+                MIN_BACKOFF_MS << Math.min(16, mConsecutiveFailures - 1));
+        mUnhealthyUntilMs = SystemClock.elapsedRealtime() + backoffMs;
+    }
+}
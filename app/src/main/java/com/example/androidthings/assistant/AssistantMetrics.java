@@ -0,0 +1,179 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import io.grpc.Status;
+
+/**
+ * The metrics recorded by {@link EmbeddedAssistant}, looked up once so recording them is cheap.
+ */
+class AssistantMetrics {
+    private final MetricsRegistry mRegistry;
+
+    final MetricsRegistry.Counter conversationsStarted;
+    final MetricsRegistry.Counter conversationsFinished;
+    final MetricsRegistry.Counter uploadBytes;
+    final MetricsRegistry.Counter downloadBytes;
+    final MetricsRegistry.Counter droppedAudioBlocks;
+    final MetricsRegistry.Counter failovers;
+    final MetricsRegistry.Counter hedges;
+    final MetricsRegistry.Counter playbackUnderruns;
+    final MetricsRegistry.Counter localIntentHits;
+    final MetricsRegistry.Counter localIntentMisses;
+    final MetricsRegistry.Counter triggersAccepted;
+    final MetricsRegistry.Counter triggersCoalesced;
+    final MetricsRegistry.Counter triggersPreempted;
+    final MetricsRegistry.Counter triggersRejected;
+    final MetricsRegistry.Counter languageRaceUploadBytes;
+    final MetricsRegistry.Counter linkSwitches;
+    final MetricsRegistry.Gauge responseQueueDepth;
+    final MetricsRegistry.Gauge playbackBufferMs;
+    final MetricsRegistry.Gauge playbackTargetMs;
+    final MetricsRegistry.Gauge linkLatencyMs;
+    final MetricsRegistry.Gauge linkDownlinkKbps;
+    final MetricsRegistry.Gauge linkUplinkStallPermille;
+    final MetricsRegistry.Gauge linkPoor;
+    final MetricsRegistry.Gauge uploadEncodingLinear16;
+    final MetricsRegistry.Gauge uploadEncodingFlac;
+    final MetricsRegistry.Gauge uploadChunkMs;
+    final MetricsRegistry.Histogram responseLatencyMs;
+    final MetricsRegistry.Histogram uploadStallMs;
+    final MetricsRegistry.Histogram retryAddedLatencyMs;
+    final MetricsRegistry.Histogram playbackJitterMs;
+    final MetricsRegistry.Histogram localIntentSavedMs;
+    final MetricsRegistry.Histogram captureJitterUs;
+    final MetricsRegistry.Histogram playbackWakeupLatenessUs;
+    final MetricsRegistry.Histogram languageDecisionMs;
+    final MetricsRegistry.Histogram languageSavedMs;
+    final MetricsRegistry.Histogram firstAudioWarmMs;
+    final MetricsRegistry.Histogram firstAudioColdMs;
+
+    AssistantMetrics(MetricsRegistry registry) {
+        mRegistry = registry;
+        conversationsStarted = registry.counter("assistant_conversations_started_total",
+                "Conversations started by voice or text.");
+        conversationsFinished = registry.counter("assistant_conversations_finished_total",
+                "Conversations whose call completed without error.");
+        uploadBytes = registry.counter("assistant_upload_bytes_total",
+                "Bytes of requests written to the Assistant.");
+        downloadBytes = registry.counter("assistant_download_bytes_total",
+                "Bytes of responses received from the Assistant.");
+        droppedAudioBlocks = registry.counter("assistant_upload_dropped_total",
+                "Audio requests dropped while the uplink was stalled.");
+        failovers = registry.counter("assistant_failovers_total",
+                "Calls retried on another endpoint after a failure.");
+        hedges = registry.counter("assistant_hedges_total",
+                "Calls also sent to another endpoint after a slow first response.");
+        playbackUnderruns = registry.counter("assistant_playback_underruns_total",
+                "Times the audio output ran out of Assistant audio.");
+        localIntentHits = registry.counter("assistant_local_intent_queries_total",
+                "Text queries checked against the local device commands.", "result", "hit");
+        localIntentMisses = registry.counter("assistant_local_intent_queries_total",
+                "Text queries checked against the local device commands.", "result", "miss");
+        triggersAccepted = trigger(registry, "accepted");
+        triggersCoalesced = trigger(registry, "coalesced");
+        triggersPreempted = trigger(registry, "preempted");
+        triggersRejected = trigger(registry, "rejected");
+        languageRaceUploadBytes = registry.counter("assistant_language_race_upload_bytes_total",
+                "Bytes of requests written for the other languages of a call.");
+        linkSwitches = registry.counter("assistant_link_switches_total",
+                "Times the link assessment changed between good and poor.");
+        responseQueueDepth = registry.gauge("assistant_response_queue_depth",
+                "Responses waiting for the response executor.");
+        playbackBufferMs = registry.gauge("assistant_playback_buffer_ms",
+                "Assistant audio queued or in the output track, not yet played.");
+        playbackTargetMs = registry.gauge("assistant_playback_target_ms",
+                "Assistant audio buffered before a reply starts playing.");
+        linkLatencyMs = registry.gauge("assistant_link_latency_ms",
+                "Average time from the first request of a call to its first response, or -1.");
+        linkDownlinkKbps = registry.gauge("assistant_link_downlink_kbps",
+                "Average rate at which Assistant audio was received, or -1.");
+        linkUplinkStallPermille = registry.gauge("assistant_link_uplink_stall_permille",
+                "Average share of upload time stalled by flow control, in thousandths, or -1.");
+        linkPoor = registry.gauge("assistant_link_poor",
+                "1 while the link is considered poor, else 0.");
+        uploadEncodingLinear16 = uploadEncoding(registry, "LINEAR16");
+        uploadEncodingFlac = uploadEncoding(registry, "FLAC");
+        uploadChunkMs = registry.gauge("assistant_upload_chunk_ms",
+                "Audio sent per request by the next conversation.");
+        responseLatencyMs = registry.histogram("assistant_response_latency_ms",
+                "Time from the start of a call to its first response.");
+        uploadStallMs = registry.histogram("assistant_upload_stall_ms",
+                "Time the uplink was stalled by flow control.");
+        retryAddedLatencyMs = registry.histogram("assistant_retry_added_latency_ms",
+                "Time from a failed call until its retry caught up with live audio.");
+        playbackJitterMs = registry.histogram("assistant_playback_jitter_ms",
+                "Prebuffer each reply needed to play without a gap.");
+        localIntentSavedMs = registry.histogram("assistant_local_intent_saved_ms",
+                "Median Assistant response latency avoided by each locally handled query.");
+        captureJitterUs = registry.histogram("assistant_capture_jitter_us",
+                "Deviation of the interval between captured blocks from the block duration.");
+        playbackWakeupLatenessUs = registry.histogram("assistant_playback_wakeup_lateness_us",
+                "Time the playback thread woke up after it was scheduled to.");
+        languageDecisionMs = registry.histogram("assistant_language_decision_ms",
+                "Time from the first end of the utterance to choosing a language.");
+        languageSavedMs = registry.histogram("assistant_language_saved_ms",
+                "Time a user would have spent repeating a query recognized in another language.");
+        firstAudioWarmMs = firstAudio(registry, "warm");
+        firstAudioColdMs = firstAudio(registry, "cold");
+    }
+
+    private static MetricsRegistry.Counter trigger(MetricsRegistry registry, String result) {
+        return registry.counter("assistant_triggers_total",
+                "Requests triggered by the user, by what became of them.", "result", result);
+    }
+
+    private static MetricsRegistry.Gauge uploadEncoding(MetricsRegistry registry,
+            String encoding) {
+        return registry.gauge("assistant_upload_encoding",
+                "1 for the audio encoding of the next conversation, else 0.",
+                "encoding", encoding);
+    }
+
+    private static MetricsRegistry.Histogram firstAudio(MetricsRegistry registry, String start) {
+        return registry.histogram("assistant_first_audio_ms",
+                "Time from acquiring the audio output to writing the first audio of a reply, by "
+                        + "whether the output was still up from the previous reply.",
+                "start", start);
+    }
+
+    /**
+     * Counts a call retried after a failure, by gRPC status code.
+     */
+    void onRetry(Status status) {
+        mRegistry.counter("assistant_retries_total",
+                "Calls retried after a failure, by gRPC status.",
+                "status", status.getCode().name()).increment();
+    }
+
+    /**
+     * Counts a language chosen for a call raced in several languages.
+     */
+    void onLanguageChosen(String languageCode) {
+        mRegistry.counter("assistant_language_wins_total",
+                "Languages chosen for calls raced in several languages.",
+                "language", languageCode).increment();
+    }
+
+    /**
+     * Counts a failed call by its gRPC status code.
+     */
+    void onError(Throwable t) {
+        mRegistry.counter("assistant_errors_total", "Calls that failed, by gRPC status.",
+                "status", Status.fromThrowable(t).getCode().name()).increment();
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.protobuf.ByteString;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Archives the user and Assistant audio of every conversation in compressed form.
+ *
+ * <p>Each direction is encoded to AAC and written as ADTS to its own series of segment files.
+ * A segment is closed once it reaches its size limit, and the oldest segments are deleted to
+ * keep the archive under its total size. Encoding and writing happen on a background thread.
+ * Audio handed to {@link #archive(int, ByteString)} is dropped rather than blocking the caller if
+ * that thread falls behind.
+ */
+public class AudioArchiver {
+    private static final String TAG = AudioArchiver.class.getSimpleName();
+
+    static final int DIRECTION_USER = 0;
+    static final int DIRECTION_ASSISTANT = 1;
+    private static final String[] DIRECTION_NAMES = {"user", "assistant"};
+
+    private static final String SEGMENT_SUFFIX = ".aac";
+    private static final int BIT_RATE = 32000;
+    private static final int MAX_QUEUED_BYTES = 1024 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int ADTS_HEADER_SIZE = 7;
+    private static final long CODEC_TIMEOUT_US = 10000;
+    private static final int MAX_INPUT_WAITS = 20;
+    private static final int MAX_END_OF_STREAM_WAITS = 50;
+    private static final int REPORT_INTERVAL_SECONDS = 60;
+    // ADTS sampling frequency indices, by rate.
+    private static final int[] ADTS_SAMPLE_RATES = {96000, 88200, 64000, 48000, 44100, 32000,
+            24000, 22050, 16000, 12000, 11025, 8000, 7350};
+
+    private final File mDirectory;
+    private final int mSampleRate;
+    private final long mMaxSegmentBytes;
+    private final long mMaxTotalBytes;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final AtomicInteger mQueuedBytes = new AtomicInteger();
+    private final AtomicInteger mDroppedBlocks = new AtomicInteger();
+
+    // Archive thread state.
+    private final Track[] mTracks = new Track[DIRECTION_NAMES.length];
+    // Directions whose encoder could not be created or failed; their audio is dropped.
+    private final boolean[] mFailed = new boolean[DIRECTION_NAMES.length];
+    private int mSegmentSequence;
+    private long mArchivedSamples;
+    private long mReportSamples;
+    private long mEncoderCpuNs;
+    private long mWrittenBytes;
+    private long mWriteNs;
+
+    /**
+     * @param directory Directory to write segments to. It is created if needed.
+     * @param sampleRate Sample rate of the archived 16-bit mono PCM.
+     * @param maxSegmentBytes Size at which a segment is closed and a new one started.
+     * @param maxTotalBytes Total size of the segments to keep. Older segments are deleted.
+     */
+    public AudioArchiver(File directory, int sampleRate, long maxSegmentBytes,
+            long maxTotalBytes) {
+        if (adtsSampleRateIndex(sampleRate) < 0) {
+            throw new IllegalArgumentException("Unsupported sample rate " + sampleRate);
+        }
+        mDirectory = directory;
+        mSampleRate = sampleRate;
+        mMaxSegmentBytes = maxSegmentBytes;
+        mMaxTotalBytes = maxTotalBytes;
+        mThread = new HandlerThread("audioArchiveThread");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Queues a block of 16-bit mono PCM for archiving. Never blocks; the block is dropped if too
+     * much audio is already queued. May be called on any thread.
+     *
+     * @param direction Either {@link #DIRECTION_USER} or {@link #DIRECTION_ASSISTANT}.
+     */
+    void archive(final int direction, final ByteString pcm) {
+        final int size = pcm.size();
+        if (mQueuedBytes.addAndGet(size) > MAX_QUEUED_BYTES) {
+            mQueuedBytes.addAndGet(-size);
+            mDroppedBlocks.incrementAndGet();
+            return;
+        }
+        boolean posted = mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mQueuedBytes.addAndGet(-size);
+                long startNs = Debug.threadCpuTimeNanos();
+                Track track = getTrack(direction);
+                if (track == null || !encode(direction, track, pcm)) {
+                    mDroppedBlocks.incrementAndGet();
+                }
+                mEncoderCpuNs += Debug.threadCpuTimeNanos() - startNs;
+                mArchivedSamples += size / 2;
+                if (mArchivedSamples - mReportSamples >= REPORT_INTERVAL_SECONDS * mSampleRate) {
+                    report();
+                }
+            }
+        });
+        if (!posted) {
+            // Shut down.
+            mQueuedBytes.addAndGet(-size);
+        }
+    }
+
+    /**
+     * Encodes the audio still queued, closes the open segments and stops the archive thread.
+     */
+    public void shutdown() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Track track : mTracks) {
+                    if (track != null) {
+                        track.close();
+                    }
+                }
+                report();
+            }
+        });
+        mThread.quitSafely();
+    }
+
+    /**
+     * Returns the track of a direction, creating it if needed, or null if its encoder failed.
+     */
+    private Track getTrack(int direction) {
+        if (mTracks[direction] == null && !mFailed[direction]) {
+            try {
+                mTracks[direction] = new Track(DIRECTION_NAMES[direction]);
+            } catch (IOException | IllegalStateException e) {
+                // Not retried: it would fail again for every block.
+                Log.e(TAG, "cannot create " + DIRECTION_NAMES[direction] + " encoder", e);
+                mFailed[direction] = true;
+            }
+        }
+        return mTracks[direction];
+    }
+
+    /**
+     * Encodes a block, giving up on the direction if its encoder fails. Returns false if the
+     * block was dropped.
+     */
+    private boolean encode(int direction, Track track, ByteString pcm) {
+        try {
+            return track.encode(pcm);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, DIRECTION_NAMES[direction] + " encoder failed", e);
+            mFailed[direction] = true;
+            mTracks[direction] = null;
+            track.abort();
+            return false;
+        }
+    }
+
+    private void report() {
+        float audioSeconds = (float) (mArchivedSamples - mReportSamples) / mSampleRate;
+        if (audioSeconds > 0) {
+            // The CPU time also covers issuing the writes, which is small next to encoding.
+            Log.i(TAG, String.format("encoder %.1f ms CPU per audio second, wrote %d KB at "
+                            + "%.0f KB/s, dropped %d blocks",
+                    (mEncoderCpuNs / 1e6f) / audioSeconds, mWrittenBytes / 1024,
+                    mWriteNs == 0 ? 0 : (mWrittenBytes / 1024f) / (mWriteNs / 1e9f),
+                    mDroppedBlocks.getAndSet(0)));
+        }
+        mReportSamples = mArchivedSamples;
+        mEncoderCpuNs = 0;
+        mWrittenBytes = 0;
+        mWriteNs = 0;
+    }
+
+    private void deleteOldSegments() {
+        File[] segments = mDirectory.listFiles();
+        if (segments == null) {
+            return;
+        }
+        // Names sort by creation time.
+        Arrays.sort(segments);
+        long totalBytes = 0;
+        for (File segment : segments) {
+            totalBytes += segment.length();
+        }
+        for (int i = 0; i < segments.length && totalBytes > mMaxTotalBytes; i++) {
+            if (!segments[i].getName().endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            long length = segments[i].length();
+            if (segments[i].delete()) {
+                totalBytes -= length;
+            } else {
+                Log.w(TAG, "failed to delete " + segments[i]);
+            }
+        }
+    }
+
+    private static int adtsSampleRateIndex(int sampleRate) {
+        for (int i = 0; i < ADTS_SAMPLE_RATES.length; i++) {
+            if (ADTS_SAMPLE_RATES[i] == sampleRate) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The encoder and segment files of one direction.
+     */
+    private class Track {
+        private final String mName;
+        private final MediaCodec mCodec;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        private final byte[] mHeader = new byte[ADTS_HEADER_SIZE];
+        private final ByteBuffer mWriteBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        private long mSamples;
+        private FileChannel mSegment;
+        private long mSegmentBytes;
+
+        Track(String name) throws IOException {
+            mName = name;
+            MediaFormat format = MediaFormat.createAudioFormat(
+                    MediaFormat.MIMETYPE_AUDIO_AAC, mSampleRate, 1);
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                    MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+            mCodec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+            mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mCodec.start();
+        }
+
+        /**
+         * Encodes a block of PCM. Returns false if the encoder stalled and the rest of the block
+         * was dropped.
+         */
+        boolean encode(ByteString pcm) {
+            int offset = 0;
+            int waits = 0;
+            while (offset < pcm.size()) {
+                int index = mCodec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+                if (index < 0) {
+                    if (++waits > MAX_INPUT_WAITS) {
+                        Log.w(TAG, mName + " encoder stalled, dropping "
+                                + (pcm.size() - offset) + " bytes");
+                        return false;
+                    }
+                    // Make room by collecting output, then retry.
+                    drain(false);
+                    continue;
+                }
+                ByteBuffer input = mCodec.getInputBuffer(index);
+                input.clear();
+                int length = Math.min(input.remaining(), pcm.size() - offset);
+                pcm.substring(offset, offset + length).copyTo(input);
+                mCodec.queueInputBuffer(index, 0, length, mSamples * 1000000L / mSampleRate, 0);
+                mSamples += length / 2;
+                offset += length;
+                drain(false);
+            }
+            return true;
+        }
+
+        void close() {
+            int index = mCodec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+            if (index >= 0) {
+                mCodec.queueInputBuffer(index, 0, 0, mSamples * 1000000L / mSampleRate,
+                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                drain(true);
+            }
+            mCodec.stop();
+            mCodec.release();
+            closeSegment();
+        }
+
+        /**
+         * Releases a failed encoder, keeping what was written of the segment.
+         */
+        void abort() {
+            mCodec.release();
+            closeSegment();
+        }
+
+        private void drain(boolean untilEndOfStream) {
+            int waits = 0;
+            while (true) {
+                int index = mCodec.dequeueOutputBuffer(mInfo,
+                        untilEndOfStream ? CODEC_TIMEOUT_US : 0);
+                if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    if (!untilEndOfStream || ++waits > MAX_END_OF_STREAM_WAITS) {
+                        return;
+                    }
+                    continue;
+                }
+                if (index < 0) {
+                    // Format or buffer changes; ADTS headers carry the format.
+                    continue;
+                }
+                if ((mInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && mInfo.size > 0) {
+                    ByteBuffer output = mCodec.getOutputBuffer(index);
+                    output.position(mInfo.offset);
+                    output.limit(mInfo.offset + mInfo.size);
+                    writeFrame(output);
+                }
+                mCodec.releaseOutputBuffer(index, false);
+                if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+
+        private void writeFrame(ByteBuffer frame) {
+            int frameLength = frame.remaining() + ADTS_HEADER_SIZE;
+            if (mWriteBuffer.remaining() < frameLength) {
+                flush();
+            }
+            if (mWriteBuffer.remaining() < frameLength) {
+                Log.w(TAG, "dropping oversized frame of " + frameLength + " bytes");
+                return;
+            }
+            int sampleRateIndex = adtsSampleRateIndex(mSampleRate);
+            // ADTS header for AAC LC, mono, no CRC.
+            mHeader[0] = (byte) 0xFF;
+            mHeader[1] = (byte) 0xF1;
+            mHeader[2] = (byte) ((1 << 6) | (sampleRateIndex << 2));
+            mHeader[3] = (byte) ((1 << 6) | (frameLength >> 11));
+            mHeader[4] = (byte) ((frameLength >> 3) & 0xFF);
+            mHeader[5] = (byte) (((frameLength & 7) << 5) | 0x1F);
+            mHeader[6] = (byte) 0xFC;
+            mWriteBuffer.put(mHeader);
+            mWriteBuffer.put(frame);
+            mSegmentBytes += frameLength;
+            if (mSegmentBytes >= mMaxSegmentBytes) {
+                closeSegment();
+            }
+        }
+
+        /**
+         * Writes the buffered frames to the current segment, opening one if needed.
+         */
+        private void flush() {
+            mWriteBuffer.flip();
+            try {
+                if (mSegment == null && mWriteBuffer.hasRemaining()) {
+                    openSegment();
+                }
+                long startNs = SystemClock.elapsedRealtimeNanos();
+                while (mWriteBuffer.hasRemaining()) {
+                    mWrittenBytes += mSegment.write(mWriteBuffer);
+                }
+                mWriteNs += SystemClock.elapsedRealtimeNanos() - startNs;
+            } catch (IOException e) {
+                Log.e(TAG, "error writing " + mName + " audio", e);
+                mWriteBuffer.clear();
+                closeSegment();
+            }
+            mWriteBuffer.clear();
+        }
+
+        private void openSegment() throws IOException {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("cannot create " + mDirectory);
+            }
+            String name = System.currentTimeMillis() + "-" + (mSegmentSequence++) + "-" + mName
+                    + SEGMENT_SUFFIX;
+            mSegment = new FileOutputStream(new File(mDirectory, name)).getChannel();
+        }
+
+        private void closeSegment() {
+            if (mWriteBuffer.position() > 0) {
+                flush();
+            }
+            mSegmentBytes = 0;
+            if (mSegment == null) {
+                return;
+            }
+            try {
+                mSegment.close();
+            } catch (IOException e) {
+                Log.w(TAG, "error closing " + mName + " segment", e);
+            }
+            mSegment = null;
+            deleteOldSegments();
+        }
+    }
+}
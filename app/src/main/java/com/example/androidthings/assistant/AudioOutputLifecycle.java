@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.media.AudioDeviceInfo;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+/**
+ * Keeps the audio output path alive between close conversation turns.
+ *
+ * <p>A reply acquires the output and releases it when done. The {@link AudioTrack} and the
+ * {@link AudioOutputPower} stay up for the warm window after a release, so a reply that follows
+ * soon starts without the cost and pop of powering up. Once the window passes without a new
+ * reply, the track is released and the output powered down; the next reply builds a fresh track,
+ * which also keeps the original workaround for audio routing changes. The output is never
+ * powered down before the audio written to it has played, even without a warm window. All
+ * methods must be called on the playback thread.
+ */
+class AudioOutputLifecycle {
+    private static final String TAG = AudioOutputLifecycle.class.getSimpleName();
+    // Added to the audio left in the track when waiting for it to play out.
+    private static final long PLAY_OUT_MARGIN_MS = 50;
+
+    private final Handler mHandler;
+    private final AudioFormat mFormat;
+    private final int mBufferSize;
+    private final AudioDeviceInfo mDevice;
+    private final AudioOutputPower mPower;
+    private final long mWarmWindowMs;
+    private final AssistantMetrics mMetrics;
+
+    private AudioTrack mTrack;
+    private boolean mWarmStart;
+    private long mAcquireMs;
+    private boolean mFirstAudioWritten;
+    // Frames written and the playback head when the reply started, to tell what is left to play.
+    private long mFramesWritten;
+    private int mHeadStart;
+
+    private final Runnable mPowerDown = new Runnable() {
+        @Override
+        public void run() {
+            shutdown();
+        }
+    };
+
+    /**
+     * @param handler Handler of the playback thread.
+     * @param format The output format.
+     * @param bufferSize The track buffer size in bytes.
+     * @param device The preferred output device, or null for the default.
+     * @param power Output hardware to switch, or null.
+     * @param warmWindowMs How long to keep the output up after a reply.
+     * @param metrics Where to record the first-audio latency.
+     */
+    AudioOutputLifecycle(Handler handler, AudioFormat format, int bufferSize,
+            @Nullable AudioDeviceInfo device, @Nullable AudioOutputPower power,
+            long warmWindowMs, AssistantMetrics metrics) {
+        mHandler = handler;
+        mFormat = format;
+        mBufferSize = bufferSize;
+        mDevice = device;
+        mPower = power;
+        mWarmWindowMs = warmWindowMs;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Returns a playing track for a reply, powering up the output if it was idle.
+     */
+    AudioTrack acquire() {
+        mHandler.removeCallbacks(mPowerDown);
+        mAcquireMs = SystemClock.elapsedRealtime();
+        mFirstAudioWritten = false;
+        mWarmStart = mTrack != null;
+        if (mTrack == null) {
+            if (mPower != null) {
+                mPower.powerUp();
+            }
+            mTrack = new AudioTrack.Builder()
+                    .setAudioFormat(mFormat)
+                    .setBufferSizeInBytes(mBufferSize)
+                    .setTransferMode(AudioTrack.MODE_STREAM)
+                    .build();
+            if (mDevice != null) {
+                mTrack.setPreferredDevice(mDevice);
+            }
+        }
+        mFramesWritten = 0;
+        mHeadStart = mTrack.getPlaybackHeadPosition();
+        mTrack.play();
+        return mTrack;
+    }
+
+    /**
+     * Records audio of the reply handed to the track.
+     *
+     * @param frames The number of frames written.
+     */
+    void onAudioWritten(int frames) {
+        mFramesWritten += frames;
+        if (mFirstAudioWritten) {
+            return;
+        }
+        mFirstAudioWritten = true;
+        long latencyMs = SystemClock.elapsedRealtime() - mAcquireMs;
+        (mWarmStart ? mMetrics.firstAudioWarmMs : mMetrics.firstAudioColdMs).record(latencyMs);
+        Log.i(TAG, (mWarmStart ? "warm" : "cold") + " first audio in " + latencyMs + " ms");
+    }
+
+    /**
+     * Ends a reply. Audio already written still plays out, and the output stays up for the warm
+     * window, or until that audio has played if it takes longer.
+     */
+    void release() {
+        if (mTrack == null) {
+            return;
+        }
+        long delayMs = Math.max(mWarmWindowMs, playOutMs());
+        mTrack.stop();
+        mHandler.postDelayed(mPowerDown, delayMs);
+    }
+
+    /**
+     * Returns how long the audio left in the track takes to play, or 0 if it will not play.
+     */
+    private long playOutMs() {
+        if (mTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
+            // A paused reply was interrupted and its audio flushed.
+            return 0;
+        }
+        int head = mTrack.getPlaybackHeadPosition();
+        if (head < mHeadStart) {
+            // A reused track may reset its position when it starts playing again.
+            mHeadStart = 0;
+        }
+        long framesLeft = mFramesWritten - (head - mHeadStart);
+        if (framesLeft <= 0) {
+            return 0;
+        }
+        return framesLeft * 1000 / mFormat.getSampleRate() + PLAY_OUT_MARGIN_MS;
+    }
+
+    /**
+     * Releases the track and powers down the output immediately.
+     */
+    void shutdown() {
+        mHandler.removeCallbacks(mPowerDown);
+        if (mTrack == null) {
+            return;
+        }
+        mTrack.release();
+        mTrack = null;
+        if (mPower != null) {
+            mPower.powerDown();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * Switches external audio output hardware, such as an amplifier, on and off.
+ *
+ * <p>Methods are called on the playback thread. {@link #powerUp()} is called before the first
+ * audio of a reply is written, and {@link #powerDown()} once the output has been idle for the
+ * warm window.
+ */
+public interface AudioOutputPower {
+
+    /**
+     * Powers up the output. Called before audio is written after the output was idle.
+     */
+    void powerUp();
+
+    /**
+     * Powers down the output. Called when the output has been idle for the warm window.
+     */
+    void powerDown();
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import java.io.IOException;
+
+/**
+ * Starts the threads that capture and play audio so they are scheduled ahead of the UI and
+ * garbage collection.
+ *
+ * <p>Threads run at {@link Process#THREAD_PRIORITY_URGENT_AUDIO}. On boards with spare cores,
+ * they can also be confined to a set of CPUs. Android has no Java API for CPU affinity, so the
+ * mask is applied with the {@code taskset} tool and is a best-effort hint: a failure is logged
+ * and the thread keeps running on any CPU.
+ */
+class AudioThreadPolicy {
+    private static final String TAG = AudioThreadPolicy.class.getSimpleName();
+
+    private final int mCpuMask;
+
+    /**
+     * @param cpuMask A bit mask of the CPUs audio threads may run on, or 0 for any CPU.
+     */
+    AudioThreadPolicy(int cpuMask) {
+        mCpuMask = cpuMask;
+    }
+
+    /**
+     * Starts a handler thread for audio work.
+     */
+    HandlerThread start(String name) {
+        HandlerThread thread = new HandlerThread(name, Process.THREAD_PRIORITY_URGENT_AUDIO);
+        thread.start();
+        if (mCpuMask != 0) {
+            new Handler(thread.getLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    setAffinity();
+                }
+            });
+        }
+        return thread;
+    }
+
+    private void setAffinity() {
+        String mask = Integer.toHexString(mCpuMask);
+        String tid = Integer.toString(Process.myTid());
+        try {
+            java.lang.Process taskset = new ProcessBuilder("taskset", "-p", mask, tid)
+                    .redirectErrorStream(true)
+                    .start();
+            if (taskset.waitFor() == 0) {
+                Log.i(TAG, Thread.currentThread().getName() + " restricted to CPU mask " + mask);
+            } else {
+                Log.w(TAG, "cannot set CPU mask " + mask + " of "
+                        + Thread.currentThread().getName());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "cannot run taskset", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
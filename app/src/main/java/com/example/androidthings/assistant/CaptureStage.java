@@ -0,0 +1,41 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * Processes microphone audio in place before it is used for hotword detection or sent to the
+ * Assistant.
+ *
+ * <p>Stages added with {@link EmbeddedAssistant.Builder#addCaptureStage(CaptureStage)} run in
+ * order on every captured block, on the Assistant thread. They share one buffer and must not
+ * block or allocate per call.
+ */
+public interface CaptureStage {
+
+    /**
+     * Processes a block of 16-bit mono PCM samples in place.
+     *
+     * @param samples The captured samples, overwritten with the result.
+     * @param length The number of valid samples in {@code samples}.
+     */
+    void process(short[] samples, int length);
+
+    /**
+     * Clears any internal state, called when capture starts.
+     */
+    void reset();
+}
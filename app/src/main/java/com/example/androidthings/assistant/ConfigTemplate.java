@@ -0,0 +1,162 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.support.annotation.Nullable;
+import com.google.assistant.embedded.v1alpha2.AssistConfig;
+import com.google.assistant.embedded.v1alpha2.AssistRequest;
+import com.google.assistant.embedded.v1alpha2.AudioInConfig;
+import com.google.assistant.embedded.v1alpha2.AudioOutConfig;
+import com.google.assistant.embedded.v1alpha2.DeviceConfig;
+import com.google.assistant.embedded.v1alpha2.DeviceLocation;
+import com.google.assistant.embedded.v1alpha2.DialogStateIn;
+import com.google.assistant.embedded.v1alpha2.ScreenOutConfig;
+import com.google.protobuf.ByteString;
+import java.util.EnumMap;
+
+/**
+ * The first request of a conversation, kept pre-built.
+ *
+ * <p>Everything but the conversation state and the text query rarely changes, so the config
+ * request is built once per audio encoding and rebuilt only after a setter changes one of its
+ * parts. A turn without conversation state reuses the pre-built request as is; otherwise only
+ * the conversation state is merged in. Safe to use from any thread.
+ */
+class ConfigTemplate {
+    private final AudioInConfig mAudioInConfig;
+    private final DeviceConfig mDeviceConfig;
+    private AudioOutConfig mAudioOutConfig;
+    @Nullable private ScreenOutConfig mScreenOutConfig;
+    private final String mLanguageCode;
+    @Nullable private final DeviceLocation mDeviceLocation;
+
+    // Built on first use and cleared by the setters.
+    private final EnumMap<AudioInConfig.Encoding, AssistRequest> mAudioRequests =
+            new EnumMap<>(AudioInConfig.Encoding.class);
+    private AssistConfig mTextConfig;
+
+    /**
+     * @param audioInConfig The audio input config. Its encoding is replaced per conversation.
+     */
+    ConfigTemplate(AudioInConfig audioInConfig, AudioOutConfig audioOutConfig,
+            DeviceConfig deviceConfig, @Nullable ScreenOutConfig screenOutConfig,
+            String languageCode, @Nullable DeviceLocation deviceLocation) {
+        mAudioInConfig = audioInConfig;
+        mAudioOutConfig = audioOutConfig;
+        mDeviceConfig = deviceConfig;
+        mScreenOutConfig = screenOutConfig;
+        mLanguageCode = languageCode;
+        mDeviceLocation = deviceLocation;
+    }
+
+    synchronized void setVolumePercentage(int volumePercentage) {
+        if (mAudioOutConfig.getVolumePercentage() != volumePercentage) {
+            mAudioOutConfig = mAudioOutConfig.toBuilder()
+                    .setVolumePercentage(volumePercentage)
+                    .build();
+            invalidate();
+        }
+    }
+
+    synchronized void setScreenOutConfig(@Nullable ScreenOutConfig screenOutConfig) {
+        mScreenOutConfig = screenOutConfig;
+        invalidate();
+    }
+
+    /**
+     * Returns the first request of a spoken conversation.
+     *
+     * @param encoding The encoding of the audio that follows.
+     * @param conversationState The state returned by the previous turn, or null.
+     */
+    synchronized AssistRequest audioRequest(AudioInConfig.Encoding encoding,
+            @Nullable ByteString conversationState) {
+        AssistRequest request = mAudioRequests.get(encoding);
+        if (request == null) {
+            AssistConfig config = newConfig()
+                    .setAudioInConfig(mAudioInConfig.toBuilder().setEncoding(encoding))
+                    .build();
+            request = AssistRequest.newBuilder().setConfig(config).build();
+            // Computed once and memoized with the request.
+            request.getSerializedSize();
+            mAudioRequests.put(encoding, request);
+        }
+        if (conversationState == null || conversationState.isEmpty()) {
+            return request;
+        }
+        return AssistRequest.newBuilder()
+                .setConfig(withState(request.getConfig(), conversationState))
+                .build();
+    }
+
+    /**
+     * Returns the first request of a text query.
+     *
+     * @param conversationState The state returned by the previous turn, or null.
+     */
+    synchronized AssistRequest textRequest(String query,
+            @Nullable ByteString conversationState) {
+        if (mTextConfig == null) {
+            mTextConfig = newConfig().build();
+        }
+        AssistConfig config = conversationState == null || conversationState.isEmpty()
+                ? mTextConfig : withState(mTextConfig, conversationState);
+        return AssistRequest.newBuilder()
+                .setConfig(config.toBuilder().setTextQuery(query))
+                .build();
+    }
+
+    /**
+     * Returns a copy of a first request in another language.
+     */
+    static AssistRequest withLanguage(AssistRequest request, String languageCode) {
+        AssistConfig config = request.getConfig();
+        return AssistRequest.newBuilder()
+                .setConfig(config.toBuilder()
+                        .setDialogStateIn(config.getDialogStateIn().toBuilder()
+                                .setLanguageCode(languageCode)))
+                .build();
+    }
+
+    private AssistConfig.Builder newConfig() {
+        DialogStateIn.Builder dialogStateIn = DialogStateIn.newBuilder()
+                .setLanguageCode(mLanguageCode);
+        if (mDeviceLocation != null) {
+            dialogStateIn.setDeviceLocation(mDeviceLocation);
+        }
+        AssistConfig.Builder config = AssistConfig.newBuilder()
+                .setAudioOutConfig(mAudioOutConfig)
+                .setDeviceConfig(mDeviceConfig)
+                .setDialogStateIn(dialogStateIn);
+        if (mScreenOutConfig != null) {
+            config.setScreenOutConfig(mScreenOutConfig);
+        }
+        return config;
+    }
+
+    private static AssistConfig withState(AssistConfig config, ByteString conversationState) {
+        return config.toBuilder()
+                .setDialogStateIn(config.getDialogStateIn().toBuilder()
+                        .setConversationState(conversationState))
+                .build();
+    }
+
+    private void invalidate() {
+        mAudioRequests.clear();
+        mTextConfig = null;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.util.Log;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the requests and responses of each {@code assist} call to a trace file so that field
+ * problems can be replayed with {@link TraceReplayService}.
+ *
+ * <p>Frames are timestamped on the calling thread and written on a background thread. Only the
+ * newest traces are kept.
+ */
+public class ConversationRecorder {
+    private static final String TAG = ConversationRecorder.class.getSimpleName();
+    private static final String TRACE_PREFIX = "trace-";
+    private static final String TRACE_SUFFIX = ".pb";
+
+    private final File mDirectory;
+    private final int mMaxTraces;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicInteger mSequence = new AtomicInteger();
+
+    /**
+     * @param directory Directory to write traces to. It is created if needed.
+     * @param maxTraces Maximum number of trace files to keep. Older traces are deleted.
+     */
+    public ConversationRecorder(File directory, int maxTraces) {
+        mDirectory = directory;
+        mMaxTraces = maxTraces;
+    }
+
+    /**
+     * Starts a new trace for one call.
+     */
+    Trace startTrace() {
+        String name = TRACE_PREFIX + System.currentTimeMillis() + "-"
+                + mSequence.getAndIncrement() + TRACE_SUFFIX;
+        return new Trace(new File(mDirectory, name));
+    }
+
+    /**
+     * Stops the writer thread after pending frames are written.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    private void execute(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The recorder was shut down; drop frames of calls still in flight.
+        }
+    }
+
+    private void deleteOldTraces() {
+        File[] traces = mDirectory.listFiles();
+        if (traces == null || traces.length <= mMaxTraces) {
+            return;
+        }
+        // Names sort by creation time.
+        Arrays.sort(traces);
+        for (int i = 0; i < traces.length - mMaxTraces; i++) {
+            if (traces[i].getName().startsWith(TRACE_PREFIX) && !traces[i].delete()) {
+                Log.w(TAG, "failed to delete " + traces[i]);
+            }
+        }
+    }
+
+    /**
+     * The trace of a single call.
+     */
+    class Trace {
+        private final File mFile;
+        private final long mStartNs = System.nanoTime();
+        private OutputStream mStream;
+        private CodedOutputStream mOutput;
+        private boolean mFailed;
+        private boolean mClosed;
+
+        private Trace(File file) {
+            mFile = file;
+        }
+
+        void recordRequest(MessageLite request) {
+            record(ConversationTrace.DIRECTION_REQUEST, request);
+        }
+
+        void recordResponse(MessageLite response) {
+            record(ConversationTrace.DIRECTION_RESPONSE, response);
+        }
+
+        void close() {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    mClosed = true;
+                    if (mStream == null) {
+                        return;
+                    }
+                    try {
+                        mOutput.flush();
+                    } catch (IOException e) {
+                        Log.w(TAG, "error closing trace " + mFile, e);
+                    } finally {
+                        closeStream();
+                    }
+                    deleteOldTraces();
+                }
+            });
+        }
+
+        private void record(final int direction, final MessageLite message) {
+            final long timestampUs = (System.nanoTime() - mStartNs) / 1000;
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mFailed || mClosed) {
+                        return;
+                    }
+                    try {
+                        if (mStream == null) {
+                            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                                throw new IOException("cannot create " + mDirectory);
+                            }
+                            mStream = new BufferedOutputStream(new FileOutputStream(mFile));
+                            mOutput = CodedOutputStream.newInstance(mStream);
+                            ConversationTrace.writeHeader(mOutput);
+                        }
+                        ConversationTrace.writeFrame(mOutput, timestampUs, direction, message);
+                    } catch (IOException e) {
+                        Log.e(TAG, "error writing trace " + mFile, e);
+                        mFailed = true;
+                        closeStream();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Closes the file, if open. Must be called on the writer thread.
+         */
+        private void closeStream() {
+            if (mStream == null) {
+                return;
+            }
+            try {
+                mStream.close();
+            } catch (IOException e) {
+                Log.w(TAG, "error closing trace " + mFile, e);
+            }
+            mStream = null;
+            mOutput = null;
+        }
+    }
+}
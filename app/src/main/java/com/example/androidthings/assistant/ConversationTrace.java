@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import com.google.assistant.embedded.v1alpha2.AssistRequest;
+import com.google.assistant.embedded.v1alpha2.AssistResponse;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The frames exchanged during one {@code assist} call, as written by
+ * {@link ConversationRecorder}.
+ *
+ * <p>A trace file starts with {@link #MAGIC} and a version byte, followed by one record per
+ * frame: the time since the call started in microseconds as a varint, a direction byte, and the
+ * length-delimited {@link AssistRequest} or {@link AssistResponse}.
+ */
+public class ConversationTrace {
+    static final byte[] MAGIC = {'A', 'S', 'T', 'R'};
+    static final int VERSION = 1;
+    static final int DIRECTION_REQUEST = 0;
+    static final int DIRECTION_RESPONSE = 1;
+
+    /**
+     * A single recorded frame. Exactly one of {@link #request} and {@link #response} is set.
+     */
+    public static class Frame {
+        public final long timestampUs;
+        public final AssistRequest request;
+        public final AssistResponse response;
+
+        Frame(long timestampUs, AssistRequest request, AssistResponse response) {
+            this.timestampUs = timestampUs;
+            this.request = request;
+            this.response = response;
+        }
+    }
+
+    private final List<Frame> mFrames;
+
+    private ConversationTrace(List<Frame> frames) {
+        mFrames = Collections.unmodifiableList(frames);
+    }
+
+    /**
+     * Returns all frames in the order they were recorded.
+     */
+    public List<Frame> getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * Returns only the response frames.
+     */
+    public List<Frame> getResponses() {
+        List<Frame> responses = new ArrayList<>();
+        for (Frame frame : mFrames) {
+            if (frame.response != null) {
+                responses.add(frame);
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Reads a trace.
+     *
+     * @param in The trace stream. It is read fully but not closed.
+     * @throws IOException If the stream is not a valid trace.
+     */
+    public static ConversationTrace read(InputStream in) throws IOException {
+        CodedInputStream input = CodedInputStream.newInstance(in);
+        input.setSizeLimit(Integer.MAX_VALUE);
+        byte[] magic = input.readRawBytes(MAGIC.length);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("Not a conversation trace");
+            }
+        }
+        int version = input.readRawByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+        List<Frame> frames = new ArrayList<>();
+        while (!input.isAtEnd()) {
+            long timestampUs = input.readUInt64();
+            int direction = input.readRawByte();
+            byte[] message = input.readRawBytes(input.readRawVarint32());
+            if (direction == DIRECTION_REQUEST) {
+                frames.add(new Frame(timestampUs, AssistRequest.parseFrom(message), null));
+            } else if (direction == DIRECTION_RESPONSE) {
+                frames.add(new Frame(timestampUs, null, AssistResponse.parseFrom(message)));
+            } else {
+                throw new IOException("Unknown frame direction " + direction);
+            }
+        }
+        return new ConversationTrace(frames);
+    }
+
+    static void writeHeader(CodedOutputStream output) throws IOException {
+        output.writeRawBytes(MAGIC);
+        output.writeRawByte(VERSION);
+    }
+
+    static void writeFrame(CodedOutputStream output, long timestampUs, int direction,
+            MessageLite message) throws IOException {
+        output.writeUInt64NoTag(timestampUs);
+        output.writeRawByte(direction);
+        output.writeUInt32NoTag(message.getSerializedSize());
+        message.writeTo(output);
+    }
+}
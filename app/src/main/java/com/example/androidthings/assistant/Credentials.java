@@ -23,16 +23,23 @@ import com.google.auth.oauth2.UserCredentials;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
 class Credentials {
     static UserCredentials fromResource(Context context, int resourceId)
             throws IOException, JSONException {
-        InputStream is = context.getResources().openRawResource(resourceId);
-        byte[] bytes = new byte[is.available()];
-        is.read(bytes);
-        JSONObject json = new JSONObject(new String(bytes, "UTF-8"));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream is = context.getResources().openRawResource(resourceId)) {
+            // available() is only an estimate, so read until the end of the stream.
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        }
+        JSONObject json = new JSONObject(bytes.toString("UTF-8"));
         return new UserCredentials(
                 json.getString("client_id"),
                 json.getString("client_secret"),
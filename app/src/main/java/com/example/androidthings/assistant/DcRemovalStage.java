@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * Removes the DC offset and rumble below a cutoff frequency with a one-pole high-pass filter.
+ *
+ * <p>Cheap microphones and codecs often add an offset that wastes headroom and skews level
+ * measurements, so this stage should come first.
+ */
+public class DcRemovalStage implements CaptureStage {
+    private final float mPole;
+    private float mPreviousInput;
+    private float mPreviousOutput;
+
+    /**
+     * @param sampleRate The rate of the processed audio.
+     * @param cutoffHz The frequency below which audio is attenuated, for example 60.
+     */
+    public DcRemovalStage(int sampleRate, float cutoffHz) {
+        mPole = (float) Math.exp(-2 * Math.PI * cutoffHz / sampleRate);
+    }
+
+    @Override
+    public void process(short[] samples, int length) {
+        float previousInput = mPreviousInput;
+        float previousOutput = mPreviousOutput;
+        for (int i = 0; i < length; i++) {
+            float input = samples[i];
+            float output = input - previousInput + mPole * previousOutput;
+            previousInput = input;
+            previousOutput = output;
+            samples[i] = clip(output);
+        }
+        mPreviousInput = previousInput;
+        mPreviousOutput = previousOutput;
+    }
+
+    @Override
+    public void reset() {
+        mPreviousInput = 0;
+        mPreviousOutput = 0;
+    }
+
+    private static short clip(float sample) {
+        if (sample > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        }
+        if (sample < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) sample;
+    }
+}
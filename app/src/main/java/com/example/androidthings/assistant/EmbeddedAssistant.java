@@ -24,10 +24,11 @@ import android.media.AudioTrack;
 import android.media.MediaRecorder.AudioSource;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.IntDef;
 import android.support.annotation.Nullable;
 import android.util.Log;
-import com.google.assistant.embedded.v1alpha2.AssistConfig;
 import com.google.assistant.embedded.v1alpha2.AssistRequest;
 import com.google.assistant.embedded.v1alpha2.AssistResponse;
 import com.google.assistant.embedded.v1alpha2.AssistResponse.EventType;
@@ -35,7 +36,6 @@ import com.google.assistant.embedded.v1alpha2.AudioInConfig;
 import com.google.assistant.embedded.v1alpha2.AudioOutConfig;
 import com.google.assistant.embedded.v1alpha2.DeviceConfig;
 import com.google.assistant.embedded.v1alpha2.DeviceLocation;
-import com.google.assistant.embedded.v1alpha2.DialogStateIn;
 import com.google.assistant.embedded.v1alpha2.DialogStateOut.MicrophoneMode;
 import com.google.assistant.embedded.v1alpha2.EmbeddedAssistantGrpc;
 import com.google.assistant.embedded.v1alpha2.ScreenOutConfig;
@@ -47,11 +47,18 @@ import io.grpc.ManagedChannelBuilder;
 import io.grpc.auth.MoreCallCredentials;
 import io.grpc.stub.StreamObserver;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -61,24 +68,39 @@ public class EmbeddedAssistant {
     private static final boolean DEBUG = false;
 
     private static final String ASSISTANT_API_ENDPOINT = "embeddedassistant.googleapis.com";
-    private static final int AUDIO_RECORD_BLOCK_SIZE = 1024;
+    private static final int AUDIO_BLOCK_DURATION_MS = 32;
+    private static final float DEFAULT_HOTWORD_CPU_BUDGET = 0.1f;
+    private static final int DEFAULT_HOTWORD_PREROLL_MS = 1000;
+    private static final int DEFAULT_UPLOAD_QUEUE_MS = 2000;
+    private static final int DEFAULT_SPEECH_UPDATES_PER_SECOND = 10;
+    private static final int DEFAULT_AUDIO_OUTPUT_WARM_WINDOW_MS = 10000;
+    private static final long DEFAULT_TEXT_QUERY_HEDGE_DELAY_MS = 1500;
+    private static final int DEFAULT_PLAYBACK_PREBUFFER_MS = 200;
+    private static final int DEFAULT_MIN_PLAYBACK_PREBUFFER_MS = 40;
+    private static final int DEFAULT_MAX_PLAYBACK_PREBUFFER_MS = 2000;
+    private static final int PLAYBACK_POLL_MS = 20;
+    private static final long PLAYBACK_SHUTDOWN_TIMEOUT_MS = 1000;
 
-    // Device Actions
-    private DeviceConfig mDeviceConfig;
+    // The first request of each conversation, kept pre-built.
+    private ConfigTemplate mConfigTemplate;
+    // Resolves text queries for the device's own traits, or null to send all to the Assistant.
+    private LocalIntentMatcher mLocalIntentMatcher;
 
     // Callbacks
     private Handler mRequestHandler;
     private RequestCallback mRequestCallback;
+    private SpeechRecognitionAggregator mSpeechRecognitionAggregator;
     private Handler mConversationHandler;
     private ConversationCallback mConversationCallback;
 
     // Assistant Thread and Runnables implementing the push-to-talk functionality.
-    private ByteString mConversationState;
+    private volatile ByteString mConversationState;
     private String mLanguageCode = "en-US";
+    // Other languages each spoken request is also recognized in.
+    private List<String> mRaceLanguageCodes = Collections.emptyList();
     private AudioRecord mAudioRecord;
     private DeviceLocation mDeviceLocation;
     private AudioInConfig mAudioInConfig;
-    private AudioOutConfig mAudioOutConfig;
     private AudioDeviceInfo mAudioInputDevice;
     private AudioDeviceInfo mAudioOutputDevice;
     private AudioFormat mAudioInputFormat;
@@ -86,213 +108,319 @@ public class EmbeddedAssistant {
     private int mAudioInputBufferSize;
     private int mAudioOutputBufferSize;
     private int mVolume = 100; // Default to maximum volume.
-    private ScreenOutConfig mScreenOutConfig;
+    private float mLoudnessTarget;
+    private GainStage mGainStage;
+    // Conversion from the API sample rate to the output device, or null if they match.
+    private Resampler mPlaybackResampler;
+    private short[] mPlaybackInput;
+    private short[] mPlaybackOutput;
 
     private MicrophoneMode mMicrophoneMode;
     private HandlerThread mAssistantThread;
     private Handler mAssistantHandler;
-    private ArrayList<ByteBuffer> mAssistantResponses = new ArrayList<>();
+    // Responses are processed on a serial executor and replies are played on their own thread,
+    // so gRPC transport threads only enqueue work.
+    private Executor mResponseExecutor;
+    private HandlerThread mResponseThread;
+    private HandlerThread mPlaybackThread;
+    private Handler mPlaybackHandler;
+    private AudioOutputLifecycle mAudioOutput;
+    private AudioOutputPower mAudioOutputPower;
+    private int mAudioOutputWarmWindowMs = DEFAULT_AUDIO_OUTPUT_WARM_WINDOW_MS;
+    private int mAudioCpuMask;
+
+    // Streaming playback state, only accessed on the playback thread. Reply audio is queued as
+    // it arrives and written to the track once the jitter buffer holds its target.
+    private JitterBufferTuner mJitterBuffer;
+    private final ArrayDeque<ByteBuffer> mPlaybackQueue = new ArrayDeque<>();
+    private long mPlaybackQueuedBytes;
+    private boolean mReplyOpen;
+    private AudioTrack mPlaybackTrack;
+    private boolean mRebuffering;
+    private long mPlaybackFramesWritten;
+    private int mPlaybackHeadStart;
+    private int mPlaybackUnderruns;
+    private long mPollPlaybackDueMs;
+
+    // Capture state, only accessed on the Assistant thread.
+    private short[] mAudioBlock;
+    private ByteBuffer mAudioBlockBytes;
+    private ShortBuffer mAudioBlockShorts;
+    // Device-rate capture block, used when the input device needs conversion.
+    private short[] mCaptureBlock;
+    private Resampler mCaptureResampler;
+    // Processing applied in place to each block, in order, before upload and hotword detection.
+    private CaptureStage[] mCaptureStages;
+    private boolean mCapturing;
+    private boolean mStreaming;
+    // When the last block was read, to measure the capture cadence, or 0 after a restart.
+    private long mLastBlockNs;
+
+    // Hotword detection, used while no conversation is streaming.
+    private HotwordStage mHotwordStage;
+    private volatile boolean mPlaying;
+
+    // Single-flight guard for requests, changed from any thread.
+    private final SessionState mSession = new SessionState();
+    private boolean mInterruptible = true;
 
     // gRPC client and stream observers.
-    private int mAudioOutSize; // Tracks the size of audio responses to determine when it ends.
-    private EmbeddedAssistantGrpc.EmbeddedAssistantStub mAssistantService;
-    private StreamObserver<AssistRequest> mAssistantRequestObserver;
-    private StreamObserver<AssistResponse> mAssistantResponseObserver =
-            new StreamObserver<AssistResponse>() {
-                @Override
-                public void onNext(final AssistResponse value) {
-                    if (DEBUG) {
-                        Log.d(TAG, "Received response: " + value.toString());
-                    }
-                    if (value.getDeviceAction() != null &&
-                        !value.getDeviceAction().getDeviceRequestJson().isEmpty()) {
-                        // Iterate through JSON object
-                        try {
-                            JSONObject deviceAction = new JSONObject(value.getDeviceAction()
-                                .getDeviceRequestJson());
-                            JSONArray inputs = deviceAction.getJSONArray("inputs");
-                            for (int i = 0; i < inputs.length(); i++) {
-                                if (inputs.getJSONObject(i).getString("intent").equals(
-                                    "action.devices.EXECUTE")) {
-                                    JSONArray commands = inputs.getJSONObject(i)
-                                        .getJSONObject("payload")
-                                        .getJSONArray("commands");
-                                    for (int j = 0; j < commands.length(); j++) {
-                                        final JSONArray execution = commands.getJSONObject(j)
-                                            .getJSONArray("execution");
-                                        for (int k = 0; k < execution.length(); k++) {
-                                            final int finalK = k;
-                                            mConversationHandler.post(new Runnable() {
-                                                @Override
-                                                public void run() {
-                                                    try {
-                                                        mConversationCallback.onDeviceAction(
-                                                            execution
-                                                                .getJSONObject(finalK)
-                                                                .getString("command"),
-                                                            execution.getJSONObject(finalK)
-                                                                .optJSONObject("params"));
-                                                    } catch (JSONException e) {
-                                                        e.printStackTrace();
-                                                    }
+    private EndpointPool mEndpointPool;
+    private AssistStream mAssistantRequestObserver;
+    // The latest call, kept after its upload ends so an interrupted reply can be cancelled.
+    private AssistStream mReplyCall;
+    private int mUploadQueueCapacity;
+    private int mUploadDropPolicy = DROP_SILENCE;
+    private final UploadStats mUploadStats = new UploadStats();
+    private NetworkQuality mNetworkQuality;
+    private MetricsRegistry mMetricsRegistry;
+    private AssistantMetrics mMetrics;
+
+    // Upload encoding of the current request, only accessed on the Assistant thread. Audio is
+    // grouped into chunks and, on poor links, compressed before it is sent.
+    private FlacEncoder mFlacEncoder;
+    private boolean mFlacAvailable = true;
+    private ByteString mUploadChunk = ByteString.EMPTY;
+    private int mUploadChunkBlocks;
+    private int mBlocksPerChunk = 1;
+    private List<String> mEndpointTargets = Collections.singletonList(ASSISTANT_API_ENDPOINT);
+    private List<ManagedChannel> mChannels;
+    private long mTextQueryHedgeDelayMs = DEFAULT_TEXT_QUERY_HEDGE_DELAY_MS;
+    private ConversationRecorder mConversationRecorder;
+    private AudioArchiver mAudioArchiver;
+
+    // Startup state. The channel and the microphone are set up in parallel by connect(), and
+    // requests made before both are ready wait on the Assistant thread.
+    private Context mCredentialsContext;
+    private int mCredentialsResourceId;
+    private Context mHotwordContext;
+    private int mHotwordResourceId;
+    private int mHotwordSampleRate;
+    private float mHotwordCpuBudget;
+    private long mConnectStartMs;
+    private int mPendingStartupTasks;
+    private boolean mReady;
+    private final ArrayList<Runnable> mDeferredUntilReady = new ArrayList<>();
+    // Counts the calls started, so a call that ended can tell whether it is still the latest.
+    private volatile int mCallGeneration;
+
+    /**
+     * Returns the observer of the responses of a call.
+     *
+     * @param generation The value of {@link #mCallGeneration} for the call.
+     */
+    private StreamObserver<AssistResponse> newResponseObserver(final int generation) {
+        return new StreamObserver<AssistResponse>() {
+            @Override
+            public void onNext(final AssistResponse value) {
+                if (DEBUG) {
+                    Log.d(TAG, "Received response: " + value.toString());
+                }
+                if (value.getDeviceAction() != null &&
+                    !value.getDeviceAction().getDeviceRequestJson().isEmpty()) {
+                    // Iterate through JSON object
+                    try {
+                        JSONObject deviceAction = new JSONObject(value.getDeviceAction()
+                            .getDeviceRequestJson());
+                        JSONArray inputs = deviceAction.getJSONArray("inputs");
+                        for (int i = 0; i < inputs.length(); i++) {
+                            if (inputs.getJSONObject(i).getString("intent").equals(
+                                "action.devices.EXECUTE")) {
+                                JSONArray commands = inputs.getJSONObject(i)
+                                    .getJSONObject("payload")
+                                    .getJSONArray("commands");
+                                for (int j = 0; j < commands.length(); j++) {
+                                    final JSONArray execution = commands.getJSONObject(j)
+                                        .getJSONArray("execution");
+                                    for (int k = 0; k < execution.length(); k++) {
+                                        final int finalK = k;
+                                        mConversationHandler.post(new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                try {
+                                                    mConversationCallback.onDeviceAction(
+                                                        execution
+                                                            .getJSONObject(finalK)
+                                                            .getString("command"),
+                                                        execution.getJSONObject(finalK)
+                                                            .optJSONObject("params"));
+                                                } catch (JSONException e) {
+                                                    e.printStackTrace();
                                                 }
-                                            });
+                                            }
+                                        });
 
-                                        }
                                     }
                                 }
                             }
-                        } catch (JSONException e) {
-                            e.printStackTrace();
                         }
+                    } catch (JSONException e) {
+                        e.printStackTrace();
                     }
-                    if (value.getEventType() == EventType.END_OF_UTTERANCE) {
-                        mRequestHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                mRequestCallback.onRequestFinish();
-                            }
-                        });
-                        mConversationHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                mConversationCallback.onResponseStarted();
-                            }
-                        });
-                    }
-                    if (value.getDialogStateOut() != null) {
-                        mConversationState = value.getDialogStateOut().getConversationState();
-                        if (value.getDialogStateOut().getVolumePercentage() != 0) {
-                            final int volumePercentage = value.getDialogStateOut().getVolumePercentage();
-                            mVolume = volumePercentage;
-                            mConversationHandler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    mConversationCallback.onVolumeChanged(volumePercentage);
-                                }
-                            });
+                }
+                if (value.getSpeechResultsCount() > 0) {
+                    mSpeechRecognitionAggregator.update(value.getSpeechResultsList());
+                }
+                if (value.getEventType() == EventType.END_OF_UTTERANCE) {
+                    mSession.transition(SessionState.LISTENING, SessionState.THINKING);
+                    mSpeechRecognitionAggregator.finish();
+                    mAssistantHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            stopStreaming();
                         }
-                        mRequestHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                mRequestCallback.onSpeechRecognition(value.getSpeechResultsList());
-                            }
-                        });
-                        mMicrophoneMode = value.getDialogStateOut().getMicrophoneMode();
-                        mConversationCallback.onAssistantResponse(value.getDialogStateOut()
-                            .getSupplementalDisplayText());
-                    }
-                    if (value.getAudioOut() != null) {
-                        if (mAudioOutSize <= value.getAudioOut().getSerializedSize()) {
-                            mAudioOutSize = value.getAudioOut().getSerializedSize();
-                        } else {
-                            mAudioOutSize = 0;
-                            onCompleted();
+                    });
+                    mRequestHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mRequestCallback.onRequestFinish();
                         }
-                        final ByteBuffer audioData =
-                            ByteBuffer.wrap(value.getAudioOut().getAudioData().toByteArray());
-                        mAssistantResponses.add(audioData);
-                        mConversationHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                mConversationCallback.onAudioSample(audioData);
-                            }
-                        });
-                    }
-                    if (value.hasScreenOut()) {
+                    });
+                    mConversationHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mConversationCallback.onResponseStarted();
+                        }
+                    });
+                }
+                if (value.getDialogStateOut() != null) {
+                    mConversationState = value.getDialogStateOut().getConversationState();
+                    if (value.getDialogStateOut().getVolumePercentage() != 0) {
+                        final int volumePercentage = value.getDialogStateOut().getVolumePercentage();
+                        mVolume = volumePercentage;
+                        // Takes effect on the audio that is currently playing.
+                        mGainStage.setVolume(volumePercentage);
+                        mConfigTemplate.setVolumePercentage(volumePercentage);
                         mConversationHandler.post(new Runnable() {
                             @Override
                             public void run() {
-                                mConversationCallback.onAssistantDisplayOut(
-                                    value.getScreenOut().getData().toStringUtf8());
+                                mConversationCallback.onVolumeChanged(volumePercentage);
                             }
                         });
                     }
-                }
-
-                @Override
-                public void onError(final Throwable t) {
+                    mMicrophoneMode = value.getDialogStateOut().getMicrophoneMode();
+                    final String displayText =
+                            value.getDialogStateOut().getSupplementalDisplayText();
                     mConversationHandler.post(new Runnable() {
                         @Override
                         public void run() {
-                            mConversationCallback.onError(t);
+                            mConversationCallback.onAssistantResponse(displayText);
                         }
                     });
                 }
-
-                @Override
-                public void onCompleted() {
-                    // create a new AudioTrack to workaround audio routing issues.
-                    AudioTrack audioTrack = new AudioTrack.Builder()
-                            .setAudioFormat(mAudioOutputFormat)
-                            .setBufferSizeInBytes(mAudioOutputBufferSize)
-                            .setTransferMode(AudioTrack.MODE_STREAM)
-                            .build();
-                    if (mAudioOutputDevice != null) {
-                        audioTrack.setPreferredDevice(mAudioOutputDevice);
+                if (value.hasAudioOut()) {
+                    if (mAudioArchiver != null) {
+                        mAudioArchiver.archive(AudioArchiver.DIRECTION_ASSISTANT,
+                                value.getAudioOut().getAudioData());
                     }
-                    audioTrack.setVolume(AudioTrack.getMaxVolume() * mVolume / 100.0f);
-                    audioTrack.play();
+                    final ByteBuffer audioData =
+                        ByteBuffer.wrap(value.getAudioOut().getAudioData().toByteArray());
+                    final long arrivalMs = SystemClock.elapsedRealtime();
+                    mPlaybackHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            queueReplyAudio(audioData, arrivalMs);
+                        }
+                    });
                     mConversationHandler.post(new Runnable() {
                         @Override
                         public void run() {
-                            mConversationCallback.onResponseStarted();
+                            mConversationCallback.onAudioSample(audioData);
                         }
                     });
-                    for (ByteBuffer audioData : mAssistantResponses) {
-                        final ByteBuffer buf = audioData;
-                        mConversationHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                mConversationCallback.onAudioSample(buf);
-                            }
-                        });
-                        audioTrack.write(buf, buf.remaining(),
-                                AudioTrack.WRITE_BLOCKING);
-                    }
-                    mAssistantResponses.clear();
-                    audioTrack.stop();
-                    audioTrack.release();
-
+                }
+                if (value.hasScreenOut()) {
                     mConversationHandler.post(new Runnable() {
                         @Override
                         public void run() {
-                            mConversationCallback.onResponseFinished();
+                            mConversationCallback.onAssistantDisplayOut(
+                                value.getScreenOut().getData().toStringUtf8());
                         }
                     });
-                    if (mMicrophoneMode == MicrophoneMode.DIALOG_FOLLOW_ON) {
-                        // Automatically start a new request
-                        startConversation();
-                    } else {
-                        // The conversation is done
-                        mConversationHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                mConversationCallback.onConversationFinished();
-                            }
-                        });
-                    }
                 }
-            };
+            }
+
+            @Override
+            public void onError(final Throwable t) {
+                mConversationHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mConversationCallback.onError(t);
+                    }
+                });
+                mAssistantHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        abortRequest();
+                    }
+                });
+            }
+
+            @Override
+            public void onCompleted() {
+                // The playback thread plays what is left of the reply, blocking on the
+                // AudioTrack.
+                mPlaybackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        finishReply(generation);
+                    }
+                });
+            }
+        };
+    }
 
     private Runnable mStreamAssistantRequest = new Runnable() {
         @Override
         public void run() {
-            ByteBuffer audioData = ByteBuffer.allocateDirect(AUDIO_RECORD_BLOCK_SIZE);
-            int result = mAudioRecord.read(audioData, audioData.capacity(),
-                    AudioRecord.READ_BLOCKING);
+            int result;
+            if (mCaptureResampler == null) {
+                result = mAudioRecord.read(mAudioBlock, 0, mAudioBlock.length,
+                        AudioRecord.READ_BLOCKING);
+            } else {
+                result = mAudioRecord.read(mCaptureBlock, 0, mCaptureBlock.length,
+                        AudioRecord.READ_BLOCKING);
+                if (result >= 0) {
+                    result = mCaptureResampler.process(mCaptureBlock, result, mAudioBlock);
+                }
+            }
             if (result < 0) {
+                mCapturing = false;
                 return;
             }
-            mRequestHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mRequestCallback.onAudioRecording();
+            long nowNs = System.nanoTime();
+            if (mLastBlockNs != 0) {
+                long intervalUs = (nowNs - mLastBlockNs) / 1000;
+                mMetrics.captureJitterUs.record(
+                        Math.abs(intervalUs - AUDIO_BLOCK_DURATION_MS * 1000));
+            }
+            mLastBlockNs = nowNs;
+            for (CaptureStage stage : mCaptureStages) {
+                stage.process(mAudioBlock, result);
+            }
+            if (mStreaming) {
+                mRequestHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mRequestCallback.onAudioRecording();
+                    }
+                });
+                uploadAudio(toByteString(mAudioBlock, result), false);
+            } else if (mHotwordStage == null) {
+                stopCapture();
+                return;
+            } else if (!mPlaying && mHotwordStage.process(mAudioBlock, result)) {
+                Log.i(TAG, "hotword detected");
+                if (onTrigger(SessionState.LISTENING, "hotword")) {
+                    mRequestHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mRequestCallback.onRequestStart();
+                        }
+                    });
+                    startStreaming(mHotwordStage.takePreroll());
                 }
-            });
-            mAssistantRequestObserver.onNext(AssistRequest.newBuilder()
-                    .setAudioIn(ByteString.copyFrom(audioData))
-                    .build());
+            }
             mAssistantHandler.post(mStreamAssistantRequest);
         }
     };
@@ -302,84 +430,772 @@ public class EmbeddedAssistant {
     private EmbeddedAssistant() {}
 
     /**
-     * Initializes the Assistant.
+     * Initializes the Assistant. Credentials, the channel and the microphone are set up in the
+     * background, and {@link ConversationCallback#onReady()} is called once they are. Requests
+     * made before then start as soon as the Assistant is ready.
      */
     public void connect() {
-        mAssistantThread = new HandlerThread("assistantThread");
-        mAssistantThread.start();
+        mConnectStartMs = SystemClock.elapsedRealtime();
+        // Capture and playback run at audio priority. The Assistant thread also writes the
+        // requests, which keeps the capture state and the upload on one thread.
+        AudioThreadPolicy audioThreads = new AudioThreadPolicy(mAudioCpuMask);
+        mAssistantThread = audioThreads.start("assistantThread");
         mAssistantHandler = new Handler(mAssistantThread.getLooper());
+        mPlaybackThread = audioThreads.start("assistantPlaybackThread");
+        mPlaybackHandler = new Handler(mPlaybackThread.getLooper());
+        mAudioOutput = new AudioOutputLifecycle(mPlaybackHandler, mAudioOutputFormat,
+                mAudioOutputBufferSize, mAudioOutputDevice, mAudioOutputPower,
+                mAudioOutputWarmWindowMs, mMetrics);
+        if (mResponseExecutor == null) {
+            mResponseThread = new HandlerThread("assistantResponseThread");
+            mResponseThread.start();
+            final Handler responseHandler = new Handler(mResponseThread.getLooper());
+            mResponseExecutor = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    responseHandler.post(command);
+                }
+            };
+        }
+
+        // Load credentials and create the stub on one thread while the microphone is set up on
+        // the Assistant thread.
+        mPendingStartupTasks = 2;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                connectService();
+            }
+        }, "assistantStartupThread").start();
+        mAssistantHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                createAudioRecord();
+                loadHotwordTemplate();
+                onStartupTaskDone();
+            }
+        });
+    }
+
+    private void connectService() {
+        UserCredentials credentials = mUserCredentials;
+        if (credentials == null && mCredentialsContext != null) {
+            try {
+                credentials = Credentials.fromResource(mCredentialsContext,
+                        mCredentialsResourceId);
+            } catch (final IOException | JSONException e) {
+                Log.e(TAG, "error loading credentials", e);
+                mConversationHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mConversationCallback.onError(e);
+                    }
+                });
+                return;
+            }
+        }
+        List<AssistantEndpoint> endpoints = new ArrayList<>();
+        if (mChannels != null) {
+            for (ManagedChannel channel : mChannels) {
+                endpoints.add(new AssistantEndpoint(channel.authority(), channel,
+                        newStub(channel, credentials)));
+            }
+        } else {
+            for (String target : mEndpointTargets) {
+                ManagedChannel channel = ManagedChannelBuilder.forTarget(target).build();
+                endpoints.add(new AssistantEndpoint(target, channel,
+                        newStub(channel, credentials)));
+            }
+        }
+        final EndpointPool pool = new EndpointPool(endpoints);
+        boolean posted = mAssistantHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mEndpointPool = pool;
+                onStartupTaskDone();
+            }
+        });
+        if (!posted) {
+            // Destroyed while starting up.
+            shutdownChannels(pool);
+        }
+    }
+
+    /**
+     * Shuts down the channels created for the endpoints. Channels given to the builder belong
+     * to the caller.
+     */
+    private void shutdownChannels(@Nullable EndpointPool pool) {
+        if (pool != null && mChannels == null) {
+            pool.shutdown();
+        }
+    }
+
+    private static EmbeddedAssistantGrpc.EmbeddedAssistantStub newStub(ManagedChannel channel,
+            @Nullable UserCredentials credentials) {
+        EmbeddedAssistantGrpc.EmbeddedAssistantStub service =
+                EmbeddedAssistantGrpc.newStub(channel);
+        if (credentials != null) {
+            service = service.withCallCredentials(MoreCallCredentials.from(credentials));
+        }
+        return service;
+    }
+
+    private void createAudioRecord() {
+        // create new AudioRecord to workaround audio routing issues.
+        mAudioRecord = new AudioRecord.Builder()
+                .setAudioSource(AudioSource.VOICE_RECOGNITION)
+                .setAudioFormat(mAudioInputFormat)
+                .setBufferSizeInBytes(mAudioInputBufferSize)
+                .build();
+        if (mAudioInputDevice != null) {
+            boolean result = mAudioRecord.setPreferredDevice(mAudioInputDevice);
+            if (!result) {
+                Log.e(TAG, "failed to set preferred input device");
+            }
+        }
+    }
+
+    /**
+     * Creates the hotword stage from the template resource, if one was set. Must be called on
+     * the Assistant thread.
+     */
+    private void loadHotwordTemplate() {
+        if (mHotwordContext == null || mHotwordStage != null) {
+            return;
+        }
+        try (InputStream wav = mHotwordContext.getResources()
+                .openRawResource(mHotwordResourceId)) {
+            mHotwordStage = new HotwordStage(
+                    TemplateHotwordDetector.fromWav(wav, mHotwordSampleRate),
+                    mHotwordSampleRate, mHotwordCpuBudget, DEFAULT_HOTWORD_PREROLL_MS);
+            Log.i(TAG, "hotword detection enabled");
+        } catch (IOException e) {
+            Log.e(TAG, "error loading hotword template", e);
+        }
+    }
+
+    /**
+     * Completes startup once the channel and the microphone are both set up. Must be called on
+     * the Assistant thread.
+     */
+    private void onStartupTaskDone() {
+        if (--mPendingStartupTasks > 0) {
+            return;
+        }
+        mReady = true;
+        long nowMs = SystemClock.elapsedRealtime();
+        Log.i(TAG, "ready " + (nowMs - mConnectStartMs) + " ms after connect, "
+                + (nowMs - Process.getStartElapsedRealtime()) + " ms after process start");
+        if (mHotwordStage != null) {
+            // Listen for the hotword continuously.
+            startCapture();
+        }
+        for (Runnable deferred : mDeferredUntilReady) {
+            deferred.run();
+        }
+        mDeferredUntilReady.clear();
+        mConversationHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mConversationCallback.onReady();
+            }
+        });
+    }
+
+    /**
+     * Runs a task on the Assistant thread once startup has completed.
+     */
+    private void postWhenReady(final Runnable task) {
+        mAssistantHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mReady) {
+                    task.run();
+                } else {
+                    mDeferredUntilReady.add(task);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts a request to the Assistant.
+     */
+    public void startConversation() {
+        if (onTrigger(SessionState.LISTENING, "request")) {
+            startListening();
+        }
+    }
+
+    /**
+     * Decides what a trigger does and records the outcome.
+     *
+     * @param requested The state the trigger asks for.
+     * @param source What fired the trigger, for the log.
+     * @return Whether the caller should start the request.
+     */
+    private boolean onTrigger(int requested, String source) {
+        int state = mSession.get();
+        switch (mSession.trigger(requested, mInterruptible)) {
+            case SessionState.ACCEPTED:
+                mMetrics.triggersAccepted.increment();
+                return true;
+            case SessionState.PREEMPTED:
+                mMetrics.triggersPreempted.increment();
+                Log.i(TAG, source + " interrupts the reply");
+                mPlaybackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        interruptReply();
+                    }
+                });
+                return false;
+            case SessionState.COALESCED:
+                mMetrics.triggersCoalesced.increment();
+                Log.i(TAG, source + " coalesced while " + SessionState.name(state));
+                return false;
+            default:
+                mMetrics.triggersRejected.increment();
+                Log.w(TAG, source + " rejected while " + SessionState.name(state));
+                return false;
+        }
+    }
+
+    /**
+     * Starts a spoken request once the session is listening.
+     */
+    private void startListening() {
+        mRequestHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mRequestCallback.onRequestStart();
+            }
+        });
+        postWhenReady(new Runnable() {
+            @Override
+            public void run() {
+                startStreaming(null);
+            }
+        });
+    }
+
+    /**
+     * Opens an audio request and starts streaming the microphone to it. Must be called on the
+     * Assistant thread.
+     *
+     * @param preroll Audio captured before the request started, such as the hotword, or null.
+     */
+    private void startStreaming(@Nullable ByteString preroll) {
+        mAssistantRequestObserver = newAssistStream(0);
+        mReplyCall = mAssistantRequestObserver;
+        AssistRequest config =
+                mConfigTemplate.audioRequest(chooseUploadEncoding(), mConversationState);
+        if (!mRaceLanguageCodes.isEmpty()) {
+            List<AssistRequest> configs = new ArrayList<>(mRaceLanguageCodes.size());
+            for (String languageCode : mRaceLanguageCodes) {
+                configs.add(ConfigTemplate.withLanguage(config, languageCode));
+            }
+            mAssistantRequestObserver.race(mLanguageCode, configs);
+        }
+        mAssistantRequestObserver.send(config);
+        if (preroll != null && !preroll.isEmpty()) {
+            uploadAudio(preroll, true);
+        }
+        mStreaming = true;
+        startCapture();
+    }
+
+    /**
+     * Sets up the upload of the next request for the current link quality and returns its audio
+     * encoding.
+     */
+    private AudioInConfig.Encoding chooseUploadEncoding() {
+        if (mFlacEncoder != null) {
+            mFlacEncoder.release();
+            mFlacEncoder = null;
+        }
+        mUploadChunk = ByteString.EMPTY;
+        mUploadChunkBlocks = 0;
+        mNetworkQuality.decide(mFlacAvailable);
+        mBlocksPerChunk = Math.max(1,
+                mNetworkQuality.getUploadChunkMs() / AUDIO_BLOCK_DURATION_MS);
+        if (mNetworkQuality.getUploadEncoding() == AudioInConfig.Encoding.FLAC) {
+            try {
+                mFlacEncoder = new FlacEncoder(mAudioInConfig.getSampleRateHertz());
+                mAssistantRequestObserver.setAudioCompressed(true);
+                return AudioInConfig.Encoding.FLAC;
+            } catch (IOException e) {
+                Log.w(TAG, "FLAC encoding unavailable, uploading LINEAR16", e);
+                mFlacAvailable = false;
+            }
+        }
+        return AudioInConfig.Encoding.LINEAR16;
+    }
+
+    /**
+     * Queues captured audio for the current request, sending it once a chunk is complete.
+     *
+     * @param pcm Little-endian 16-bit PCM at the Assistant sample rate.
+     * @param flush Whether to send the chunk now.
+     */
+    private void uploadAudio(ByteString pcm, boolean flush) {
+        if (mAudioArchiver != null) {
+            mAudioArchiver.archive(AudioArchiver.DIRECTION_USER, pcm);
+        }
+        mUploadChunk = mUploadChunk.concat(pcm);
+        mUploadChunkBlocks++;
+        if (flush || mUploadChunkBlocks >= mBlocksPerChunk) {
+            sendUploadChunk();
+        }
+    }
+
+    private void sendUploadChunk() {
+        ByteString audio = mUploadChunk;
+        mUploadChunk = ByteString.EMPTY;
+        mUploadChunkBlocks = 0;
+        if (mFlacEncoder != null) {
+            audio = mFlacEncoder.encode(audio);
+        }
+        if (!audio.isEmpty()) {
+            mAssistantRequestObserver.sendAudio(audio);
+        }
+    }
+
+    /**
+     * Sends any audio still held for the current request and ends its upload.
+     */
+    private void finishUpload() {
+        if (mAssistantRequestObserver == null) {
+            return;
+        }
+        sendUploadChunk();
+        if (mFlacEncoder != null) {
+            ByteString tail = mFlacEncoder.finish();
+            mFlacEncoder = null;
+            if (!tail.isEmpty()) {
+                mAssistantRequestObserver.sendAudio(tail);
+            }
+        }
+        mAssistantRequestObserver.halfClose();
+        mAssistantRequestObserver = null;
+    }
+
+    /**
+     * Ends the audio request once the Assistant has detected the end of the utterance. Must be
+     * called on the Assistant thread.
+     */
+    private void stopStreaming() {
+        if (!mStreaming) {
+            return;
+        }
+        mStreaming = false;
+        finishUpload();
+        if (mHotwordStage != null) {
+            mHotwordStage.reset();
+        }
+    }
+
+    /**
+     * Ends a request whose call failed, and the reply if one was playing. Must be called on the
+     * Assistant thread.
+     */
+    private void abortRequest() {
+        // The call is over, so there is nothing left to upload.
+        mAssistantRequestObserver = null;
+        stopStreaming();
+        mPlaybackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopReply();
+                mSession.set(SessionState.IDLE);
+                mConversationHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mConversationCallback.onConversationFinished();
+                    }
+                });
+            }
+        });
+    }
+
+    private void startCapture() {
+        if (mCapturing) {
+            return;
+        }
+        for (CaptureStage stage : mCaptureStages) {
+            stage.reset();
+        }
+        mAudioRecord.startRecording();
+        mCapturing = true;
+        mLastBlockNs = 0;
+        mAssistantHandler.post(mStreamAssistantRequest);
+    }
 
-        ManagedChannel channel = ManagedChannelBuilder.forTarget(ASSISTANT_API_ENDPOINT).build();
-        mAssistantService = EmbeddedAssistantGrpc.newStub(channel)
-                .withCallCredentials(MoreCallCredentials.from(mUserCredentials));
+    private void stopCapture() {
+        mAssistantHandler.removeCallbacks(mStreamAssistantRequest);
+        if (mCapturing) {
+            mAudioRecord.stop();
+            mCapturing = false;
+        }
+    }
+
+    /**
+     * Queues a chunk of reply audio and plays it once enough is buffered. Must be called on the
+     * playback thread.
+     */
+    private void queueReplyAudio(ByteBuffer audioData, long arrivalMs) {
+        int state = mSession.get();
+        if (state == SessionState.IDLE || state == SessionState.LISTENING
+                || mSession.isInterruptPending()) {
+            // Late audio of a call that failed or was interrupted.
+            return;
+        }
+        if (!mReplyOpen) {
+            mReplyOpen = true;
+            mJitterBuffer.onReplyStarted();
+        }
+        mJitterBuffer.onAudioArrived(arrivalMs, audioData.remaining());
+        mPlaybackQueue.add(audioData);
+        mPlaybackQueuedBytes += audioData.remaining();
+        playQueuedAudio(false);
+    }
+
+    /**
+     * Plays the rest of a reply and continues or finishes the conversation. Must be called on
+     * the playback thread.
+     *
+     * @param generation The generation of the call that ended.
+     */
+    private void finishReply(int generation) {
+        if (generation != mCallGeneration) {
+            // A later call took over, so this one was interrupted and its reply already stopped.
+            return;
+        }
+        // A reply without audio has nothing to play out.
+        if ((mReplyOpen || !mPlaybackQueue.isEmpty()) && !mSession.isInterruptPending()) {
+            playQueuedAudio(true);
+        }
+        if (mSession.isInterruptPending()) {
+            // interruptReply() ends the reply.
+            return;
+        }
+        pollPlayback();
+        mPlaybackHandler.removeCallbacks(mPollPlayback);
+        if (mReplyOpen) {
+            mReplyOpen = false;
+            mJitterBuffer.onReplyFinished();
+            mMetrics.playbackJitterMs.record(mJitterBuffer.getNeededMs());
+            mMetrics.playbackTargetMs.set(mJitterBuffer.getTargetMs());
+            if (DEBUG) {
+                Log.d(TAG, "reply needed " + mJitterBuffer.getNeededMs() + " ms of prebuffer, "
+                        + "next target " + mJitterBuffer.getTargetMs() + " ms");
+            }
+        }
+        mAudioOutput.release();
+        mPlaybackTrack = null;
+        mRebuffering = false;
+        mPlaying = false;
+        mMetrics.playbackBufferMs.set(0);
+
+        mConversationHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mConversationCallback.onResponseFinished();
+            }
+        });
+        int state = mSession.get();
+        int next = state != SessionState.LISTENING
+                && mMicrophoneMode == MicrophoneMode.DIALOG_FOLLOW_ON
+                ? SessionState.LISTENING : SessionState.IDLE;
+        while (!mSession.transition(state, next)) {
+            state = mSession.get();
+        }
+        if (state == SessionState.LISTENING) {
+            // The call ended before the end of the utterance.
+            mAssistantHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    stopStreaming();
+                }
+            });
+        }
+        if (next == SessionState.LISTENING) {
+            // Automatically start a new request
+            startListening();
+        } else {
+            // The conversation is done
+            mConversationHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mConversationCallback.onConversationFinished();
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes the queued reply audio to the track, first starting the reply or resuming it after
+     * an underrun once the jitter buffer holds its target.
+     *
+     * @param complete Whether all audio of the reply has arrived.
+     */
+    private void playQueuedAudio(boolean complete) {
+        boolean ready = complete || mJitterBuffer.isReady(mPlaybackQueuedBytes);
+        if (mPlaybackTrack == null) {
+            if (!ready) {
+                return;
+            }
+            startReply();
+        } else if (mRebuffering) {
+            if (!ready) {
+                return;
+            }
+            mRebuffering = false;
+        }
+        while (!mPlaybackQueue.isEmpty() && !mSession.isInterruptPending()) {
+            final ByteBuffer buf = mPlaybackQueue.poll();
+            mPlaybackQueuedBytes -= buf.remaining();
+            mConversationHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mConversationCallback.onAudioSample(buf);
+                }
+            });
+            int frames = writeAudio(mPlaybackTrack, buf);
+            mPlaybackFramesWritten += frames;
+            mAudioOutput.onAudioWritten(frames);
+        }
+    }
+
+    private void startReply() {
+        mSession.transition(SessionState.THINKING, SessionState.SPEAKING);
+        mPlaybackTrack = mAudioOutput.acquire();
+        mPlaybackFramesWritten = 0;
+        mPlaybackHeadStart = mPlaybackTrack.getPlaybackHeadPosition();
+        mPlaybackUnderruns = mPlaybackTrack.getUnderrunCount();
+        mPlaying = true;
+        mGainStage.reset();
+        if (mPlaybackResampler != null) {
+            mPlaybackResampler.reset();
+        }
+        mConversationHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mConversationCallback.onResponseStarted();
+            }
+        });
+        schedulePollPlayback();
+    }
+
+    /**
+     * Stops a reply for a trigger that interrupted it, and starts listening. Must be called on
+     * the playback thread.
+     */
+    private void interruptReply() {
+        if (!mSession.takeInterrupt()) {
+            return;
+        }
+        if (mSession.transition(SessionState.SPEAKING, SessionState.LISTENING)) {
+            stopReply();
+            mAssistantHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mReplyCall != null) {
+                        mReplyCall.cancel("interrupted by the user");
+                    }
+                }
+            });
+            startListening();
+        } else if (mSession.transition(SessionState.IDLE, SessionState.LISTENING)) {
+            // The reply ended before it could be interrupted; serve the trigger as a request.
+            startListening();
+        }
+    }
+
+    /**
+     * Stops the reply that is playing, if any, and drops the audio not played yet. Must be
+     * called on the playback thread.
+     */
+    private void stopReply() {
+        mPlaybackHandler.removeCallbacks(mPollPlayback);
+        mPlaybackQueue.clear();
+        mPlaybackQueuedBytes = 0;
+        mReplyOpen = false;
+        mRebuffering = false;
+        if (mPlaybackTrack != null) {
+            mPlaybackTrack.pause();
+            mPlaybackTrack.flush();
+            mAudioOutput.release();
+            mPlaybackTrack = null;
+            mConversationHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mConversationCallback.onResponseFinished();
+                }
+            });
+        }
+        mPlaying = false;
+        mMetrics.playbackBufferMs.set(0);
+    }
+
+    private void schedulePollPlayback() {
+        mPollPlaybackDueMs = SystemClock.uptimeMillis() + PLAYBACK_POLL_MS;
+        mPlaybackHandler.postAtTime(mPollPlayback, mPollPlaybackDueMs);
+    }
+
+    /**
+     * Checks the track of the playing reply for underruns and records the buffer level.
+     */
+    private void pollPlayback() {
+        if (mPlaybackTrack == null) {
+            return;
+        }
+        int underruns = mPlaybackTrack.getUnderrunCount();
+        if (underruns > mPlaybackUnderruns) {
+            mMetrics.playbackUnderruns.add(underruns - mPlaybackUnderruns);
+            mPlaybackUnderruns = underruns;
+            mJitterBuffer.onUnderrun();
+            // Let the queue refill to the grown target instead of playing every late chunk
+            // as soon as it arrives.
+            mRebuffering = mReplyOpen;
+        }
+        int head = mPlaybackTrack.getPlaybackHeadPosition();
+        if (head < mPlaybackHeadStart) {
+            // A reused track may reset its position when it starts playing again.
+            mPlaybackHeadStart = 0;
+        }
+        long inTrack = Math.max(0, mPlaybackFramesWritten - (head - mPlaybackHeadStart));
+        mMetrics.playbackBufferMs.set(inTrack * 1000 / mAudioOutputFormat.getSampleRate()
+                + mJitterBuffer.toMs(mPlaybackQueuedBytes));
+    }
+
+    private final Runnable mPollPlayback = new Runnable() {
+        @Override
+        public void run() {
+            mMetrics.playbackWakeupLatenessUs.record(
+                    (SystemClock.uptimeMillis() - mPollPlaybackDueMs) * 1000);
+            pollPlayback();
+            if (mPlaybackTrack != null) {
+                schedulePollPlayback();
+            }
+        }
+    };
+
+    /**
+     * Starts a call on the best endpoint.
+     *
+     * @param hedgeDelayMs Time without a response after which another endpoint is tried too, or
+     * 0 to never hedge. Only calls whose requests are all known up front should be hedged, as
+     * the hedge starts late and replays them.
+     */
+    private AssistStream newAssistStream(long hedgeDelayMs) {
+        // Flush results left over from a call that ended without END_OF_UTTERANCE.
+        mSpeechRecognitionAggregator.finish();
+        mMetrics.conversationsStarted.increment();
+        return new AssistStream(newResponseObserver(++mCallGeneration), mResponseExecutor,
+                mAssistantHandler, mUploadQueueCapacity, mUploadDropPolicy, mUploadStats,
+                mNetworkQuality.startCall(), mMetrics, mConversationRecorder)
+                .start(mEndpointPool, hedgeDelayMs);
+    }
+
+    /**
+     * Writes Assistant audio to the track, blocking until it fits.
+     *
+     * @return The number of frames written.
+     */
+    private int writeAudio(AudioTrack audioTrack, ByteBuffer audioData) {
+        int position = audioData.position();
+        int limit = audioData.limit();
+        int frames = 0;
+        while (position + 1 < limit) {
+            int count = Math.min((limit - position) / 2, mPlaybackInput.length);
+            for (int i = 0; i < count; i++, position += 2) {
+                mPlaybackInput[i] = (short) ((audioData.get(position) & 0xff)
+                        | (audioData.get(position + 1) << 8));
+            }
+            mGainStage.process(mPlaybackInput, count);
+            if (mPlaybackResampler == null) {
+                frames += Math.max(0,
+                        audioTrack.write(mPlaybackInput, 0, count, AudioTrack.WRITE_BLOCKING));
+            } else {
+                int converted =
+                        mPlaybackResampler.process(mPlaybackInput, count, mPlaybackOutput);
+                frames += Math.max(0, audioTrack.write(mPlaybackOutput, 0, converted,
+                        AudioTrack.WRITE_BLOCKING));
+            }
+        }
+        return frames;
+    }
+
+    private ByteString toByteString(short[] samples, int length) {
+        mAudioBlockShorts.clear();
+        mAudioBlockShorts.put(samples, 0, length);
+        return ByteString.copyFrom(mAudioBlockBytes.array(), 0, length * 2);
+    }
+
+    public void startConversation(final String inputQuery) {
+        if (!onTrigger(SessionState.THINKING, "text query")) {
+            return;
+        }
+        mRequestCallback.onRequestStart();
+        if (mLocalIntentMatcher != null && handleLocally(inputQuery)) {
+            mSession.transition(SessionState.THINKING, SessionState.IDLE);
+            return;
+        }
+        postWhenReady(new Runnable() {
+            @Override
+            public void run() {
+                mAssistantRequestObserver = newAssistStream(mTextQueryHedgeDelayMs);
+                mReplyCall = mAssistantRequestObserver;
+                mAssistantRequestObserver.send(
+                        mConfigTemplate.textRequest(inputQuery, mConversationState));
+            }
+        });
     }
 
     /**
-     * Starts a request to the Assistant.
+     * Handles a text query on the device if it is a command for one of the local device traits.
+     *
+     * @return Whether the query was handled.
      */
-    public void startConversation() {
-        mAudioRecord.startRecording();
+    private boolean handleLocally(String inputQuery) {
+        long startNs = System.nanoTime();
+        final LocalIntentMatcher.Match match = mLocalIntentMatcher.match(inputQuery);
+        if (match == null) {
+            mMetrics.localIntentMisses.increment();
+            return false;
+        }
         mRequestHandler.post(new Runnable() {
             @Override
             public void run() {
-                mRequestCallback.onRequestStart();
+                mRequestCallback.onRequestFinish();
             }
         });
-        mAssistantHandler.post(new Runnable() {
+        mConversationHandler.post(new Runnable() {
             @Override
             public void run() {
-                mAssistantRequestObserver = mAssistantService.assist(mAssistantResponseObserver);
-                AssistConfig.Builder assistConfigBuilder = AssistConfig.newBuilder()
-                        .setAudioInConfig(mAudioInConfig)
-                        .setAudioOutConfig(mAudioOutConfig)
-                        .setDeviceConfig(mDeviceConfig);
-                if (mScreenOutConfig != null) {
-                    assistConfigBuilder.setScreenOutConfig(mScreenOutConfig);
+                try {
+                    mConversationCallback.onDeviceAction(match.command,
+                            new JSONObject(match.params));
+                } catch (JSONException e) {
+                    e.printStackTrace();
                 }
-                DialogStateIn.Builder dialogStateInBuilder = DialogStateIn.newBuilder();
-                if (mConversationState != null) {
-                    dialogStateInBuilder.setConversationState(mConversationState);
-                }
-                if (mDeviceLocation != null) {
-                    dialogStateInBuilder.setDeviceLocation(mDeviceLocation);
-                }
-                dialogStateInBuilder.setLanguageCode(mLanguageCode);
-                assistConfigBuilder.setDialogStateIn(dialogStateInBuilder.build());
-                mAssistantRequestObserver.onNext(
-                        AssistRequest.newBuilder()
-                                .setConfig(assistConfigBuilder.build())
-                                .build());
+                mConversationCallback.onConversationFinished();
             }
         });
-        mAssistantHandler.post(mStreamAssistantRequest);
-    }
-
-    public void startConversation(final String inputQuery) {
-        mRequestCallback.onRequestStart();
-        mAssistantHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                mAssistantRequestObserver = mAssistantService.assist(mAssistantResponseObserver);
-                AssistConfig.Builder assistConfigBuilder = AssistConfig.newBuilder()
-                        .setTextQuery(inputQuery)
-                        .setAudioOutConfig(mAudioOutConfig)
-                        .setDeviceConfig(mDeviceConfig)
-                        .setScreenOutConfig(mScreenOutConfig);
-                DialogStateIn.Builder dialogStateInBuilder = DialogStateIn.newBuilder();
-                if (mConversationState != null) {
-                    dialogStateInBuilder.setConversationState(mConversationState);
-                }
-                if (mDeviceLocation != null) {
-                    dialogStateInBuilder.setDeviceLocation(mDeviceLocation);
-                }
-                dialogStateInBuilder.setLanguageCode(mLanguageCode);
-                assistConfigBuilder.setDialogStateIn(dialogStateInBuilder.build());
-                mAssistantRequestObserver.onNext(
-                    AssistRequest.newBuilder()
-                        .setConfig(assistConfigBuilder.build())
-                        .build());
+        long elapsedMs = (System.nanoTime() - startNs) / 1000000;
+        mMetrics.localIntentHits.increment();
+        // Nothing is known to be saved before the first Assistant response, or once the median
+        // is past the largest bucket.
+        if (mMetrics.responseLatencyMs.getCount() > 0) {
+            long assistantMs = mMetrics.responseLatencyMs.getQuantile(0.5);
+            if (assistantMs != Long.MAX_VALUE) {
+                mMetrics.localIntentSavedMs.record(Math.max(0, assistantMs - elapsedMs));
             }
-        });
+        }
+        Log.i(TAG, "handled \"" + inputQuery + "\" locally as " + match.command);
+        return true;
     }
 
     /**
@@ -389,15 +1205,15 @@ public class EmbeddedAssistant {
         mAssistantHandler.post(new Runnable() {
             @Override
             public void run() {
-                mAssistantHandler.removeCallbacks(mStreamAssistantRequest);
-                if (mAssistantRequestObserver != null) {
-                    mAssistantRequestObserver.onCompleted();
-                    mAssistantRequestObserver = null;
+                mSession.transition(SessionState.LISTENING, SessionState.THINKING);
+                mStreaming = false;
+                finishUpload();
+                if (mHotwordStage == null) {
+                    stopCapture();
                 }
             }
         });
 
-        mAudioRecord.stop();
         mConversationHandler.post(new Runnable() {
             @Override
             public void run() {
@@ -412,32 +1228,102 @@ public class EmbeddedAssistant {
     public static final int TEXT = 0;
     public static final int HTML = 1;
 
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({DROP_OLDEST, DROP_SILENCE})
+    public @interface DropPolicy {}
+    /** Drops the oldest queued audio when the upload queue is full. */
+    public static final int DROP_OLDEST = 0;
+    /** Drops silent audio first, then the oldest audio, when the upload queue is full. */
+    public static final int DROP_SILENCE = 1;
+
+    /**
+     * Returns statistics about audio waiting for, and dropped by, a stalled uplink.
+     */
+    public UploadStats getUploadStats() {
+        return mUploadStats;
+    }
+
+    /**
+     * Returns the link measurements and the upload encoding chosen from them.
+     */
+    public NetworkQuality getNetworkQuality() {
+        return mNetworkQuality;
+    }
+
+    /**
+     * Returns the metrics recorded by the Assistant, for export with {@link MetricsServer} or
+     * {@link MetricsRegistry#dump(java.io.File)}.
+     */
+    public MetricsRegistry getMetrics() {
+        return mMetricsRegistry;
+    }
+
+    /**
+     * Returns the endpoints calls are made to and their measured latency and health, or an empty
+     * list before the Assistant is ready.
+     */
+    public List<AssistantEndpoint> getEndpoints() {
+        EndpointPool pool = mEndpointPool;
+        return pool == null ? Collections.<AssistantEndpoint>emptyList() : pool.getEndpoints();
+    }
+
     /**
      * Set desired assistant response format.
      */
     public void setResponseFormat(@ResponseFormat int format) {
-        mScreenOutConfig = ScreenOutConfig.newBuilder()
+        mConfigTemplate.setScreenOutConfig(ScreenOutConfig.newBuilder()
                 .setScreenMode(format == HTML
                         ? ScreenOutConfig.ScreenMode.PLAYING
                         : ScreenOutConfig.ScreenMode.SCREEN_MODE_UNSPECIFIED)
-                .build();
+                .build());
     }
 
     /**
      * Removes callbacks and exists the Assistant service. This should be called when an activity is
-     * closing to safely quit the Assistant service.
+     * closing to safely quit the Assistant service. The microphone is released and the channels
+     * created for the endpoints are shut down, so {@link #connect()} can start over. Returns once
+     * the {@link AudioOutputPower} has been powered down, waiting up to
+     * {@value #PLAYBACK_SHUTDOWN_TIMEOUT_MS} ms.
      */
     public void destroy() {
         mAssistantHandler.post(new Runnable() {
             @Override
             public void run() {
-                mAssistantHandler.removeCallbacks(mStreamAssistantRequest);
+                stopCapture();
+                if (mAudioRecord != null) {
+                    mAudioRecord.release();
+                    mAudioRecord = null;
+                }
+                shutdownChannels(mEndpointPool);
+                mEndpointPool = null;
+                mReady = false;
+                mDeferredUntilReady.clear();
             }
         });
         mAssistantThread.quitSafely();
-        if (mAudioRecord != null) {
-            mAudioRecord.stop();
-            mAudioRecord = null;
+        mPlaybackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPlaybackHandler.removeCallbacks(mPollPlayback);
+                mAudioOutput.shutdown();
+            }
+        });
+        mPlaybackThread.quitSafely();
+        try {
+            // The output is powered down on the playback thread. Wait for it, so the caller can
+            // close the output hardware once this returns.
+            mPlaybackThread.join(PLAYBACK_SHUTDOWN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mPlaybackThread.isAlive()) {
+            Log.w(TAG, "playback thread still running after destroy");
+        }
+        if (mResponseThread != null) {
+            mResponseThread.quitSafely();
+            // A later connect() starts a new one.
+            mResponseThread = null;
+            mResponseExecutor = null;
         }
     }
 
@@ -462,8 +1348,20 @@ public class EmbeddedAssistant {
     public static class Builder {
         private EmbeddedAssistant mEmbeddedAssistant;
         private int mSampleRate;
+        private int mInputSampleRate;
+        private int mInputChannelCount = 1;
+        private int mOutputSampleRate;
         private String mDeviceModelId;
         private String mDeviceInstanceId;
+        private HotwordDetector mHotwordDetector;
+        private final ArrayList<CaptureStage> mCaptureStages = new ArrayList<>();
+        private float mHotwordCpuBudget = DEFAULT_HOTWORD_CPU_BUDGET;
+        private int mUploadQueueMs = DEFAULT_UPLOAD_QUEUE_MS;
+        private int mSpeechUpdatesPerSecond = DEFAULT_SPEECH_UPDATES_PER_SECOND;
+        private boolean mNetworkAdaptation = true;
+        private List<String> mLocalDeviceTraits = Collections.emptyList();
+        private int mMinPlaybackPrebufferMs = DEFAULT_MIN_PLAYBACK_PREBUFFER_MS;
+        private int mMaxPlaybackPrebufferMs = DEFAULT_MAX_PLAYBACK_PREBUFFER_MS;
 
         /**
          * Creates a Builder.
@@ -564,6 +1462,83 @@ public class EmbeddedAssistant {
             return this;
         }
 
+        /**
+         * Sets the credentials for the user from a raw resource. The resource is read in the
+         * background by {@link EmbeddedAssistant#connect()} rather than on the calling thread.
+         *
+         * @param context Context to read the resource with.
+         * @param resourceId The resource that contains the project credentials.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setCredentials(Context context, int resourceId) {
+            mEmbeddedAssistant.mCredentialsContext = context.getApplicationContext();
+            mEmbeddedAssistant.mCredentialsResourceId = resourceId;
+            return this;
+        }
+
+        /**
+         * Sets the channel used to reach the Assistant instead of the Google Assistant API
+         * endpoint, for example an in-process {@link TraceReplayService}. Credentials are
+         * optional when a channel is set. The channel is not shut down by {@link #destroy()}.
+         *
+         * @param channel The channel to use.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setChannel(ManagedChannel channel) {
+            mEmbeddedAssistant.mChannels = Collections.singletonList(channel);
+            return this;
+        }
+
+        /**
+         * Sets several channels to reach the Assistant, such as a few in-process
+         * {@link TraceReplayService} servers. Calls go to the fastest healthy channel and fail
+         * over to the others. Credentials are optional when channels are set. The channels are
+         * not shut down by {@link #destroy()}.
+         *
+         * @param channels The channels to use.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setChannels(List<ManagedChannel> channels) {
+            mEmbeddedAssistant.mChannels = new ArrayList<>(channels);
+            return this;
+        }
+
+        /**
+         * Sets the Google Assistant API endpoints to use. Each call goes to the fastest healthy
+         * endpoint, and a call that fails before any audio is answered is retried on the next.
+         *
+         * @param targets The gRPC targets, for example {@code "embeddedassistant.googleapis.com"}.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setEndpoints(List<String> targets) {
+            mEmbeddedAssistant.mEndpointTargets = new ArrayList<>(targets);
+            return this;
+        }
+
+        /**
+         * Sets how long a text query waits for a response before it is also sent to another
+         * endpoint. The first endpoint to respond is used and the other call is cancelled.
+         *
+         * @param delayMs The delay in milliseconds, or 0 to never hedge. Defaults to 1500.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setTextQueryHedgeDelay(long delayMs) {
+            mEmbeddedAssistant.mTextQueryHedgeDelayMs = delayMs;
+            return this;
+        }
+
+        /**
+         * Records every request and response to trace files that can be replayed with
+         * {@link TraceReplayService}.
+         *
+         * @param recorder The recorder, or null to disable recording.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setConversationRecorder(@Nullable ConversationRecorder recorder) {
+            mEmbeddedAssistant.mConversationRecorder = recorder;
+            return this;
+        }
+
         /**
          * Sets the audio sampling rate for input and output streams
          *
@@ -575,6 +1550,33 @@ public class EmbeddedAssistant {
             return this;
         }
 
+        /**
+         * Sets the rate and channel count used to record from the input device. Audio is
+         * down-mixed and resampled to the rate set by {@link #setAudioSampleRate(int)} before it
+         * is sent to the Assistant.
+         *
+         * @param sampleRate The capture sample rate. Defaults to the Assistant sample rate.
+         * @param channelCount The number of channels to record, 1 or 2.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setAudioInputFormat(int sampleRate, int channelCount) {
+            mInputSampleRate = sampleRate;
+            mInputChannelCount = channelCount;
+            return this;
+        }
+
+        /**
+         * Sets the rate used to play audio on the output device. Assistant responses are
+         * resampled from the rate set by {@link #setAudioSampleRate(int)}.
+         *
+         * @param sampleRate The playback sample rate. Defaults to the Assistant sample rate.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setAudioOutputSampleRate(int sampleRate) {
+            mOutputSampleRate = sampleRate;
+            return this;
+        }
+
         /**
          * Sets the volume for the Assistant response
          *
@@ -586,6 +1588,19 @@ public class EmbeddedAssistant {
             return this;
         }
 
+        /**
+         * Normalizes the loudness of Assistant responses towards a target level before the volume
+         * is applied. A limiter prevents the normalized audio from clipping.
+         *
+         * @param dbfs The target RMS level in dB relative to full scale, for example -20, or 0
+         *     to disable normalization. Disabled by default.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setAudioLoudnessTarget(float dbfs) {
+            mEmbeddedAssistant.mLoudnessTarget = dbfs;
+            return this;
+        }
+
         /**
          * Sets the model id for each Assistant request.
          *
@@ -621,11 +1636,242 @@ public class EmbeddedAssistant {
             return this;
         }
 
+        /**
+         * Also recognizes each spoken request in other languages, for households that speak
+         * more than one. The request is streamed once per language, and the reply to the one
+         * recognized most confidently is kept. Transcripts are delivered once the languages have
+         * been compared, shortly after the user stops speaking.
+         *
+         * @param languageCodes Other codes for the language, in the syntax of
+         *     {@link #setLanguageCode}. None by default.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setRaceLanguageCodes(String... languageCodes) {
+            mEmbeddedAssistant.mRaceLanguageCodes = Arrays.asList(languageCodes);
+            return this;
+        }
+
         public Builder setDeviceLocation(DeviceLocation deviceLocation) {
             mEmbeddedAssistant.mDeviceLocation = deviceLocation;
             return this;
         }
 
+        /**
+         * Sets how much audio may be held while the uplink cannot accept more data, and what is
+         * discarded once that limit is reached.
+         *
+         * @param maxQueuedMs The maximum amount of queued audio in milliseconds. Defaults to 2000.
+         * @param dropPolicy Either {@link EmbeddedAssistant#DROP_OLDEST} or
+         *     {@link EmbeddedAssistant#DROP_SILENCE}, the default.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setUploadQueue(int maxQueuedMs, @DropPolicy int dropPolicy) {
+            mUploadQueueMs = maxQueuedMs;
+            mEmbeddedAssistant.mUploadDropPolicy = dropPolicy;
+            return this;
+        }
+
+        /**
+         * Adds a stage that processes microphone audio in place before it is uploaded or fed to
+         * the hotword detector. Stages run in the order they are added, on the Assistant thread,
+         * and must not allocate or block.
+         *
+         * @param stage The stage, which must expect the Assistant sample rate.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder addCaptureStage(CaptureStage stage) {
+            mCaptureStages.add(stage);
+            return this;
+        }
+
+        /**
+         * Sets a {@link HotwordDetector} used to start conversations hands-free. When set, the
+         * microphone is captured continuously after {@link EmbeddedAssistant#connect()} and fed
+         * to the detector whenever no conversation is streaming.
+         *
+         * @param detector The detector, or null to disable hotword detection.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setHotwordDetector(@Nullable HotwordDetector detector) {
+            mHotwordDetector = detector;
+            return this;
+        }
+
+        /**
+         * Sets a recording of the hotword used to start conversations hands-free with a
+         * {@link TemplateHotwordDetector}. The recording is read in the background by
+         * {@link EmbeddedAssistant#connect()}, and listening starts once the Assistant is ready.
+         * Ignored if a detector is set with {@link #setHotwordDetector(HotwordDetector)}.
+         *
+         * @param context Context to read the resource with.
+         * @param resourceId A raw resource holding a 16-bit PCM WAV recording at the Assistant
+         *     sample rate.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setHotwordTemplate(Context context, int resourceId) {
+            mEmbeddedAssistant.mHotwordContext = context.getApplicationContext();
+            mEmbeddedAssistant.mHotwordResourceId = resourceId;
+            return this;
+        }
+
+        /**
+         * Sets the average share of one CPU core the hotword detector may use. Blocks are
+         * skipped while the detector is over budget.
+         *
+         * @param cpuBudget A fraction in the range 0 - 1. Defaults to 0.1.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setHotwordCpuBudget(float cpuBudget) {
+            mHotwordCpuBudget = cpuBudget;
+            return this;
+        }
+
+        /**
+         * Sets an archiver that keeps a compressed copy of the user and Assistant audio of every
+         * conversation. Audio is handed over without blocking capture or playback.
+         *
+         * @param archiver The archiver, which must use the Assistant sample rate, or null.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setAudioArchiver(@Nullable AudioArchiver archiver) {
+            mEmbeddedAssistant.mAudioArchiver = archiver;
+            return this;
+        }
+
+        /**
+         * Sets the hardware to power up before replies are played and down once the output is
+         * idle, such as the enable pin of an amplifier.
+         *
+         * @param power The output hardware, or null if there is none.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setAudioOutputPower(@Nullable AudioOutputPower power) {
+            mEmbeddedAssistant.mAudioOutputPower = power;
+            return this;
+        }
+
+        /**
+         * Sets how long the audio output stays up after a reply. A reply that starts within the
+         * window reuses the running output, which avoids the latency and pop of powering up.
+         *
+         * @param warmWindowMs The window in milliseconds, or 0 to power down after every reply.
+         *     Defaults to 10000.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setAudioOutputWarmWindow(int warmWindowMs) {
+            mEmbeddedAssistant.mAudioOutputWarmWindowMs = warmWindowMs;
+            return this;
+        }
+
+        /**
+         * Sets the device traits whose text queries are handled on the device. Queries such as
+         * "turn on the light" are passed to {@link ConversationCallback#onDeviceAction} without
+         * a round trip to the Assistant; other queries are sent as usual.
+         *
+         * @param traits Traits registered for the device model. Only
+         *     {@code action.devices.traits.OnOff} is supported.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setLocalDeviceTraits(String... traits) {
+            mLocalDeviceTraits = Arrays.asList(traits);
+            return this;
+        }
+
+        /**
+         * Sets whether a spoken request started while a reply is playing interrupts the reply.
+         * Otherwise such requests are rejected until the reply ends.
+         *
+         * @param interruptible Whether replies can be interrupted. Defaults to true.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setInterruptible(boolean interruptible) {
+            mEmbeddedAssistant.mInterruptible = interruptible;
+            return this;
+        }
+
+        /**
+         * Sets the range of the jitter buffer. Replies start playing once this much audio has
+         * arrived, and the amount adapts within the range to how evenly audio arrives.
+         *
+         * @param minMs The lowest prebuffer in milliseconds. Defaults to 40.
+         * @param maxMs The highest prebuffer in milliseconds. Defaults to 2000.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setPlaybackPrebuffer(int minMs, int maxMs) {
+            mMinPlaybackPrebufferMs = minMs;
+            mMaxPlaybackPrebufferMs = maxMs;
+            return this;
+        }
+
+        /**
+         * Confines the capture and playback threads to a set of CPUs, for example to keep them
+         * off the core that runs the UI. This is a hint: if the mask cannot be applied, the
+         * threads run on any CPU.
+         *
+         * @param cpuMask A bit mask of CPUs, where bit 0 is CPU 0, or 0 for any CPU. Defaults
+         *     to 0.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setAudioCpuAffinity(int cpuMask) {
+            mEmbeddedAssistant.mAudioCpuMask = cpuMask;
+            return this;
+        }
+
+        /**
+         * Sets the executor that processes Assistant responses before callbacks are posted to
+         * their handlers. gRPC transport threads only hand responses to this executor, and audio
+         * playback runs on a separate thread.
+         *
+         * @param executor An executor that runs tasks one at a time, in order. Defaults to a
+         *     dedicated thread.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setResponseExecutor(Executor executor) {
+            mEmbeddedAssistant.mResponseExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Sets the registry the Assistant records its metrics in, to export them together with
+         * the application's own.
+         *
+         * @param registry The registry. Defaults to a registry of its own.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setMetrics(MetricsRegistry registry) {
+            mEmbeddedAssistant.mMetricsRegistry = registry;
+            return this;
+        }
+
+        /**
+         * Sets whether the upload encoding and chunk size adapt to the measured link quality.
+         * When enabled, conversations on a poor link upload FLAC in larger chunks.
+         *
+         * @param enabled Whether to adapt. Defaults to true.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setNetworkAdaptation(boolean enabled) {
+            mNetworkAdaptation = enabled;
+            return this;
+        }
+
+        /**
+         * Sets how often partial speech recognition results are delivered to
+         * {@link RequestCallback#onSpeechRecognition(List)}. Intermediate hypotheses are
+         * coalesced so only the latest is delivered, and the final transcript is delivered as
+         * soon as the utterance ends.
+         *
+         * @param updatesPerSecond The maximum number of updates per second. Defaults to 10.
+         * @return Returns this builder to allow for chaining.
+         */
+        public Builder setSpeechRecognitionUpdateRate(int updatesPerSecond) {
+            if (updatesPerSecond <= 0) {
+                throw new IllegalArgumentException("The update rate must be positive");
+            }
+            mSpeechUpdatesPerSecond = updatesPerSecond;
+            return this;
+        }
+
         /**
          * Returns an AssistantManager if all required parameters have been supplied.
          *
@@ -639,72 +1885,134 @@ public class EmbeddedAssistant {
             if (mEmbeddedAssistant.mConversationCallback == null) {
                 throw new NullPointerException("There must be a defined ConversationCallback");
             }
-            if (mEmbeddedAssistant.mUserCredentials == null) {
+            if (mEmbeddedAssistant.mUserCredentials == null
+                    && mEmbeddedAssistant.mCredentialsContext == null
+                    && mEmbeddedAssistant.mChannels == null) {
                 throw new NullPointerException("There must be provided credentials");
             }
+            if ((mEmbeddedAssistant.mChannels != null && mEmbeddedAssistant.mChannels.isEmpty())
+                    || mEmbeddedAssistant.mEndpointTargets.isEmpty()) {
+                throw new IllegalArgumentException("There must be at least one endpoint");
+            }
             if (mSampleRate == 0) {
                 throw new NullPointerException("There must be a defined sample rate");
             }
+            if (mInputChannelCount != 1 && mInputChannelCount != 2) {
+                throw new IllegalArgumentException("Input must be mono or stereo");
+            }
             final int audioEncoding = AudioFormat.ENCODING_PCM_16BIT;
+            final int inputSampleRate = mInputSampleRate == 0 ? mSampleRate : mInputSampleRate;
+            final int outputSampleRate = mOutputSampleRate == 0 ? mSampleRate : mOutputSampleRate;
 
             // Construct audio configurations.
             mEmbeddedAssistant.mAudioInConfig = AudioInConfig.newBuilder()
                     .setEncoding(AudioInConfig.Encoding.LINEAR16)
                     .setSampleRateHertz(mSampleRate)
                     .build();
-            mEmbeddedAssistant.mAudioOutConfig = AudioOutConfig.newBuilder()
+            AudioOutConfig audioOutConfig = AudioOutConfig.newBuilder()
                     .setEncoding(AudioOutConfig.Encoding.LINEAR16)
                     .setSampleRateHertz(mSampleRate)
                     .setVolumePercentage(mEmbeddedAssistant.mVolume)
                     .build();
 
-            // Initialize Audio framework parameters.
-            mEmbeddedAssistant.mAudioInputFormat = new AudioFormat.Builder()
-                    .setChannelMask(AudioFormat.CHANNEL_IN_MONO)
-                    .setEncoding(audioEncoding)
-                    .setSampleRate(mSampleRate)
-                    .build();
+            // Initialize Audio framework parameters. The builders are not chained, so the
+            // mockable android.jar of unit tests, which returns null from every call, can build
+            // an Assistant.
+            final int inputChannelMask = mInputChannelCount == 2
+                    ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+            mEmbeddedAssistant.mAudioInputFormat =
+                    pcmFormat(inputChannelMask, audioEncoding, inputSampleRate);
             mEmbeddedAssistant.mAudioInputBufferSize = AudioRecord.getMinBufferSize(
-                    mEmbeddedAssistant.mAudioInputFormat.getSampleRate(),
-                    mEmbeddedAssistant.mAudioInputFormat.getChannelMask(),
-                    mEmbeddedAssistant.mAudioInputFormat.getEncoding());
-            mEmbeddedAssistant.mAudioOutputFormat = new AudioFormat.Builder()
-                    .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
-                    .setEncoding(audioEncoding)
-                    .setSampleRate(mSampleRate)
-                    .build();
+                    inputSampleRate, inputChannelMask, audioEncoding);
+            mEmbeddedAssistant.mAudioOutputFormat =
+                    pcmFormat(AudioFormat.CHANNEL_OUT_MONO, audioEncoding, outputSampleRate);
             mEmbeddedAssistant.mAudioOutputBufferSize = AudioTrack.getMinBufferSize(
-                    mEmbeddedAssistant.mAudioOutputFormat.getSampleRate(),
-                    mEmbeddedAssistant.mAudioOutputFormat.getChannelMask(),
-                    mEmbeddedAssistant.mAudioOutputFormat.getEncoding());
-
-            // create new AudioRecord to workaround audio routing issues.
-            mEmbeddedAssistant.mAudioRecord = new AudioRecord.Builder()
-                    .setAudioSource(AudioSource.VOICE_RECOGNITION)
-                    .setAudioFormat(mEmbeddedAssistant.mAudioInputFormat)
-                    .setBufferSizeInBytes(mEmbeddedAssistant.mAudioInputBufferSize)
-                    .build();
-            if (mEmbeddedAssistant.mAudioInputDevice != null) {
-                boolean result = mEmbeddedAssistant.mAudioRecord.setPreferredDevice(
-                        mEmbeddedAssistant.mAudioInputDevice);
-                if (!result) {
-                    Log.e(TAG, "failed to set preferred input device");
-                }
+                    outputSampleRate, AudioFormat.CHANNEL_OUT_MONO, audioEncoding);
+
+            // Capture and playback blocks of 32 ms, with conversion where the devices run at a
+            // different rate or channel count than the Assistant.
+            int blockSamples = mSampleRate * AUDIO_BLOCK_DURATION_MS / 1000;
+            if (inputSampleRate != mSampleRate || mInputChannelCount != 1) {
+                int captureSamples =
+                        inputSampleRate * AUDIO_BLOCK_DURATION_MS / 1000 * mInputChannelCount;
+                mEmbeddedAssistant.mCaptureBlock = new short[captureSamples];
+                mEmbeddedAssistant.mCaptureResampler = new Resampler(inputSampleRate,
+                        mSampleRate, mInputChannelCount, captureSamples);
+                blockSamples = Math.max(blockSamples,
+                        mEmbeddedAssistant.mCaptureResampler.getMaxOutputSamples());
+            }
+            mEmbeddedAssistant.mAudioBlock = new short[blockSamples];
+            mEmbeddedAssistant.mUploadQueueCapacity =
+                    Math.max(1, mUploadQueueMs / AUDIO_BLOCK_DURATION_MS);
+            mEmbeddedAssistant.mAudioBlockBytes =
+                    ByteBuffer.allocate(blockSamples * 2).order(ByteOrder.LITTLE_ENDIAN);
+            mEmbeddedAssistant.mAudioBlockShorts =
+                    mEmbeddedAssistant.mAudioBlockBytes.asShortBuffer();
+            int playbackSamples = mSampleRate * AUDIO_BLOCK_DURATION_MS / 1000;
+            mEmbeddedAssistant.mPlaybackInput = new short[playbackSamples];
+            mEmbeddedAssistant.mGainStage =
+                    new GainStage(mSampleRate, mEmbeddedAssistant.mVolume);
+            mEmbeddedAssistant.mGainStage.setLoudnessTarget(mEmbeddedAssistant.mLoudnessTarget);
+            if (outputSampleRate != mSampleRate) {
+                mEmbeddedAssistant.mPlaybackResampler = new Resampler(mSampleRate,
+                        outputSampleRate, 1, playbackSamples);
+                mEmbeddedAssistant.mPlaybackOutput =
+                        new short[mEmbeddedAssistant.mPlaybackResampler.getMaxOutputSamples()];
+            }
+
+            mEmbeddedAssistant.mCaptureStages =
+                    mCaptureStages.toArray(new CaptureStage[mCaptureStages.size()]);
+            if (!mLocalDeviceTraits.isEmpty()) {
+                mEmbeddedAssistant.mLocalIntentMatcher =
+                        new LocalIntentMatcher(mLocalDeviceTraits);
+            }
+            mEmbeddedAssistant.mJitterBuffer = new JitterBufferTuner(mSampleRate,
+                    DEFAULT_PLAYBACK_PREBUFFER_MS, mMinPlaybackPrebufferMs,
+                    mMaxPlaybackPrebufferMs);
+            if (mHotwordDetector != null) {
+                mEmbeddedAssistant.mHotwordStage = new HotwordStage(mHotwordDetector,
+                        mSampleRate, mHotwordCpuBudget, DEFAULT_HOTWORD_PREROLL_MS);
             }
+            mEmbeddedAssistant.mHotwordSampleRate = mSampleRate;
+            mEmbeddedAssistant.mHotwordCpuBudget = mHotwordCpuBudget;
+
+            if (mEmbeddedAssistant.mMetricsRegistry == null) {
+                mEmbeddedAssistant.mMetricsRegistry = new MetricsRegistry();
+            }
+            mEmbeddedAssistant.mMetrics =
+                    new AssistantMetrics(mEmbeddedAssistant.mMetricsRegistry);
+            mEmbeddedAssistant.mNetworkQuality = new NetworkQuality(mNetworkAdaptation,
+                    mEmbeddedAssistant.mMetrics);
+            mEmbeddedAssistant.mSpeechRecognitionAggregator = new SpeechRecognitionAggregator(
+                    mEmbeddedAssistant.mRequestHandler, mEmbeddedAssistant.mRequestCallback,
+                    mSpeechUpdatesPerSecond);
 
             // Construct DeviceConfig
-            mEmbeddedAssistant.mDeviceConfig = DeviceConfig.newBuilder()
+            DeviceConfig deviceConfig = DeviceConfig.newBuilder()
                 .setDeviceId(mDeviceInstanceId)
                 .setDeviceModelId(mDeviceModelId)
                 .build();
 
             // Construct default ScreenOutConfig
-            mEmbeddedAssistant.mScreenOutConfig = ScreenOutConfig.newBuilder()
+            ScreenOutConfig screenOutConfig = ScreenOutConfig.newBuilder()
                     .setScreenMode(ScreenOutConfig.ScreenMode.SCREEN_MODE_UNSPECIFIED)
                     .build();
 
+            mEmbeddedAssistant.mConfigTemplate = new ConfigTemplate(
+                    mEmbeddedAssistant.mAudioInConfig, audioOutConfig, deviceConfig,
+                    screenOutConfig, mEmbeddedAssistant.mLanguageCode,
+                    mEmbeddedAssistant.mDeviceLocation);
+
             return mEmbeddedAssistant;
         }
+
+        private static AudioFormat pcmFormat(int channelMask, int encoding, int sampleRate) {
+            AudioFormat.Builder builder = new AudioFormat.Builder();
+            builder.setChannelMask(channelMask);
+            builder.setEncoding(encoding);
+            builder.setSampleRate(sampleRate);
+            return builder.build();
+        }
     }
 
     /**
@@ -729,7 +2037,8 @@ public class EmbeddedAssistant {
         public void onAudioRecording() {}
 
         /**
-         * Called when the request is complete and the Assistant returns the user's speech-to-text.
+         * Called with the latest hypothesis of the user's speech-to-text. Partial results are
+         * coalesced, and the last call before {@link #onRequestFinish()} has the final transcript.
          */
         public void onSpeechRecognition(List<SpeechRecognitionResult> results) {}
     }
@@ -799,5 +2108,11 @@ public class EmbeddedAssistant {
          * Called when the entire conversation is finished.
          */
         public void onConversationFinished() {}
+
+        /**
+         * Called once {@link EmbeddedAssistant#connect()} has set up the channel and the
+         * microphone.
+         */
+        public void onReady() {}
     }
 }
\ No newline at end of file
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.support.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The Assistant endpoints a device may use, in order of preference.
+ *
+ * <p>Healthy endpoints are preferred over ones backing off after a failure, and among them the
+ * one with the lowest latency; endpoints without measurements yet are tried first so every
+ * endpoint gets measured.
+ */
+class EndpointPool {
+    private final List<AssistantEndpoint> mEndpoints;
+
+    EndpointPool(List<AssistantEndpoint> endpoints) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("There must be at least one endpoint");
+        }
+        mEndpoints = Collections.unmodifiableList(endpoints);
+    }
+
+    List<AssistantEndpoint> getEndpoints() {
+        return mEndpoints;
+    }
+
+    /**
+     * Shuts down the channels of the endpoints.
+     */
+    void shutdown() {
+        for (AssistantEndpoint endpoint : mEndpoints) {
+            endpoint.getChannel().shutdown();
+        }
+    }
+
+    /**
+     * Returns the best endpoint not in {@code exclude}, or null if all have been excluded. An
+     * unhealthy endpoint is returned only if no healthy one is left.
+     */
+    @Nullable
+    AssistantEndpoint choose(Set<AssistantEndpoint> exclude) {
+        AssistantEndpoint best = null;
+        boolean bestHealthy = false;
+        for (AssistantEndpoint endpoint : mEndpoints) {
+            if (exclude.contains(endpoint)) {
+                continue;
+            }
+            boolean healthy = endpoint.isHealthy();
+            if (best == null || (healthy && !bestHealthy)
+                    || (healthy == bestHealthy
+                            && endpoint.getLatencyMs() < best.getLatencyMs())) {
+                best = endpoint;
+                bestHealthy = healthy;
+            }
+        }
+        return best;
+    }
+}
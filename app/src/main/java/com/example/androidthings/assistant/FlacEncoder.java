@@ -0,0 +1,156 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes 16-bit mono PCM into a FLAC stream for one request.
+ *
+ * <p>The first bytes returned include the {@code fLaC} marker and stream info, so each request
+ * needs its own encoder. Calls never wait long on the codec, so the encoder can run on the
+ * capture thread. It is not thread-safe.
+ */
+class FlacEncoder {
+    private static final String TAG = FlacEncoder.class.getSimpleName();
+    // Favors CPU over size; higher levels gain little on speech.
+    private static final int COMPRESSION_LEVEL = 2;
+    private static final long INPUT_TIMEOUT_US = 2000;
+    private static final int MAX_INPUT_WAITS = 10;
+    private static final long END_OF_STREAM_TIMEOUT_US = 5000;
+    private static final int MAX_END_OF_STREAM_WAITS = 20;
+
+    private final MediaCodec mCodec;
+    private final int mSampleRate;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private long mSamples;
+    private ByteString mOutput = ByteString.EMPTY;
+
+    FlacEncoder(int sampleRate) throws IOException {
+        mSampleRate = sampleRate;
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_FLAC,
+                sampleRate, 1);
+        format.setInteger(MediaFormat.KEY_FLAC_COMPRESSION_LEVEL, COMPRESSION_LEVEL);
+        mCodec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_FLAC);
+        try {
+            mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mCodec.start();
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            mCodec.release();
+            throw new IOException("cannot configure FLAC encoder", e);
+        }
+    }
+
+    /**
+     * Encodes little-endian PCM and returns the FLAC bytes that are ready, which may be empty
+     * while the encoder fills a frame.
+     */
+    ByteString encode(ByteString pcm) {
+        int offset = 0;
+        int waits = 0;
+        while (offset < pcm.size()) {
+            int index = mCodec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+            if (index < 0) {
+                if (++waits > MAX_INPUT_WAITS) {
+                    Log.w(TAG, "encoder stalled, dropping " + (pcm.size() - offset) + " bytes");
+                    break;
+                }
+                // Make room by collecting output, then retry.
+                drain(0);
+                continue;
+            }
+            ByteBuffer input = mCodec.getInputBuffer(index);
+            input.clear();
+            int length = Math.min(input.remaining() & ~1, pcm.size() - offset);
+            pcm.substring(offset, offset + length).copyTo(input);
+            mCodec.queueInputBuffer(index, 0, length, presentationTimeUs(), 0);
+            mSamples += length / 2;
+            offset += length;
+        }
+        drain(0);
+        return takeOutput();
+    }
+
+    /**
+     * Ends the stream, returns the remaining FLAC bytes and releases the encoder.
+     */
+    ByteString finish() {
+        try {
+            int index = mCodec.dequeueInputBuffer(END_OF_STREAM_TIMEOUT_US);
+            if (index >= 0) {
+                mCodec.queueInputBuffer(index, 0, 0, presentationTimeUs(),
+                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                drain(END_OF_STREAM_TIMEOUT_US);
+            } else {
+                Log.w(TAG, "no input buffer to end the stream");
+            }
+            return takeOutput();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Releases the encoder without finishing the stream.
+     */
+    void release() {
+        mCodec.stop();
+        mCodec.release();
+    }
+
+    private void drain(long timeoutUs) {
+        int waits = 0;
+        while (true) {
+            int index = mCodec.dequeueOutputBuffer(mInfo, timeoutUs);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (timeoutUs == 0 || ++waits > MAX_END_OF_STREAM_WAITS) {
+                    return;
+                }
+                continue;
+            }
+            if (index < 0) {
+                continue;
+            }
+            if (mInfo.size > 0) {
+                // Codec config buffers hold the stream header, which the server needs too.
+                ByteBuffer output = mCodec.getOutputBuffer(index);
+                output.position(mInfo.offset);
+                output.limit(mInfo.offset + mInfo.size);
+                mOutput = mOutput.concat(ByteString.copyFrom(output));
+            }
+            mCodec.releaseOutputBuffer(index, false);
+            if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return;
+            }
+        }
+    }
+
+    private ByteString takeOutput() {
+        ByteString output = mOutput;
+        mOutput = ByteString.EMPTY;
+        return output;
+    }
+
+    private long presentationTimeUs() {
+        return mSamples * 1000000L / mSampleRate;
+    }
+}
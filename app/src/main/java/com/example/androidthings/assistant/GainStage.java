@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * Software volume for Assistant playback, applied in place to each PCM block.
+ *
+ * <p>Volume changes are ramped so they can take effect mid-response without clicks. An optional
+ * loudness target slowly normalizes the level of different responses, and a peak limiter keeps
+ * the boosted signal from clipping. Without a loudness target the volume never boosts, so the
+ * limiter is bypassed.
+ */
+class GainStage {
+    private static final int RAMP_MS = 30;
+    private static final float LIMIT = 0.89f * Short.MAX_VALUE; // -1 dBFS
+    private static final float LIMITER_RELEASE_MS = 50;
+    // Blocks quieter than -50 dBFS are treated as silence and do not move the loudness estimate.
+    private static final float LOUDNESS_GATE = 0.0032f * Short.MAX_VALUE;
+    private static final float LOUDNESS_SMOOTHING = 0.1f;
+    private static final float MIN_LOUDNESS_GAIN = 0.25f;
+    private static final float MAX_LOUDNESS_GAIN = 4f;
+
+    private final float mRampStep;
+    private final float mReleaseCoefficient;
+
+    private volatile float mVolume;
+    private volatile float mLoudnessTarget;
+
+    // Playback thread state.
+    private float mGain;
+    private float mLoudnessGain = 1f;
+    private float mLevel;
+    private float mLimiterGain = 1f;
+
+    /**
+     * @param sampleRate The rate of the processed audio.
+     * @param volume The initial volume in the range 0 - 100.
+     */
+    GainStage(int sampleRate, int volume) {
+        mRampStep = 1000f / (RAMP_MS * sampleRate);
+        mReleaseCoefficient = (float) (1 - Math.exp(-1000.0 / (LIMITER_RELEASE_MS * sampleRate)));
+        mVolume = volume / 100f;
+        mGain = mVolume;
+    }
+
+    /**
+     * Changes the volume. The new level is reached within {@value #RAMP_MS} ms of playback.
+     *
+     * @param volume The volume in the range 0 - 100.
+     */
+    void setVolume(int volume) {
+        mVolume = Math.max(0, Math.min(100, volume)) / 100f;
+    }
+
+    /**
+     * Enables loudness normalization towards an RMS level.
+     *
+     * @param dbfs The target RMS level in dB relative to full scale, or 0 to disable.
+     */
+    void setLoudnessTarget(float dbfs) {
+        mLoudnessTarget = dbfs >= 0 ? 0 : (float) Math.pow(10, dbfs / 20) * Short.MAX_VALUE;
+    }
+
+    /**
+     * Resets the level estimates between responses. The current volume is kept.
+     */
+    void reset() {
+        mLevel = 0;
+        mLoudnessGain = 1f;
+        mLimiterGain = 1f;
+    }
+
+    /**
+     * Applies the gain in place.
+     */
+    void process(short[] samples, int length) {
+        float loudnessTarget = mLoudnessTarget;
+        if (loudnessTarget > 0) {
+            updateLoudness(samples, length, loudnessTarget);
+        } else {
+            mLoudnessGain = 1f;
+        }
+        float target = mVolume * mLoudnessGain;
+        float gain = mGain;
+        if (loudnessTarget <= 0 && target <= 1f && gain <= 1f) {
+            // Nothing is boosted, so the limiter is bypassed and unity gain leaves the audio as is.
+            mGain = attenuate(samples, length, gain, target);
+            mLimiterGain = 1f;
+            return;
+        }
+        float limiterGain = mLimiterGain;
+        for (int i = 0; i < length; i++) {
+            if (gain < target) {
+                gain = Math.min(target, gain + mRampStep);
+            } else if (gain > target) {
+                gain = Math.max(target, gain - mRampStep);
+            }
+            float sample = samples[i] * gain;
+            float magnitude = Math.abs(sample);
+            if (magnitude * limiterGain > LIMIT) {
+                limiterGain = LIMIT / magnitude;
+            } else {
+                limiterGain += (1f - limiterGain) * mReleaseCoefficient;
+            }
+            sample *= limiterGain;
+            if (sample > Short.MAX_VALUE) {
+                sample = Short.MAX_VALUE;
+            } else if (sample < Short.MIN_VALUE) {
+                sample = Short.MIN_VALUE;
+            }
+            samples[i] = (short) sample;
+        }
+        mGain = gain;
+        mLimiterGain = limiterGain;
+    }
+
+    /**
+     * Applies a gain of at most 1, ramped towards the target. Returns the gain reached.
+     */
+    private float attenuate(short[] samples, int length, float gain, float target) {
+        if (gain == target) {
+            if (gain != 1f) {
+                for (int i = 0; i < length; i++) {
+                    samples[i] = (short) (samples[i] * gain);
+                }
+            }
+            return gain;
+        }
+        for (int i = 0; i < length; i++) {
+            if (gain < target) {
+                gain = Math.min(target, gain + mRampStep);
+            } else if (gain > target) {
+                gain = Math.max(target, gain - mRampStep);
+            }
+            samples[i] = (short) (samples[i] * gain);
+        }
+        return gain;
+    }
+
+    private void updateLoudness(short[] samples, int length, float target) {
+        if (length == 0) {
+            return;
+        }
+        double sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += samples[i] * samples[i];
+        }
+        float rms = (float) Math.sqrt(sum / length);
+        if (rms < LOUDNESS_GATE) {
+            return;
+        }
+        mLevel = mLevel == 0 ? rms : mLevel + (rms - mLevel) * LOUDNESS_SMOOTHING;
+        mLoudnessGain = Math.max(MIN_LOUDNESS_GAIN, Math.min(MAX_LOUDNESS_GAIN, target / mLevel));
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * Detects a wake word in the microphone stream while no conversation is active.
+ *
+ * <p>Implementations are fed every captured block on the Assistant thread and must not block or
+ * allocate per call.
+ */
+public interface HotwordDetector {
+
+    /**
+     * Processes a block of 16-bit mono PCM samples.
+     *
+     * @param samples The captured samples.
+     * @param length The number of valid samples in {@code samples}.
+     * @return true if the wake word ended within this block.
+     */
+    boolean process(short[] samples, int length);
+
+    /**
+     * Clears any internal state, for example after a conversation has ended.
+     */
+    void reset();
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.os.Debug;
+import android.util.Log;
+import com.google.protobuf.ByteString;
+
+/**
+ * Runs a {@link HotwordDetector} on the capture thread within a CPU budget and keeps the most
+ * recent audio so it can be sent as pre-roll once the wake word is detected.
+ */
+class HotwordStage {
+    private static final String TAG = HotwordStage.class.getSimpleName();
+    private static final long REPORT_INTERVAL_NS = 60 * 1000000000L;
+
+    private final HotwordDetector mDetector;
+    private final int mSampleRate;
+    private final float mCpuBudget;
+
+    // Pre-roll ring buffer.
+    private final short[] mPreroll;
+    private int mPrerollPosition;
+    private boolean mPrerollFull;
+
+    // CPU accounting. Debt accumulates when a block costs more than its share of the budget, and
+    // blocks are skipped until it is paid back.
+    private long mCpuDebtNs;
+    private long mTotalCpuNs;
+    private long mTotalAudioNs;
+    private long mSkippedBlocks;
+    private long mLastReportAudioNs;
+
+    /**
+     * @param detector The detector to run.
+     * @param sampleRate The capture sample rate.
+     * @param cpuBudget Fraction of one core the detector may use on average, in the range 0 - 1.
+     * @param prerollMs Amount of audio to retain ahead of a detection.
+     */
+    HotwordStage(HotwordDetector detector, int sampleRate, float cpuBudget, int prerollMs) {
+        mDetector = detector;
+        mSampleRate = sampleRate;
+        mCpuBudget = cpuBudget;
+        mPreroll = new short[sampleRate * prerollMs / 1000];
+    }
+
+    /**
+     * Feeds one captured block to the detector.
+     *
+     * @return true if the wake word was detected.
+     */
+    boolean process(short[] samples, int length) {
+        appendPreroll(samples, length);
+        long blockNs = length * 1000000000L / mSampleRate;
+        mTotalAudioNs += blockNs;
+        long allowanceNs = (long) (blockNs * mCpuBudget);
+        if (mCpuDebtNs > 0) {
+            mCpuDebtNs = Math.max(0, mCpuDebtNs - allowanceNs);
+            mSkippedBlocks++;
+            return false;
+        }
+        long start = Debug.threadCpuTimeNanos();
+        boolean detected = mDetector.process(samples, length);
+        long costNs = Debug.threadCpuTimeNanos() - start;
+        mTotalCpuNs += costNs;
+        mCpuDebtNs = Math.max(0, mCpuDebtNs + costNs - allowanceNs);
+        if (mTotalAudioNs - mLastReportAudioNs >= REPORT_INTERVAL_NS) {
+            mLastReportAudioNs = mTotalAudioNs;
+            Log.d(TAG, "hotword cpu: " + getCpuMsPerAudioSecond() + " ms per audio second, "
+                    + mSkippedBlocks + " blocks skipped over budget");
+        }
+        return detected;
+    }
+
+    /**
+     * Returns the retained pre-roll audio as little-endian PCM and clears it.
+     */
+    ByteString takePreroll() {
+        int count = mPrerollFull ? mPreroll.length : mPrerollPosition;
+        int start = mPrerollFull ? mPrerollPosition : 0;
+        byte[] bytes = new byte[count * 2];
+        for (int i = 0; i < count; i++) {
+            short sample = mPreroll[(start + i) % mPreroll.length];
+            bytes[2 * i] = (byte) sample;
+            bytes[2 * i + 1] = (byte) (sample >> 8);
+        }
+        mPrerollPosition = 0;
+        mPrerollFull = false;
+        return ByteString.copyFrom(bytes);
+    }
+
+    void reset() {
+        mDetector.reset();
+        mPrerollPosition = 0;
+        mPrerollFull = false;
+    }
+
+    /**
+     * Returns the average detector CPU time, in milliseconds, per second of processed audio.
+     */
+    float getCpuMsPerAudioSecond() {
+        if (mTotalAudioNs == 0) {
+            return 0;
+        }
+        return mTotalCpuNs * 1000f / mTotalAudioNs;
+    }
+
+    private void appendPreroll(short[] samples, int length) {
+        if (mPreroll.length == 0) {
+            return;
+        }
+        int offset = Math.max(0, length - mPreroll.length);
+        while (offset < length) {
+            int count = Math.min(length - offset, mPreroll.length - mPrerollPosition);
+            System.arraycopy(samples, offset, mPreroll, mPrerollPosition, count);
+            offset += count;
+            mPrerollPosition += count;
+            if (mPrerollPosition == mPreroll.length) {
+                mPrerollPosition = 0;
+                mPrerollFull = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import com.google.assistant.embedded.v1alpha2.AssistResponse;
+
+/**
+ * Chooses how much Assistant audio to buffer before a reply starts playing.
+ *
+ * <p>For each chunk of a reply, the tuner measures how late it arrived compared to a real-time
+ * stream that started with the first chunk. The latest chunk is the prebuffer the reply needed
+ * to play without a gap. The target grows at once when a reply needed more than it, or when the
+ * output underran, and shrinks slowly towards what recent replies needed, so a link that is
+ * jittery now and then keeps a safe margin while a steady one gets low latency.
+ *
+ * <p>Audio is 16-bit mono PCM. The tuner uses no Android classes, so it can be driven on the
+ * JVM with the arrival times recorded in a {@link ConversationTrace}, see {@link #replay}. Not
+ * thread-safe.
+ */
+class JitterBufferTuner {
+    // Added to the measured need to absorb scheduling noise on the device.
+    private static final long MARGIN_MS = 20;
+    // Added to the target when the output underruns despite the measurements.
+    private static final long UNDERRUN_STEP_MS = 60;
+    // Share of the distance to the measured need closed after each reply.
+    private static final float SHRINK_RATE = 0.25f;
+
+    private final int mBytesPerSecond;
+    private final long mMinMs;
+    private final long mMaxMs;
+    private long mTargetMs;
+
+    // State of the current reply.
+    private long mFirstArrivalMs = -1;
+    private long mArrivedMs;
+    private long mNeededMs;
+
+    /**
+     * @param sampleRate The sample rate of the Assistant audio.
+     * @param initialMs The target before any reply was measured.
+     * @param minMs The lowest target.
+     * @param maxMs The highest target.
+     */
+    JitterBufferTuner(int sampleRate, long initialMs, long minMs, long maxMs) {
+        mBytesPerSecond = sampleRate * 2;
+        mMinMs = minMs;
+        mMaxMs = maxMs;
+        mTargetMs = clamp(initialMs);
+    }
+
+    /**
+     * Returns the audio to buffer before playing, in milliseconds.
+     */
+    long getTargetMs() {
+        return mTargetMs;
+    }
+
+    /**
+     * Returns the prebuffer the current or last reply needed to play without a gap.
+     */
+    long getNeededMs() {
+        return mNeededMs;
+    }
+
+    /**
+     * Returns whether enough audio is buffered to start or resume playing.
+     */
+    boolean isReady(long bufferedBytes) {
+        return toMs(bufferedBytes) >= mTargetMs;
+    }
+
+    /**
+     * Returns the duration of the given amount of audio in milliseconds.
+     */
+    long toMs(long bytes) {
+        return bytes * 1000 / mBytesPerSecond;
+    }
+
+    /**
+     * Starts measuring a new reply.
+     */
+    void onReplyStarted() {
+        mFirstArrivalMs = -1;
+        mArrivedMs = 0;
+        mNeededMs = 0;
+    }
+
+    /**
+     * Records the arrival of a chunk of reply audio.
+     *
+     * @param arrivalMs The arrival time on a monotonic clock.
+     * @param bytes The size of the chunk.
+     */
+    void onAudioArrived(long arrivalMs, long bytes) {
+        if (mFirstArrivalMs < 0) {
+            mFirstArrivalMs = arrivalMs;
+        }
+        long lateMs = arrivalMs - mFirstArrivalMs - mArrivedMs;
+        mArrivedMs += toMs(bytes);
+        if (lateMs > mNeededMs) {
+            mNeededMs = lateMs;
+            // Grow within the reply, so a rebuffer after an underrun waits long enough.
+            mTargetMs = Math.max(mTargetMs, clamp(mNeededMs + MARGIN_MS));
+        }
+    }
+
+    /**
+     * Records that the output ran out of audio.
+     */
+    void onUnderrun() {
+        mTargetMs = clamp(mTargetMs + UNDERRUN_STEP_MS);
+    }
+
+    /**
+     * Finishes measuring a reply and moves the target towards what it needed.
+     */
+    void onReplyFinished() {
+        if (mFirstArrivalMs < 0) {
+            return;
+        }
+        long wantedMs = clamp(mNeededMs + MARGIN_MS);
+        if (wantedMs > mTargetMs) {
+            mTargetMs = wantedMs;
+        } else {
+            mTargetMs -= (long) ((mTargetMs - wantedMs) * SHRINK_RATE);
+        }
+    }
+
+    /**
+     * Feeds the audio responses of a recorded call through the tuner as one reply.
+     *
+     * @return The prebuffer the call needed, in milliseconds.
+     */
+    long replay(ConversationTrace trace) {
+        onReplyStarted();
+        for (ConversationTrace.Frame frame : trace.getResponses()) {
+            AssistResponse response = frame.response;
+            if (response.hasAudioOut()) {
+                onAudioArrived(frame.timestampUs / 1000,
+                        response.getAudioOut().getAudioData().size());
+            }
+        }
+        onReplyFinished();
+        return mNeededMs;
+    }
+
+    private long clamp(long targetMs) {
+        return Math.max(mMinMs, Math.min(mMaxMs, targetMs));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Resolves text queries that are plain commands for the device's own traits, such as "turn on
+ * the light", without a round trip to the Assistant.
+ *
+ * <p>The phrases each trait accepts are compiled into a trie of words when the matcher is
+ * built, so matching a query costs one map lookup per word. A query matches only if all its
+ * words form a known phrase; anything else is left to the Assistant. Safe to use from any thread
+ * once built.
+ */
+class LocalIntentMatcher {
+    static final String TRAIT_ON_OFF = "action.devices.traits.OnOff";
+    static final String COMMAND_ON_OFF = "action.devices.commands.OnOff";
+
+    private static final String[] PREFIXES = {"", "can you", "could you"};
+    private static final String[] VERBS = {"turn", "switch"};
+    private static final String[] OBJECTS = {"light", "lights", "led", "the light", "the lights",
+            "the led"};
+    // Words that do not change the meaning of a command.
+    private static final String FILLER = "please";
+
+    /**
+     * A device command resolved from a query.
+     */
+    static final class Match {
+        /** The command, as passed to {@code ConversationCallback#onDeviceAction}. */
+        final String command;
+        /** The command parameters as a JSON object. */
+        final String params;
+
+        Match(String command, String params) {
+            this.command = command;
+            this.params = params;
+        }
+    }
+
+    private static final class Node {
+        final HashMap<String, Node> children = new HashMap<>();
+        Match match;
+    }
+
+    private final Node mRoot = new Node();
+
+    /**
+     * @param traits The device traits registered for the device model, for example
+     *     {@link #TRAIT_ON_OFF}.
+     * @throws IllegalArgumentException If there are no local phrases for a trait.
+     */
+    LocalIntentMatcher(Collection<String> traits) {
+        for (String trait : traits) {
+            if (TRAIT_ON_OFF.equals(trait)) {
+                addOnOff(true, "on");
+                addOnOff(false, "off");
+            } else {
+                throw new IllegalArgumentException("No local phrases for trait " + trait);
+            }
+        }
+    }
+
+    /**
+     * Returns the command for a query, or null if the Assistant must handle it.
+     */
+    Match match(String query) {
+        Node node = mRoot;
+        for (String word : words(query)) {
+            if (word.isEmpty() || word.equals(FILLER)) {
+                continue;
+            }
+            node = node.children.get(word);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node.match;
+    }
+
+    private void addOnOff(boolean on, String state) {
+        Match match = new Match(COMMAND_ON_OFF, "{\"on\":" + on + "}");
+        for (String prefix : PREFIXES) {
+            for (String verb : VERBS) {
+                // "turn on", "turn on the light", "turn the light on", "turn it on"
+                add(match, prefix, verb, state);
+                add(match, prefix, verb, "it", state);
+                for (String object : OBJECTS) {
+                    add(match, prefix, verb, state, object);
+                    add(match, prefix, verb, object, state);
+                }
+            }
+        }
+        // "lights on"
+        for (String object : OBJECTS) {
+            add(match, object, state);
+        }
+    }
+
+    private void add(Match match, String... parts) {
+        Node node = mRoot;
+        for (String part : parts) {
+            for (String word : words(part)) {
+                if (word.isEmpty()) {
+                    continue;
+                }
+                Node child = node.children.get(word);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(word, child);
+                }
+                node = child;
+            }
+        }
+        node.match = match;
+    }
+
+    private static String[] words(String text) {
+        return text.toLowerCase(Locale.US).replaceAll("[^\\p{L}\\p{N}]+", " ").trim()
+                .split(" ");
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and latency histograms of a running Assistant, exportable in the Prometheus
+ * text format.
+ *
+ * <p>Metrics are looked up once and then recorded without locks: counters are {@link LongAdder}s
+ * and histograms count into fixed log-linear buckets, so recording costs a few nanoseconds and is
+ * safe on the audio threads. Looking up a metric is slower and should not be done per sample.
+ */
+public class MetricsRegistry {
+    private static final String TYPE_COUNTER = "counter";
+    private static final String TYPE_GAUGE = "gauge";
+    private static final String TYPE_HISTOGRAM = "histogram";
+
+    private final ConcurrentHashMap<String, Family> mFamilies = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the counter with the given name and labels, creating it if needed.
+     *
+     * @param labels Alternating label names and values.
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, TYPE_COUNTER).series(labels);
+    }
+
+    /**
+     * Returns the gauge with the given name and labels, creating it if needed.
+     *
+     * @param labels Alternating label names and values.
+     */
+    public Gauge gauge(String name, String help, String... labels) {
+        return (Gauge) family(name, help, TYPE_GAUGE).series(labels);
+    }
+
+    /**
+     * Returns the histogram with the given name and labels, creating it if needed.
+     *
+     * @param labels Alternating label names and values.
+     */
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) family(name, help, TYPE_HISTOGRAM).series(labels);
+    }
+
+    /**
+     * Writes a snapshot of all metrics in the Prometheus text exposition format.
+     */
+    public void writePrometheus(Writer writer) throws IOException {
+        for (Family family : new TreeMap<>(mFamilies).values()) {
+            family.write(writer);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Writes a snapshot to a file, replacing it atomically so readers never see a partial dump.
+     */
+    public void dump(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp),
+                StandardCharsets.UTF_8)) {
+            writePrometheus(writer);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("cannot replace " + file);
+        }
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = mFamilies.get(name);
+        if (family == null) {
+            Family created = new Family(name, help, type);
+            family = mFamilies.putIfAbsent(name, created);
+            if (family == null) {
+                family = created;
+            }
+        }
+        if (!family.mType.equals(type)) {
+            throw new IllegalArgumentException(name + " is a " + family.mType);
+        }
+        return family;
+    }
+
+    /**
+     * A value that only goes up, such as a number of events or bytes.
+     */
+    public static final class Counter {
+        private final LongAdder mValue = new LongAdder();
+
+        private Counter() {}
+
+        public void increment() {
+            mValue.increment();
+        }
+
+        public void add(long amount) {
+            mValue.add(amount);
+        }
+
+        public long get() {
+            return mValue.sum();
+        }
+    }
+
+    /**
+     * A value that goes up and down, such as a queue depth.
+     */
+    public static final class Gauge {
+        private final AtomicLong mValue = new AtomicLong();
+
+        private Gauge() {}
+
+        public void set(long value) {
+            mValue.set(value);
+        }
+
+        public void add(long amount) {
+            mValue.addAndGet(amount);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    /**
+     * A distribution of non-negative values, such as latencies in milliseconds.
+     *
+     * <p>Values below 8 have a bucket each. Above that, each power of two is split into four
+     * buckets, so a bucket bound is within 25% of the values it counts, up to 2^17.
+     */
+    public static final class Histogram {
+        private static final int LINEAR_BUCKETS = 8;
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int MAX_EXPONENT = 17;
+        // The last bucket counts everything above the highest bound.
+        private static final int BUCKETS =
+                LINEAR_BUCKETS + (MAX_EXPONENT - 3) * SUB_BUCKETS + 1;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+        private final LongAdder mSum = new LongAdder();
+
+        private Histogram() {}
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mCounts.incrementAndGet(bucket(value));
+            mSum.add(value);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += mCounts.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * Returns the upper bound of the bucket holding the given quantile, or 0 if empty.
+         */
+        public long getQuantile(double quantile) {
+            long[] counts = snapshot();
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return i == BUCKETS - 1 ? Long.MAX_VALUE : upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        private long[] snapshot() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = mCounts.get(i);
+            }
+            return counts;
+        }
+
+        private static int bucket(long value) {
+            if (value < LINEAR_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent >= MAX_EXPONENT) {
+                return BUCKETS - 1;
+            }
+            int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return LINEAR_BUCKETS + (exponent - 3) * SUB_BUCKETS + sub;
+        }
+
+        // Inclusive upper bound of a bucket, as Prometheus expects.
+        private static long upperBound(int bucket) {
+            if (bucket < LINEAR_BUCKETS) {
+                return bucket;
+            }
+            int exponent = 3 + (bucket - LINEAR_BUCKETS) / SUB_BUCKETS;
+            int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+            return (1L << exponent) + ((sub + 1L) << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+    }
+
+    private static final class Family {
+        private final String mName;
+        private final String mHelp;
+        private final String mType;
+        private final ConcurrentHashMap<String, Object> mSeries = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String type) {
+            mName = name;
+            mHelp = help;
+            mType = type;
+        }
+
+        Object series(String[] labels) {
+            String key = labelString(labels);
+            Object series = mSeries.get(key);
+            if (series == null) {
+                Object created = TYPE_COUNTER.equals(mType) ? new Counter()
+                        : TYPE_GAUGE.equals(mType) ? new Gauge() : new Histogram();
+                series = mSeries.putIfAbsent(key, created);
+                if (series == null) {
+                    series = created;
+                }
+            }
+            return series;
+        }
+
+        void write(Writer writer) throws IOException {
+            writer.write("# HELP " + mName + " " + mHelp + "\n");
+            writer.write("# TYPE " + mName + " " + mType + "\n");
+            for (Map.Entry<String, Object> entry : new TreeMap<>(mSeries).entrySet()) {
+                String labels = entry.getKey();
+                Object series = entry.getValue();
+                if (series instanceof Counter) {
+                    writeSample(writer, mName, labels, ((Counter) series).get());
+                } else if (series instanceof Gauge) {
+                    writeSample(writer, mName, labels, ((Gauge) series).get());
+                } else {
+                    writeHistogram(writer, labels, (Histogram) series);
+                }
+            }
+        }
+
+        private void writeHistogram(Writer writer, String labels, Histogram histogram)
+                throws IOException {
+            long[] counts = histogram.snapshot();
+            long cumulative = 0;
+            for (int i = 0; i < Histogram.BUCKETS - 1; i++) {
+                cumulative += counts[i];
+                writeSample(writer, mName + "_bucket",
+                        withLabel(labels, "le", Long.toString(Histogram.upperBound(i))),
+                        cumulative);
+            }
+            cumulative += counts[Histogram.BUCKETS - 1];
+            writeSample(writer, mName + "_bucket", withLabel(labels, "le", "+Inf"), cumulative);
+            writeSample(writer, mName + "_sum", labels, histogram.mSum.sum());
+            writeSample(writer, mName + "_count", labels, cumulative);
+        }
+
+        private static void writeSample(Writer writer, String name, String labels, long value)
+                throws IOException {
+            writer.write(name);
+            if (!labels.isEmpty()) {
+                writer.write("{" + labels + "}");
+            }
+            writer.write(" " + value + "\n");
+        }
+
+        private static String labelString(String[] labels) {
+            if (labels.length % 2 != 0) {
+                throw new IllegalArgumentException("Labels must be name and value pairs");
+            }
+            String result = "";
+            for (int i = 0; i < labels.length; i += 2) {
+                result = withLabel(result, labels[i], labels[i + 1]);
+            }
+            return result;
+        }
+
+        private static String withLabel(String labels, String name, String value) {
+            String label = name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"")
+                    .replace("\n", "\\n") + "\"";
+            return labels.isEmpty() ? label : labels + "," + label;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the metrics of a {@link MetricsRegistry} over HTTP so a Prometheus server can scrape
+ * them, for example with {@code curl http://<device>:9100/metrics}.
+ *
+ * <p>Requests are answered one at a time on a background thread, whatever their path.
+ */
+public class MetricsServer {
+    private static final String TAG = MetricsServer.class.getSimpleName();
+    private static final int READ_TIMEOUT_MS = 2000;
+
+    private final MetricsRegistry mRegistry;
+    private final ServerSocket mServerSocket;
+    private final Thread mThread;
+
+    /**
+     * Starts serving on the given port.
+     */
+    public MetricsServer(MetricsRegistry registry, int port) throws IOException {
+        mRegistry = registry;
+        mServerSocket = new ServerSocket(port);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "metricsServerThread");
+        mThread.start();
+    }
+
+    /**
+     * Stops serving.
+     */
+    public void close() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "error closing metrics server", e);
+        }
+    }
+
+    private void serve() {
+        while (!mServerSocket.isClosed()) {
+            try (Socket socket = mServerSocket.accept()) {
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                // Skip the request line and headers.
+                String line = reader.readLine();
+                while (line != null && !line.isEmpty()) {
+                    line = reader.readLine();
+                }
+                StringWriter body = new StringWriter();
+                mRegistry.writePrometheus(body);
+                byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+                Writer writer = new OutputStreamWriter(socket.getOutputStream(),
+                        StandardCharsets.UTF_8);
+                writer.write("HTTP/1.0 200 OK\r\n"
+                        + "Content-Type: text/plain; version=0.0.4\r\n"
+                        + "Content-Length: " + bytes.length + "\r\n\r\n");
+                writer.flush();
+                socket.getOutputStream().write(bytes);
+                socket.getOutputStream().flush();
+            } catch (SocketException e) {
+                if (!mServerSocket.isClosed()) {
+                    Log.w(TAG, "error serving metrics", e);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "error serving metrics", e);
+            }
+        }
+    }
+}
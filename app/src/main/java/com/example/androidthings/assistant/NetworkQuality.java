@@ -0,0 +1,269 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.util.Log;
+import com.google.assistant.embedded.v1alpha2.AssistResponse;
+import com.google.assistant.embedded.v1alpha2.AudioInConfig;
+
+/**
+ * Estimates link quality from the Assistant's own calls and chooses how audio is uploaded by
+ * the next conversation.
+ *
+ * <p>The inputs are moving averages of the response latency, the download rate of Assistant
+ * audio and the share of upload time spent stalled by flow control. When the link looks poor,
+ * audio is compressed to FLAC and sent in larger chunks; it switches back once all inputs look
+ * good again. The inputs and the choice are also exported through {@link AssistantMetrics}. Safe
+ * to read from any thread.
+ */
+public class NetworkQuality {
+    private static final String TAG = NetworkQuality.class.getSimpleName();
+    private static final float SMOOTHING = 0.3f;
+
+    // The link is poor past any of these, and good again once within all of the second set.
+    private static final float POOR_LATENCY_MS = 1200;
+    private static final float GOOD_LATENCY_MS = 700;
+    private static final float POOR_DOWNLINK_KBPS = 128;
+    private static final float GOOD_DOWNLINK_KBPS = 256;
+    private static final float POOR_STALL_RATIO = 0.05f;
+    private static final float GOOD_STALL_RATIO = 0.01f;
+    // Audio downloaded over a shorter span says little about the link.
+    private static final long MIN_DOWNLINK_SPAN_MS = 250;
+
+    static final int GOOD_LINK_CHUNK_MS = 32;
+    static final int POOR_LINK_CHUNK_MS = 128;
+
+    private final boolean mAdaptive;
+    private final AssistantMetrics mMetrics;
+
+    // Decision inputs.
+    private volatile float mLatencyMs = -1;
+    private volatile float mDownlinkKbps = -1;
+    private volatile float mUplinkStallRatio = -1;
+    private volatile long mCalls;
+
+    // Decision outputs.
+    private volatile boolean mPoorLink;
+    private volatile AudioInConfig.Encoding mUploadEncoding = AudioInConfig.Encoding.LINEAR16;
+    private volatile int mUploadChunkMs = GOOD_LINK_CHUNK_MS;
+    private volatile long mSwitches;
+
+    NetworkQuality(boolean adaptive, AssistantMetrics metrics) {
+        mAdaptive = adaptive;
+        mMetrics = metrics;
+        exportInputs();
+        exportDecision();
+    }
+
+    /**
+     * Returns the average time from the first request of a call to its first response, in
+     * milliseconds, or -1 before any call. This includes server processing and is used as the
+     * round-trip estimate.
+     */
+    public float getLatencyMs() {
+        return mLatencyMs;
+    }
+
+    /**
+     * Returns the average rate at which Assistant audio was received, in kbit/s, or -1 if not
+     * known yet.
+     */
+    public float getDownlinkKbps() {
+        return mDownlinkKbps;
+    }
+
+    /**
+     * Returns the average share of upload time spent waiting on flow control, or -1 if not known
+     * yet.
+     */
+    public float getUplinkStallRatio() {
+        return mUplinkStallRatio;
+    }
+
+    /**
+     * Returns the number of calls measured.
+     */
+    public long getCalls() {
+        return mCalls;
+    }
+
+    /**
+     * Returns whether the link is currently considered poor.
+     */
+    public boolean isPoorLink() {
+        return mPoorLink;
+    }
+
+    /**
+     * Returns the encoding used for the audio of the next conversation.
+     */
+    public AudioInConfig.Encoding getUploadEncoding() {
+        return mUploadEncoding;
+    }
+
+    /**
+     * Returns the duration of audio sent per request by the next conversation, in milliseconds.
+     */
+    public int getUploadChunkMs() {
+        return mUploadChunkMs;
+    }
+
+    /**
+     * Returns the number of times the link assessment changed.
+     */
+    public long getSwitches() {
+        return mSwitches;
+    }
+
+    @Override
+    public String toString() {
+        return "latencyMs=" + mLatencyMs + " downlinkKbps=" + mDownlinkKbps
+                + " uplinkStallRatio=" + mUplinkStallRatio + " calls=" + mCalls
+                + " poorLink=" + mPoorLink + " upload=" + mUploadEncoding
+                + " chunkMs=" + mUploadChunkMs;
+    }
+
+    /**
+     * Starts measuring a call.
+     */
+    Call startCall() {
+        return new Call();
+    }
+
+    /**
+     * Updates the upload choice for the next conversation from the latest measurements.
+     *
+     * @param flacAvailable Whether audio can be compressed on this device.
+     */
+    synchronized void decide(boolean flacAvailable) {
+        boolean poor = mPoorLink;
+        if (!mAdaptive) {
+            poor = false;
+        } else if (mLatencyMs > POOR_LATENCY_MS || isBelow(mDownlinkKbps, POOR_DOWNLINK_KBPS)
+                || mUplinkStallRatio > POOR_STALL_RATIO) {
+            poor = true;
+        } else if (mLatencyMs <= GOOD_LATENCY_MS && !isBelow(mDownlinkKbps, GOOD_DOWNLINK_KBPS)
+                && mUplinkStallRatio <= GOOD_STALL_RATIO) {
+            poor = false;
+        }
+        if (poor != mPoorLink) {
+            mSwitches++;
+            mMetrics.linkSwitches.increment();
+            Log.i(TAG, "link is now " + (poor ? "poor" : "good") + ": " + this);
+        }
+        mPoorLink = poor;
+        mUploadEncoding = poor && flacAvailable
+                ? AudioInConfig.Encoding.FLAC : AudioInConfig.Encoding.LINEAR16;
+        mUploadChunkMs = poor ? POOR_LINK_CHUNK_MS : GOOD_LINK_CHUNK_MS;
+        exportDecision();
+    }
+
+    private void exportInputs() {
+        mMetrics.linkLatencyMs.set(Math.round(mLatencyMs));
+        mMetrics.linkDownlinkKbps.set(Math.round(mDownlinkKbps));
+        mMetrics.linkUplinkStallPermille.set(
+                mUplinkStallRatio < 0 ? -1 : Math.round(mUplinkStallRatio * 1000));
+    }
+
+    private void exportDecision() {
+        boolean flac = mUploadEncoding == AudioInConfig.Encoding.FLAC;
+        mMetrics.linkPoor.set(mPoorLink ? 1 : 0);
+        mMetrics.uploadEncodingFlac.set(flac ? 1 : 0);
+        mMetrics.uploadEncodingLinear16.set(flac ? 0 : 1);
+        mMetrics.uploadChunkMs.set(mUploadChunkMs);
+    }
+
+    private static boolean isBelow(float value, float threshold) {
+        return value >= 0 && value < threshold;
+    }
+
+    private synchronized void onCallFinished(long latencyMs, long downlinkBytes,
+            long downlinkSpanMs, long uploadMs, long stallMs) {
+        mCalls++;
+        if (latencyMs >= 0) {
+            mLatencyMs = smooth(mLatencyMs, latencyMs);
+        }
+        if (downlinkSpanMs >= MIN_DOWNLINK_SPAN_MS) {
+            mDownlinkKbps = smooth(mDownlinkKbps, downlinkBytes * 8f / downlinkSpanMs);
+        }
+        if (uploadMs > 0) {
+            mUplinkStallRatio = smooth(mUplinkStallRatio, Math.min(1f, (float) stallMs / uploadMs));
+        }
+        exportInputs();
+    }
+
+    private static float smooth(float average, float sample) {
+        return average < 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+
+    /**
+     * Measurements of a single call. Requests are reported on the Assistant thread and responses
+     * on a transport thread.
+     */
+    class Call {
+        private long mFirstRequestMs = -1;
+        private long mFirstResponseMs = -1;
+        private long mUploadEndMs = -1;
+        private long mStallMs;
+        private long mFirstAudioMs = -1;
+        private long mLastAudioMs = -1;
+        private long mAudioBytes;
+        private boolean mFinished;
+
+        private Call() {}
+
+        synchronized void onRequestWritten(long nowMs) {
+            if (mFirstRequestMs < 0) {
+                mFirstRequestMs = nowMs;
+            }
+        }
+
+        synchronized void onStallEnded(long durationMs) {
+            mStallMs += durationMs;
+        }
+
+        synchronized void onRequestsCompleted(long nowMs) {
+            mUploadEndMs = nowMs;
+        }
+
+        synchronized void onResponse(AssistResponse response, long nowMs) {
+            if (mFirstResponseMs < 0) {
+                mFirstResponseMs = nowMs;
+            }
+            if (response.hasAudioOut()) {
+                // Bytes that arrived with the first chunk took an unknown time, so rate the rest.
+                if (mFirstAudioMs < 0) {
+                    mFirstAudioMs = nowMs;
+                } else {
+                    mAudioBytes += response.getAudioOut().getAudioData().size();
+                }
+                mLastAudioMs = nowMs;
+            }
+        }
+
+        synchronized void finish() {
+            if (mFinished || mFirstRequestMs < 0) {
+                return;
+            }
+            mFinished = true;
+            long latencyMs = mFirstResponseMs < 0 ? -1 : mFirstResponseMs - mFirstRequestMs;
+            long uploadMs = mUploadEndMs < 0 ? 0 : mUploadEndMs - mFirstRequestMs;
+            onCallFinished(latencyMs, mAudioBytes, mLastAudioMs - mFirstAudioMs, uploadMs,
+                    mStallMs);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * Attenuates background noise between utterances.
+ *
+ * <p>The gate opens as soon as a block is louder than the threshold and closes only after the
+ * audio has stayed below it for the hold time, so word endings and short pauses pass through.
+ * Closing attenuates rather than mutes, which keeps the noise floor the recognizer expects.
+ */
+public class NoiseGateStage implements CaptureStage {
+    private static final float CLOSED_GAIN = 0.1f; // -20 dB
+
+    private final float mThreshold;
+    private final int mHoldSamples;
+    private int mQuietSamples;
+    private float mGain = 1f;
+
+    /**
+     * @param sampleRate The rate of the processed audio.
+     * @param thresholdDbfs The RMS level below which audio is noise, in dB relative to full
+     *     scale, for example -50.
+     * @param holdMs How long the audio must stay below the threshold before the gate closes.
+     */
+    public NoiseGateStage(int sampleRate, float thresholdDbfs, int holdMs) {
+        mThreshold = (float) Math.pow(10, thresholdDbfs / 20) * Short.MAX_VALUE;
+        mHoldSamples = sampleRate * holdMs / 1000;
+    }
+
+    @Override
+    public void process(short[] samples, int length) {
+        if (length == 0) {
+            return;
+        }
+        float sumSquares = 0;
+        for (int i = 0; i < length; i++) {
+            sumSquares += (float) samples[i] * samples[i];
+        }
+        if (sumSquares / length >= mThreshold * mThreshold) {
+            mQuietSamples = 0;
+        } else {
+            mQuietSamples = Math.min(mHoldSamples, mQuietSamples + length);
+        }
+        float targetGain = mQuietSamples >= mHoldSamples ? CLOSED_GAIN : 1f;
+        if (targetGain == 1f && mGain == 1f) {
+            return;
+        }
+        float gain = mGain;
+        float step = (targetGain - gain) / length;
+        for (int i = 0; i < length; i++) {
+            gain += step;
+            samples[i] = (short) (samples[i] * gain);
+        }
+        mGain = targetGain;
+    }
+
+    @Override
+    public void reset() {
+        mQuietSamples = 0;
+        mGain = 1f;
+    }
+}
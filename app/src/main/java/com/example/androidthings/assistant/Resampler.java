@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.util.Arrays;
+
+/**
+ * Streaming polyphase resampler for 16-bit PCM that also down-mixes interleaved input to mono.
+ *
+ * <p>The rate ratio is reduced to L/M and a windowed-sinc low-pass prototype is split into L
+ * phases, so every output sample costs one dot product regardless of the ratio. All buffers are
+ * allocated up front; {@link #process(short[], int, short[])} never allocates.
+ */
+class Resampler {
+    // Taps per phase for each multiple of decimation. Higher means a sharper anti-alias filter.
+    private static final int TAPS_PER_ZERO_CROSSING = 16;
+    // Cutoff as a fraction of the lower Nyquist frequency, leaving room for the transition band.
+    private static final double CUTOFF = 0.91;
+
+    private final int mChannels;
+    private final int mInterpolation; // L
+    private final int mDecimation;    // M
+    private final int mTaps;
+    private final float[][] mFilter;
+
+    // Down-mixed input: mHistory retained samples followed by the current block.
+    private final float[] mBuffer;
+    private int mHistory;
+    private int mPosition;
+    private int mPhase;
+
+    /**
+     * @param inputRate The input sample rate in Hz.
+     * @param outputRate The output sample rate in Hz.
+     * @param channels The number of interleaved input channels, down-mixed to mono.
+     * @param maxInputSamples The largest input block, in interleaved samples.
+     */
+    Resampler(int inputRate, int outputRate, int channels, int maxInputSamples) {
+        int gcd = gcd(inputRate, outputRate);
+        mChannels = channels;
+        mInterpolation = outputRate / gcd;
+        mDecimation = inputRate / gcd;
+        double ratio = Math.max(1.0, (double) mDecimation / mInterpolation);
+        mTaps = TAPS_PER_ZERO_CROSSING * (int) Math.ceil(ratio);
+        mFilter = designFilter(mInterpolation, mTaps, CUTOFF / ratio);
+        mBuffer = new float[mTaps + maxInputSamples / channels];
+        reset();
+    }
+
+    /**
+     * Returns the largest number of output samples a single call can produce.
+     */
+    int getMaxOutputSamples() {
+        int frames = mBuffer.length - mTaps;
+        return (int) ((long) frames * mInterpolation / mDecimation) + 2;
+    }
+
+    /**
+     * Clears the filter history, for example between unrelated streams.
+     */
+    void reset() {
+        Arrays.fill(mBuffer, 0, mTaps - 1, 0f);
+        mHistory = mTaps - 1;
+        mPosition = 0;
+        mPhase = 0;
+    }
+
+    /**
+     * Resamples a block of audio.
+     *
+     * @param input Interleaved input samples.
+     * @param length Number of valid samples in {@code input}, a multiple of the channel count.
+     * @param output Destination for mono samples, at least {@link #getMaxOutputSamples()} long.
+     * @return The number of samples written to {@code output}.
+     */
+    int process(short[] input, int length, short[] output) {
+        int frames = length / mChannels;
+        float[] buffer = mBuffer;
+        int write = mHistory;
+        if (mChannels == 1) {
+            for (int i = 0; i < frames; i++) {
+                buffer[write++] = input[i];
+            }
+        } else {
+            float scale = 1f / mChannels;
+            for (int i = 0, in = 0; i < frames; i++) {
+                float sum = 0;
+                for (int c = 0; c < mChannels; c++) {
+                    sum += input[in++];
+                }
+                buffer[write++] = sum * scale;
+            }
+        }
+
+        int available = write;
+        int count = 0;
+        int taps = mTaps;
+        while (mPosition + taps <= available) {
+            float[] h = mFilter[mPhase];
+            float sum = 0;
+            for (int j = 0, x = mPosition; j < taps; j++, x++) {
+                sum += h[j] * buffer[x];
+            }
+            output[count++] = clamp(sum);
+            mPhase += mDecimation;
+            mPosition += mPhase / mInterpolation;
+            mPhase %= mInterpolation;
+        }
+
+        int keep = available - mPosition;
+        if (keep > 0) {
+            System.arraycopy(buffer, mPosition, buffer, 0, keep);
+            mHistory = keep;
+            mPosition = 0;
+        } else {
+            // Decimation stepped past the end of this block.
+            mHistory = 0;
+            mPosition = -keep;
+        }
+        return count;
+    }
+
+    private static short clamp(float sample) {
+        if (sample >= Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        }
+        if (sample <= Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) Math.round(sample);
+    }
+
+    /**
+     * Designs a Blackman-windowed sinc prototype at L times the input rate and splits it into
+     * L phases of {@code taps} coefficients, ordered oldest sample first.
+     */
+    private static float[][] designFilter(int phases, int taps, double cutoff) {
+        int length = phases * taps;
+        double center = (length - 1) / 2.0;
+        // Normalized to the upsampled rate; the gain of L restores the interpolated level.
+        double fc = cutoff / (2.0 * phases);
+        float[][] filter = new float[phases][taps];
+        for (int i = 0; i < length; i++) {
+            double t = i - center;
+            double sinc = t == 0 ? 2 * fc : Math.sin(2 * Math.PI * fc * t) / (Math.PI * t);
+            double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * i / (length - 1))
+                    + 0.08 * Math.cos(4 * Math.PI * i / (length - 1));
+            int phase = i % phases;
+            int tap = taps - 1 - i / phases;
+            filter[phase][tap] = (float) (sinc * window * phases);
+        }
+        return filter;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+import android.webkit.CookieManager;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebSettings;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+
+/**
+ * Displays Assistant screen-out HTML in a {@link WebView} without blocking the UI thread.
+ *
+ * <p>Cards are encoded and hashed on a background thread and kept in a small cache. The WebView
+ * loads each card from a local URL that is served from the cache, which avoids the base64 copy
+ * required by {@link WebView#loadData(String, String, String)}. A card identical to the one on
+ * screen is not reloaded. The card being loaded and the one on screen are kept outside the cache,
+ * so a card larger than the cache still loads.
+ *
+ * <p>Cards run JavaScript, and the local URL gives them an https origin instead of the opaque one
+ * of {@code loadData}. So that no card can see another, cached cards are served only as the main
+ * frame we load: requests from card scripts to other card URLs are refused, and so is navigation
+ * to them. File and content access are disabled and cookies are not kept.
+ */
+class ScreenOutRenderer {
+    private static final String TAG = ScreenOutRenderer.class.getSimpleName();
+    private static final String CARD_HOST = "screen-out.assistant.local";
+    private static final String CARD_URL_PREFIX = "https://" + CARD_HOST + "/";
+    // The cache holds this many of the largest cards seen, within the bounds below.
+    private static final int CACHE_CARDS = 8;
+    private static final int MIN_CACHE_BYTES = 1024 * 1024;
+    private static final int MAX_CACHE_BYTES = 8 * 1024 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final WebView mWebView;
+    private final Handler mMainHandler;
+    private final HandlerThread mRenderThread;
+    private final Handler mRenderHandler;
+    private final LruCache<String, byte[]> mCache = new LruCache<String, byte[]>(MIN_CACHE_BYTES) {
+        @Override
+        protected int sizeOf(String key, byte[] value) {
+            return value.length;
+        }
+    };
+
+    // Written on the main thread, read when the WebView requests a card.
+    private volatile Card mDisplayedCard;
+    private volatile Card mPendingCard;
+
+    // Render thread state.
+    private int mLargestCardBytes;
+
+    // Main thread state.
+    private String mDisplayedUrl;
+    private String mPendingUrl;
+    private long mPendingStartMs;
+    private long mRenderCount;
+    private long mTotalRenderMs;
+    private long mCacheHits;
+
+    ScreenOutRenderer(WebView webView) {
+        mWebView = webView;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mRenderThread = new HandlerThread("screenOutThread");
+        mRenderThread.start();
+        mRenderHandler = new Handler(mRenderThread.getLooper());
+        WebSettings settings = mWebView.getSettings();
+        settings.setAllowFileAccess(false);
+        settings.setAllowContentAccess(false);
+        settings.setAllowFileAccessFromFileURLs(false);
+        settings.setAllowUniversalAccessFromFileURLs(false);
+        CookieManager.getInstance().setAcceptCookie(false);
+        mWebView.setWebViewClient(new WebViewClient() {
+            @Override
+            public WebResourceResponse shouldInterceptRequest(WebView view,
+                    WebResourceRequest request) {
+                // Called on a WebView background thread.
+                Uri url = request.getUrl();
+                if (!CARD_HOST.equals(url.getHost())) {
+                    return null;
+                }
+                byte[] card = request.isForMainFrame() ? findCard(url.getLastPathSegment()) : null;
+                if (card == null) {
+                    return new WebResourceResponse("text/plain", "utf-8", 404, "Not Found",
+                            Collections.<String, String>emptyMap(),
+                            new ByteArrayInputStream(new byte[0]));
+                }
+                return new WebResourceResponse("text/html", "utf-8",
+                        new ByteArrayInputStream(card));
+            }
+
+            @Override
+            public boolean shouldOverrideUrlLoading(WebView view, WebResourceRequest request) {
+                // Only the card loaded by show() may replace the page.
+                Uri url = request.getUrl();
+                return CARD_HOST.equals(url.getHost()) && !url.toString().equals(mPendingUrl);
+            }
+
+            @Override
+            public void onPageFinished(WebView view, String url) {
+                onCardLoaded(url);
+            }
+        });
+    }
+
+    /**
+     * Renders a card. May be called on any thread.
+     */
+    void render(final String html) {
+        final long startMs = SystemClock.elapsedRealtime();
+        mRenderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                byte[] data = html.getBytes(UTF_8);
+                final Card card = new Card(digest(data), data);
+                final boolean cached = mCache.get(card.mKey) != null;
+                if (!cached) {
+                    resizeCache(data.length);
+                    mCache.put(card.mKey, data);
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        show(card, cached, startMs);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stops the background thread.
+     */
+    void release() {
+        mRenderThread.quitSafely();
+    }
+
+    /**
+     * Grows the cache to hold several cards of the largest size seen. Called on the render
+     * thread.
+     */
+    private void resizeCache(int cardBytes) {
+        if (cardBytes <= mLargestCardBytes) {
+            return;
+        }
+        mLargestCardBytes = cardBytes;
+        int size = (int) Math.min(MAX_CACHE_BYTES, (long) cardBytes * CACHE_CARDS);
+        if (size > mCache.maxSize()) {
+            mCache.resize(size);
+        }
+    }
+
+    /**
+     * Returns the card with the given key, or null. Called on a WebView thread.
+     */
+    private byte[] findCard(String key) {
+        Card pending = mPendingCard;
+        if (pending != null && pending.mKey.equals(key)) {
+            return pending.mData;
+        }
+        Card displayed = mDisplayedCard;
+        if (displayed != null && displayed.mKey.equals(key)) {
+            return displayed.mData;
+        }
+        return mCache.get(key);
+    }
+
+    private void show(Card card, boolean cached, long startMs) {
+        if (cached) {
+            mCacheHits++;
+        }
+        String url = CARD_URL_PREFIX + card.mKey;
+        if (url.equals(mDisplayedUrl) && mPendingUrl == null) {
+            recordLatency(startMs);
+            return;
+        }
+        mPendingCard = card;
+        mPendingUrl = url;
+        mPendingStartMs = startMs;
+        mWebView.loadUrl(url);
+    }
+
+    private void onCardLoaded(String url) {
+        if (url == null || !url.equals(mPendingUrl)) {
+            return;
+        }
+        mDisplayedUrl = url;
+        mDisplayedCard = mPendingCard;
+        mPendingCard = null;
+        mPendingUrl = null;
+        recordLatency(mPendingStartMs);
+    }
+
+    private void recordLatency(long startMs) {
+        long latencyMs = SystemClock.elapsedRealtime() - startMs;
+        mRenderCount++;
+        mTotalRenderMs += latencyMs;
+        Log.i(TAG, "card rendered in " + latencyMs + " ms (average "
+                + (mTotalRenderMs / mRenderCount) + " ms, " + mCacheHits + "/" + mRenderCount
+                + " from cache)");
+    }
+
+    private static final class Card {
+        final String mKey;
+        final byte[] mData;
+
+        Card(String key, byte[] data) {
+            mKey = key;
+            mData = data;
+        }
+    }
+
+    private static String digest(byte[] data) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
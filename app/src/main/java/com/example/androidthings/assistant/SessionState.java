@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The phase of the conversation with the Assistant, so that only one request is in flight.
+ *
+ * <p>A session is {@link #IDLE}, {@link #LISTENING} to the user, {@link #THINKING} while the
+ * Assistant prepares its reply, or {@link #SPEAKING} it. Triggers such as the button, the
+ * hotword and text queries may fire on any thread; {@link #trigger} decides atomically whether
+ * each starts a request, is coalesced with the one in flight, interrupts a reply or is
+ * rejected. Transitions are compare-and-set, so a state only moves on from where its owner
+ * expects it to be.
+ */
+class SessionState {
+    static final int IDLE = 0;
+    static final int LISTENING = 1;
+    static final int THINKING = 2;
+    static final int SPEAKING = 3;
+
+    /** The trigger moved the session to the requested state. */
+    static final int ACCEPTED = 0;
+    /** The trigger was a duplicate of the request in flight and was dropped. */
+    static final int COALESCED = 1;
+    /** The trigger interrupts the reply; it starts listening once the reply is stopped. */
+    static final int PREEMPTED = 2;
+    /** The trigger could not be served in the current state and was dropped. */
+    static final int REJECTED = 3;
+
+    private final AtomicInteger mState = new AtomicInteger(IDLE);
+    private final AtomicBoolean mInterruptPending = new AtomicBoolean();
+
+    int get() {
+        return mState.get();
+    }
+
+    /**
+     * Moves from one state to another. Returns false if the session was not in the expected
+     * state.
+     */
+    boolean transition(int from, int to) {
+        return mState.compareAndSet(from, to);
+    }
+
+    /**
+     * Moves to a state whatever the current one, for the owner of a request that ends it.
+     */
+    void set(int state) {
+        mState.set(state);
+    }
+
+    /**
+     * Decides what a request trigger does.
+     *
+     * @param requested {@link #LISTENING} for a spoken request, {@link #THINKING} for a text
+     *     query.
+     * @param interruptible Whether a spoken request may interrupt a reply.
+     * @return One of {@link #ACCEPTED}, {@link #COALESCED}, {@link #PREEMPTED} or
+     *     {@link #REJECTED}.
+     */
+    int trigger(int requested, boolean interruptible) {
+        while (true) {
+            int state = mState.get();
+            switch (state) {
+                case IDLE:
+                    if (mState.compareAndSet(IDLE, requested)) {
+                        return ACCEPTED;
+                    }
+                    // Another trigger or transition won; decide again.
+                    break;
+                case SPEAKING:
+                    if (!interruptible || requested != LISTENING) {
+                        return REJECTED;
+                    }
+                    // Only the first trigger during a reply interrupts it.
+                    return mInterruptPending.compareAndSet(false, true) ? PREEMPTED : COALESCED;
+                default:
+                    return requested == LISTENING ? COALESCED : REJECTED;
+            }
+        }
+    }
+
+    /**
+     * Returns whether a trigger has asked to interrupt the reply.
+     */
+    boolean isInterruptPending() {
+        return mInterruptPending.get();
+    }
+
+    /**
+     * Clears a pending interrupt. Returns false if there was none.
+     */
+    boolean takeInterrupt() {
+        return mInterruptPending.compareAndSet(true, false);
+    }
+
+    static String name(int state) {
+        switch (state) {
+            case IDLE:
+                return "idle";
+            case LISTENING:
+                return "listening";
+            case THINKING:
+                return "thinking";
+            case SPEAKING:
+                return "speaking";
+            default:
+                return Integer.toString(state);
+        }
+    }
+}
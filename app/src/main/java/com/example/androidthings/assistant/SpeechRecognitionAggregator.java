@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+import com.example.androidthings.assistant.EmbeddedAssistant.RequestCallback;
+import com.google.assistant.embedded.v1alpha2.SpeechRecognitionResult;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Coalesces the partial speech recognition results of an utterance before they reach the
+ * {@link RequestCallback}.
+ *
+ * <p>Each update is merged into a stable part, which grows unless the recognizer revises it,
+ * and an unstable tail. At most
+ * one hypothesis is delivered per update interval, and it is always the latest one. The final
+ * transcript is delivered as soon as the utterance ends.
+ */
+class SpeechRecognitionAggregator {
+    private static final String TAG = SpeechRecognitionAggregator.class.getSimpleName();
+    // Results at least this stable are not expected to change.
+    private static final float STABLE_THRESHOLD = 0.9f;
+
+    private final Handler mHandler;
+    private final RequestCallback mCallback;
+    private final long mIntervalMs;
+
+    // Guarded by this.
+    private String mStableText = "";
+    private String mDeliveredText = "";
+    private List<SpeechRecognitionResult> mPending;
+    private boolean mScheduled;
+    private long mLastDeliveryMs;
+    private int mUpdateCount;
+    private int mDeliveryCount;
+
+    private final Runnable mDeliver = new Runnable() {
+        @Override
+        public void run() {
+            List<SpeechRecognitionResult> results;
+            synchronized (SpeechRecognitionAggregator.this) {
+                mScheduled = false;
+                results = mPending;
+                mPending = null;
+                if (results == null) {
+                    return;
+                }
+                mLastDeliveryMs = SystemClock.uptimeMillis();
+                mDeliveryCount++;
+            }
+            mCallback.onSpeechRecognition(results);
+        }
+    };
+
+    /**
+     * @param handler The handler the callback is invoked on.
+     * @param callback The callback receiving coalesced results.
+     * @param updatesPerSecond The maximum rate of hypotheses delivered to the callback.
+     */
+    SpeechRecognitionAggregator(Handler handler, RequestCallback callback,
+            int updatesPerSecond) {
+        mHandler = handler;
+        mCallback = callback;
+        mIntervalMs = 1000 / updatesPerSecond;
+    }
+
+    /**
+     * Merges the results of one response. May be called on any thread.
+     */
+    synchronized void update(List<SpeechRecognitionResult> results) {
+        if (results.isEmpty()) {
+            return;
+        }
+        mUpdateCount++;
+        StringBuilder stable = new StringBuilder();
+        StringBuilder unstable = new StringBuilder();
+        float unstableStability = 1f;
+        for (SpeechRecognitionResult result : results) {
+            if (unstable.length() == 0 && result.getStability() >= STABLE_THRESHOLD) {
+                stable.append(result.getTranscript());
+            } else {
+                unstable.append(result.getTranscript());
+                unstableStability = Math.min(unstableStability, result.getStability());
+            }
+        }
+        // A stable prefix is not taken back by a later, less stable update that still extends
+        // it. An update that contradicts it is a revision and replaces it.
+        if (stable.length() >= mStableText.length()) {
+            mStableText = stable.toString();
+        } else {
+            String text = stable.toString() + unstable;
+            if (text.startsWith(mStableText)) {
+                unstable.setLength(0);
+                unstable.append(text, mStableText.length(), text.length());
+            } else {
+                mStableText = stable.toString();
+            }
+        }
+        String text = mStableText + unstable;
+        if (text.equals(mDeliveredText)) {
+            return;
+        }
+        mDeliveredText = text;
+        mPending = merge(mStableText, unstable.toString(), unstableStability);
+        if (!mScheduled) {
+            mScheduled = true;
+            long delayMs = mLastDeliveryMs + mIntervalMs - SystemClock.uptimeMillis();
+            mHandler.postDelayed(mDeliver, Math.max(0, delayMs));
+        }
+    }
+
+    /**
+     * Returns the latest hypothesis of the utterance, delivered or not.
+     */
+    @VisibleForTesting
+    synchronized String getHypothesis() {
+        return mDeliveredText;
+    }
+
+    /**
+     * Delivers the final transcript of the utterance, if not delivered yet, and prepares for
+     * the next one. May be called on any thread.
+     */
+    synchronized void finish() {
+        if (mPending != null) {
+            mHandler.removeCallbacks(mDeliver);
+            mScheduled = true;
+            mHandler.post(mDeliver);
+        }
+        if (mUpdateCount > 0) {
+            Log.d(TAG, "coalesced " + mUpdateCount + " speech recognition updates into "
+                    + (mDeliveryCount + (mPending != null ? 1 : 0)));
+        }
+        resetUtterance();
+    }
+
+    private void resetUtterance() {
+        mStableText = "";
+        mDeliveredText = "";
+        mUpdateCount = 0;
+        mDeliveryCount = 0;
+    }
+
+    private static List<SpeechRecognitionResult> merge(String stable, String unstable,
+            float unstableStability) {
+        List<SpeechRecognitionResult> merged = new ArrayList<>(2);
+        if (!stable.isEmpty()) {
+            merged.add(SpeechRecognitionResult.newBuilder()
+                    .setTranscript(stable)
+                    .setStability(1f)
+                    .build());
+        }
+        if (!unstable.isEmpty()) {
+            merged.add(SpeechRecognitionResult.newBuilder()
+                    .setTranscript(unstable)
+                    .setStability(unstableStability)
+                    .build());
+        }
+        return Collections.unmodifiableList(merged);
+    }
+}
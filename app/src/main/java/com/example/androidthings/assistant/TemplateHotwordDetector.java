@@ -0,0 +1,255 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A lightweight keyword spotter that matches the microphone stream against a recorded example of
+ * the wake word.
+ *
+ * <p>Each 16 ms frame is reduced to a small spectral shape vector using a bank of Goertzel
+ * filters, and the stream is aligned to the template with subsequence dynamic time warping. The
+ * cost is a few thousand multiply-adds per frame and no allocation after construction.
+ */
+public class TemplateHotwordDetector implements HotwordDetector {
+    // In the middle of the range with no errors on HotwordAccuracyTest's corpus, 0.5 to 1.1.
+    public static final float DEFAULT_THRESHOLD = 0.7f;
+
+    private static final int FRAME_DURATION_MS = 16;
+    private static final float[] BAND_FREQUENCIES =
+            {300, 500, 750, 1100, 1500, 2000, 2700, 3500};
+    private static final int BANDS = BAND_FREQUENCIES.length;
+    // Frames more than 30 dB below the loudest template frame are trimmed as silence.
+    private static final float TEMPLATE_TRIM_LOG_ENERGY = 3f;
+    // Speech must be at least 10 dB above the tracked noise floor to count.
+    private static final float SPEECH_MARGIN_LOG_ENERGY = 1f;
+    private static final float NOISE_FLOOR_RISE = 0.002f;
+
+    private final int mFrameSize;
+    private final float[] mCoefficients = new float[BANDS];
+    private final float mThreshold;
+
+    // Template features, one row per frame.
+    private final float[][] mTemplate;
+
+    // Streaming state.
+    private final short[] mFrame;
+    private int mFrameFill;
+    private final float[] mFeatures = new float[BANDS];
+    private float[] mCost;
+    private float[] mPreviousCost;
+    private int[] mLength;
+    private int[] mPreviousLength;
+    private float mNoiseFloor = Float.MAX_VALUE;
+    private int mSpeechFrames;
+    private final boolean[] mSpeechHistory;
+    private int mSpeechHistoryIndex;
+    private int mRefractoryFrames;
+
+    /**
+     * Creates a detector from a WAV recording of the wake word.
+     *
+     * @param wav A 16-bit PCM WAV stream recorded at {@code sampleRate}.
+     * @param sampleRate The capture sample rate.
+     * @return A detector using {@link #DEFAULT_THRESHOLD}.
+     * @throws IOException If the recording cannot be read or contains no speech.
+     */
+    public static TemplateHotwordDetector fromWav(InputStream wav, int sampleRate)
+            throws IOException {
+        return new TemplateHotwordDetector(WavReader.readMono16(wav, sampleRate), sampleRate,
+                DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param template Mono samples of the wake word.
+     * @param sampleRate The capture sample rate.
+     * @param threshold Maximum average frame distance accepted as a match. Lower is stricter.
+     * @throws IOException If the template contains no speech.
+     */
+    public TemplateHotwordDetector(short[] template, int sampleRate, float threshold)
+            throws IOException {
+        mFrameSize = sampleRate * FRAME_DURATION_MS / 1000;
+        mFrame = new short[mFrameSize];
+        mThreshold = threshold;
+        for (int i = 0; i < BANDS; i++) {
+            mCoefficients[i] = (float) (2 * Math.cos(2 * Math.PI * BAND_FREQUENCIES[i] / sampleRate));
+        }
+        mTemplate = buildTemplate(template);
+        int frames = mTemplate.length;
+        mCost = new float[frames];
+        mPreviousCost = new float[frames];
+        mLength = new int[frames];
+        mPreviousLength = new int[frames];
+        mSpeechHistory = new boolean[frames];
+        reset();
+    }
+
+    @Override
+    public boolean process(short[] samples, int length) {
+        boolean detected = false;
+        int offset = 0;
+        while (offset < length) {
+            int count = Math.min(length - offset, mFrameSize - mFrameFill);
+            System.arraycopy(samples, offset, mFrame, mFrameFill, count);
+            mFrameFill += count;
+            offset += count;
+            if (mFrameFill == mFrameSize) {
+                mFrameFill = 0;
+                detected |= processFrame();
+            }
+        }
+        return detected;
+    }
+
+    @Override
+    public void reset() {
+        for (int j = 0; j < mPreviousCost.length; j++) {
+            mPreviousCost[j] = Float.MAX_VALUE;
+            mPreviousLength[j] = 0;
+            mSpeechHistory[j] = false;
+        }
+        mSpeechFrames = 0;
+        mFrameFill = 0;
+        mRefractoryFrames = 0;
+    }
+
+    private boolean processFrame() {
+        float energy = computeFeatures(mFrame, 0, mFeatures);
+        if (energy < mNoiseFloor) {
+            mNoiseFloor = energy;
+        } else {
+            mNoiseFloor += NOISE_FLOOR_RISE * (energy - mNoiseFloor);
+        }
+        boolean speech = energy > mNoiseFloor + SPEECH_MARGIN_LOG_ENERGY;
+        if (mSpeechHistory[mSpeechHistoryIndex]) {
+            mSpeechFrames--;
+        }
+        mSpeechHistory[mSpeechHistoryIndex] = speech;
+        if (speech) {
+            mSpeechFrames++;
+        }
+        mSpeechHistoryIndex = (mSpeechHistoryIndex + 1) % mSpeechHistory.length;
+
+        // One column of subsequence DTW: a match may start at any frame.
+        int frames = mTemplate.length;
+        for (int j = 0; j < frames; j++) {
+            float distance = distance(mFeatures, mTemplate[j]);
+            float best;
+            int bestLength;
+            if (j == 0) {
+                best = 0;
+                bestLength = 0;
+            } else {
+                best = mCost[j - 1];
+                bestLength = mLength[j - 1];
+                if (mPreviousCost[j - 1] < best) {
+                    best = mPreviousCost[j - 1];
+                    bestLength = mPreviousLength[j - 1];
+                }
+            }
+            if (mPreviousCost[j] < best) {
+                best = mPreviousCost[j];
+                bestLength = mPreviousLength[j];
+            }
+            mCost[j] = best == Float.MAX_VALUE ? Float.MAX_VALUE : best + distance;
+            mLength[j] = bestLength + 1;
+        }
+        float[] cost = mPreviousCost;
+        mPreviousCost = mCost;
+        mCost = cost;
+        int[] pathLength = mPreviousLength;
+        mPreviousLength = mLength;
+        mLength = pathLength;
+
+        if (mRefractoryFrames > 0) {
+            mRefractoryFrames--;
+            return false;
+        }
+        float score = mPreviousCost[frames - 1] / mPreviousLength[frames - 1];
+        if (score < mThreshold && mSpeechFrames * 2 >= frames) {
+            // Suppress re-triggering on the tail of the same utterance.
+            for (int j = 0; j < frames; j++) {
+                mPreviousCost[j] = Float.MAX_VALUE;
+            }
+            mRefractoryFrames = frames;
+            return true;
+        }
+        return false;
+    }
+
+    private float[][] buildTemplate(short[] audio) throws IOException {
+        int frameCount = audio.length / mFrameSize;
+        float[][] features = new float[frameCount][BANDS];
+        float[] energies = new float[frameCount];
+        float maxEnergy = -Float.MAX_VALUE;
+        for (int i = 0; i < frameCount; i++) {
+            energies[i] = computeFeatures(audio, i * mFrameSize, features[i]);
+            maxEnergy = Math.max(maxEnergy, energies[i]);
+        }
+        int start = 0;
+        int end = frameCount;
+        while (start < end && energies[start] < maxEnergy - TEMPLATE_TRIM_LOG_ENERGY) {
+            start++;
+        }
+        while (end > start && energies[end - 1] < maxEnergy - TEMPLATE_TRIM_LOG_ENERGY) {
+            end--;
+        }
+        if (end - start < 2) {
+            throw new IOException("Hotword template contains no speech");
+        }
+        float[][] trimmed = new float[end - start][];
+        System.arraycopy(features, start, trimmed, 0, trimmed.length);
+        return trimmed;
+    }
+
+    /**
+     * Computes the mean-normalized log band energies of one frame.
+     *
+     * @return The log10 energy of the frame.
+     */
+    private float computeFeatures(short[] audio, int offset, float[] out) {
+        float mean = 0;
+        for (int b = 0; b < BANDS; b++) {
+            float coefficient = mCoefficients[b];
+            float s1 = 0;
+            float s2 = 0;
+            for (int i = 0; i < mFrameSize; i++) {
+                float s0 = audio[offset + i] + coefficient * s1 - s2;
+                s2 = s1;
+                s1 = s0;
+            }
+            float power = s1 * s1 + s2 * s2 - coefficient * s1 * s2;
+            out[b] = (float) Math.log10(power + 1f);
+            mean += out[b];
+        }
+        mean /= BANDS;
+        for (int b = 0; b < BANDS; b++) {
+            out[b] -= mean;
+        }
+        return mean;
+    }
+
+    private static float distance(float[] a, float[] b) {
+        float sum = 0;
+        for (int i = 0; i < BANDS; i++) {
+            sum += Math.abs(a[i] - b[i]);
+        }
+        return sum / BANDS;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.support.annotation.Nullable;
+import com.google.assistant.embedded.v1alpha2.AssistRequest;
+import com.google.assistant.embedded.v1alpha2.AssistResponse;
+import com.google.assistant.embedded.v1alpha2.EmbeddedAssistantGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fake Assistant service that answers each {@code assist} call by replaying the responses of a
+ * recorded {@link ConversationTrace}.
+ *
+ * <p>Responses are sent at their recorded offsets from the first request, divided by the replay
+ * speed. Serve it in-process with {@link #start(String)} and point an {@link EmbeddedAssistant}
+ * at it with {@link EmbeddedAssistant.Builder#setChannel(ManagedChannel)} to exercise the
+ * response pipeline without a network.
+ */
+public class TraceReplayService extends EmbeddedAssistantGrpc.EmbeddedAssistantImplBase {
+    private final List<ConversationTrace> mTraces;
+    private final float mSpeed;
+    private final AtomicInteger mNextTrace = new AtomicInteger();
+    private volatile int mDownlinkBytesPerSecond;
+    private volatile long mResponseDelayUs;
+    private volatile Status mFailure;
+    private final ScheduledExecutorService mScheduler =
+            Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * @param traces Traces to replay. Successive calls use successive traces, wrapping around.
+     * @param speed Replay speed relative to the recording, for example 1 for the original
+     *     timing or 10 for ten times faster. Use {@link Float#POSITIVE_INFINITY} to send
+     *     responses without delay.
+     */
+    public TraceReplayService(List<ConversationTrace> traces, float speed) {
+        if (traces.isEmpty()) {
+            throw new IllegalArgumentException("There must be at least one trace");
+        }
+        mTraces = new ArrayList<>(traces);
+        mSpeed = speed;
+    }
+
+    /**
+     * Limits the rate at which responses are sent, to emulate a slow link. A response is sent no
+     * earlier than the link would have delivered it after the responses before it.
+     *
+     * @param bytesPerSecond The link rate, or 0 for no limit.
+     */
+    public void setDownlinkBandwidth(int bytesPerSecond) {
+        mDownlinkBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Delays every response by a fixed time, to emulate a slow frontend.
+     *
+     * @param delayMs The added delay in milliseconds.
+     */
+    public void setResponseDelay(long delayMs) {
+        mResponseDelayUs = delayMs * 1000;
+    }
+
+    /**
+     * Fails every call with the given status after its first request instead of replaying, to
+     * emulate a failing frontend.
+     *
+     * @param failure The status to fail with, or null to replay normally.
+     */
+    public void setFailure(@Nullable Status failure) {
+        mFailure = failure;
+    }
+
+    /**
+     * Starts an in-process server for this service.
+     *
+     * @param name The in-process server name, also passed to {@link #newChannel(String)}.
+     */
+    public Server start(String name) throws IOException {
+        return InProcessServerBuilder.forName(name).addService(this).build().start();
+    }
+
+    /**
+     * Creates a channel to an in-process server started with {@link #start(String)}.
+     */
+    public static ManagedChannel newChannel(String name) {
+        return InProcessChannelBuilder.forName(name).build();
+    }
+
+    /**
+     * Stops scheduling responses.
+     */
+    public void shutdown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Override
+    public StreamObserver<AssistRequest> assist(
+            final StreamObserver<AssistResponse> responseObserver) {
+        final ConversationTrace trace =
+                mTraces.get(Math.abs(mNextTrace.getAndIncrement() % mTraces.size()));
+        return new StreamObserver<AssistRequest>() {
+            private final List<ScheduledFuture<?>> mScheduled = new ArrayList<>();
+            private boolean mStarted;
+
+            @Override
+            public void onNext(AssistRequest value) {
+                synchronized (mScheduled) {
+                    if (!mStarted) {
+                        mStarted = true;
+                        Status failure = mFailure;
+                        if (failure != null) {
+                            responseObserver.onError(failure.asRuntimeException());
+                        } else {
+                            schedule(trace, responseObserver, mScheduled);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                // The client cancelled; stop replaying.
+                synchronized (mScheduled) {
+                    for (ScheduledFuture<?> future : mScheduled) {
+                        future.cancel(false);
+                    }
+                }
+            }
+
+            @Override
+            public void onCompleted() {
+                // Responses continue on their own schedule.
+            }
+        };
+    }
+
+    private void schedule(ConversationTrace trace,
+            final StreamObserver<AssistResponse> responseObserver,
+            List<ScheduledFuture<?>> scheduled) {
+        List<ConversationTrace.Frame> frames = trace.getFrames();
+        long startUs = frames.isEmpty() ? 0 : frames.get(0).timestampUs;
+        int bytesPerSecond = mDownlinkBytesPerSecond;
+        long sentBytes = 0;
+        long lastDelayUs = 0;
+        for (ConversationTrace.Frame frame : frames) {
+            if (frame.response == null) {
+                continue;
+            }
+            final AssistResponse response = frame.response;
+            lastDelayUs = delayUs(frame.timestampUs - startUs) + mResponseDelayUs;
+            if (bytesPerSecond > 0) {
+                sentBytes += response.getSerializedSize();
+                lastDelayUs = Math.max(lastDelayUs, sentBytes * 1000000L / bytesPerSecond);
+            }
+            scheduled.add(mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    responseObserver.onNext(response);
+                }
+            }, lastDelayUs, TimeUnit.MICROSECONDS));
+        }
+        scheduled.add(mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                responseObserver.onCompleted();
+            }
+        }, lastDelayUs, TimeUnit.MICROSECONDS));
+    }
+
+    private long delayUs(long offsetUs) {
+        if (Float.isInfinite(mSpeed)) {
+            return 0;
+        }
+        return (long) (offsetUs / mSpeed);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Shows a {@link TranscriptHistory} in a list. Row views are recycled, so only the visible lines
+ * have views.
+ *
+ * <p>A speech hypothesis can be shown after the history. It is replaced by each new hypothesis
+ * and only added to the history once committed.
+ */
+class TranscriptAdapter extends BaseAdapter {
+    private final LayoutInflater mInflater;
+    private final TranscriptHistory mHistory;
+    private String mHypothesis;
+
+    TranscriptAdapter(LayoutInflater inflater, TranscriptHistory history) {
+        mInflater = inflater;
+        mHistory = history;
+    }
+
+    /**
+     * Appends a line to the history and refreshes the list.
+     */
+    void add(String line) {
+        mHistory.add(line);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Shows a hypothesis in place of the previous one.
+     */
+    void setHypothesis(String hypothesis) {
+        mHypothesis = hypothesis;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Adds the current hypothesis, if any, to the history.
+     */
+    void commitHypothesis() {
+        if (mHypothesis != null) {
+            String line = mHypothesis;
+            mHypothesis = null;
+            add(line);
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return mHistory.size() + (mHypothesis != null ? 1 : 0);
+    }
+
+    @Override
+    public String getItem(int position) {
+        if (position == mHistory.size() && mHypothesis != null) {
+            return mHypothesis;
+        }
+        return mHistory.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) convertView;
+        if (view == null) {
+            view = (TextView) mInflater.inflate(android.R.layout.simple_list_item_1, parent,
+                    false);
+        }
+        view.setText(getItem(position));
+        return view;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed-capacity history of transcript lines. Once full, each new line replaces the oldest,
+ * so memory stays constant however long the device runs.
+ *
+ * <p>Lines can also be appended to a log file on a background thread. Once the log reaches its
+ * size limit it is renamed to {@code .1}, older backups move up by one and the oldest is
+ * deleted, so the log and its backups stay under {@code (maxLogBackups + 1) * maxLogBytes}. The
+ * history itself is not thread-safe and is meant to be used from the UI thread.
+ */
+class TranscriptHistory {
+    private static final String TAG = TranscriptHistory.class.getSimpleName();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String[] mEntries;
+    private int mStart;
+    private int mSize;
+
+    private final File mLogFile;
+    private final long mMaxLogBytes;
+    private final int mMaxLogBackups;
+    private final ExecutorService mLogExecutor;
+    private OutputStream mLog;
+    private long mLogBytes;
+
+    /**
+     * @param capacity The number of lines kept in memory.
+     * @param logFile File to append every line to, or null to keep no log.
+     * @param maxLogBytes Size at which the log is rotated.
+     * @param maxLogBackups Number of rotated logs kept, or 0 to drop the log when it is full.
+     */
+    TranscriptHistory(int capacity, @Nullable File logFile, long maxLogBytes,
+            int maxLogBackups) {
+        mEntries = new String[capacity];
+        mLogFile = logFile;
+        mMaxLogBytes = maxLogBytes;
+        mMaxLogBackups = maxLogBackups;
+        mLogExecutor = logFile == null ? null : Executors.newSingleThreadExecutor();
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns a line, where 0 is the oldest line still in memory.
+     */
+    String get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+        return mEntries[(mStart + index) % mEntries.length];
+    }
+
+    /**
+     * Appends a line, evicting the oldest if the history is full.
+     */
+    void add(String line) {
+        if (mSize < mEntries.length) {
+            mEntries[(mStart + mSize) % mEntries.length] = line;
+            mSize++;
+        } else {
+            mEntries[mStart] = line;
+            mStart = (mStart + 1) % mEntries.length;
+        }
+        log(line);
+    }
+
+    /**
+     * Closes the log after pending lines are written.
+     */
+    void close() {
+        if (mLogExecutor == null) {
+            return;
+        }
+        mLogExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeLog();
+            }
+        });
+        mLogExecutor.shutdown();
+    }
+
+    /**
+     * Waits for {@link #close()} to finish writing the log. Returns false on timeout.
+     */
+    @VisibleForTesting
+    boolean awaitClosed(long timeoutMs) throws InterruptedException {
+        return mLogExecutor == null
+                || mLogExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void log(String line) {
+        if (mLogExecutor == null) {
+            return;
+        }
+        final byte[] record = (System.currentTimeMillis() + "\t"
+                + line.replace('\n', ' ') + "\n").getBytes(UTF_8);
+        mLogExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mLog == null) {
+                        mLogBytes = mLogFile.length();
+                        mLog = new FileOutputStream(mLogFile, true);
+                    }
+                    mLog.write(record);
+                    mLogBytes += record.length;
+                    if (mLogBytes >= mMaxLogBytes) {
+                        rotateLog();
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "error writing transcript log", e);
+                    closeLog();
+                }
+            }
+        });
+    }
+
+    private void rotateLog() {
+        closeLog();
+        File oldest = mMaxLogBackups == 0 ? mLogFile : backup(mMaxLogBackups);
+        if (oldest.exists() && !oldest.delete()) {
+            Log.w(TAG, "failed to delete " + oldest);
+            return;
+        }
+        for (int i = mMaxLogBackups - 1; i >= 0; i--) {
+            File from = i == 0 ? mLogFile : backup(i);
+            if (from.exists() && !from.renameTo(backup(i + 1))) {
+                Log.w(TAG, "failed to rotate transcript log");
+                return;
+            }
+        }
+    }
+
+    private File backup(int index) {
+        return new File(mLogFile.getPath() + "." + index);
+    }
+
+    private void closeLog() {
+        if (mLog != null) {
+            try {
+                mLog.close();
+            } catch (IOException e) {
+                Log.w(TAG, "error closing transcript log", e);
+            }
+            mLog = null;
+        }
+    }
+}
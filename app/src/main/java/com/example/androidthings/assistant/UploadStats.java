@@ -0,0 +1,108 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * Statistics about request upload and flow control. Updated on the Assistant thread and safe to
+ * read from any thread.
+ */
+public class UploadStats {
+    private volatile int mQueueDepth;
+    private volatile int mMaxQueueDepth;
+    private volatile long mDroppedChunks;
+    private volatile long mStalls;
+    private volatile long mStallTimeMs;
+    private volatile long mLongestStallMs;
+
+    UploadStats() {}
+
+    /**
+     * Returns the number of requests currently waiting for the uplink.
+     */
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * Returns the largest queue depth seen.
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * Returns the number of audio chunks discarded because the queue was full.
+     */
+    public long getDroppedChunks() {
+        return mDroppedChunks;
+    }
+
+    /**
+     * Returns the number of times the uplink stopped accepting requests.
+     */
+    public long getStalls() {
+        return mStalls;
+    }
+
+    /**
+     * Returns the total time requests spent waiting for the uplink, in milliseconds.
+     */
+    public long getStallTimeMs() {
+        return mStallTimeMs;
+    }
+
+    /**
+     * Returns the longest single stall, in milliseconds.
+     */
+    public long getLongestStallMs() {
+        return mLongestStallMs;
+    }
+
+    @Override
+    public String toString() {
+        return "queue=" + mQueueDepth + " maxQueue=" + mMaxQueueDepth
+                + " dropped=" + mDroppedChunks + " stalls=" + mStalls
+                + " stallTimeMs=" + mStallTimeMs + " longestStallMs=" + mLongestStallMs;
+    }
+
+    void onEnqueued() {
+        mQueueDepth++;
+        if (mQueueDepth > mMaxQueueDepth) {
+            mMaxQueueDepth = mQueueDepth;
+        }
+    }
+
+    void onDequeued(int count) {
+        mQueueDepth -= count;
+    }
+
+    void onDropped() {
+        mQueueDepth--;
+        mDroppedChunks++;
+    }
+
+    void onStallStarted() {
+        mStalls++;
+    }
+
+    void onStallEnded(long durationMs) {
+        mStallTimeMs += durationMs;
+        if (durationMs > mLongestStallMs) {
+            mLongestStallMs = durationMs;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Minimal reader for 16-bit PCM RIFF/WAVE files.
+ */
+class WavReader {
+    private static final int RIFF = 0x46464952; // "RIFF"
+    private static final int WAVE = 0x45564157; // "WAVE"
+    private static final int FMT = 0x20746d66;  // "fmt "
+    private static final int DATA = 0x61746164; // "data"
+    private static final int FORMAT_PCM = 1;
+
+    private WavReader() {}
+
+    /**
+     * Reads a WAV stream and returns its samples down-mixed to mono.
+     *
+     * @param in The WAV stream. It is read fully but not closed.
+     * @param sampleRate The expected sample rate of the file.
+     * @return The mono samples.
+     * @throws IOException If the stream is not 16-bit PCM at the expected sample rate.
+     */
+    static short[] readMono16(InputStream in, int sampleRate) throws IOException {
+        ByteBuffer wav = ByteBuffer.wrap(readFully(in)).order(ByteOrder.LITTLE_ENDIAN);
+        if (wav.remaining() < 12 || wav.getInt() != RIFF) {
+            throw new IOException("Not a RIFF file");
+        }
+        wav.getInt(); // RIFF chunk size
+        if (wav.getInt() != WAVE) {
+            throw new IOException("Not a WAVE file");
+        }
+        int channels = 0;
+        while (wav.remaining() >= 8) {
+            int chunkId = wav.getInt();
+            int chunkSize = wav.getInt();
+            if (chunkSize < 0 || chunkSize > wav.remaining()) {
+                chunkSize = wav.remaining();
+            }
+            if (chunkId == FMT) {
+                int chunkEnd = wav.position() + chunkSize;
+                int format = wav.getShort() & 0xffff;
+                channels = wav.getShort() & 0xffff;
+                int fileSampleRate = wav.getInt();
+                wav.getInt(); // byte rate
+                wav.getShort(); // block align
+                int bitsPerSample = wav.getShort() & 0xffff;
+                if (format != FORMAT_PCM || bitsPerSample != 16 || channels == 0) {
+                    throw new IOException("Only 16-bit PCM is supported");
+                }
+                if (fileSampleRate != sampleRate) {
+                    throw new IOException("Expected " + sampleRate + " Hz, found "
+                            + fileSampleRate + " Hz");
+                }
+                wav.position(chunkEnd);
+            } else if (chunkId == DATA) {
+                if (channels == 0) {
+                    throw new IOException("Missing fmt chunk");
+                }
+                short[] samples = new short[chunkSize / (2 * channels)];
+                for (int i = 0; i < samples.length; i++) {
+                    int sum = 0;
+                    for (int c = 0; c < channels; c++) {
+                        sum += wav.getShort();
+                    }
+                    samples[i] = (short) (sum / channels);
+                }
+                return samples;
+            } else {
+                // Chunks are padded to an even size.
+                wav.position(Math.min(wav.limit(), wav.position() + chunkSize + (chunkSize & 1)));
+            }
+        }
+        throw new IOException("Missing data chunk");
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import com.google.assistant.embedded.v1alpha2.AssistRequest;
+import com.google.assistant.embedded.v1alpha2.AssistResponse;
+import com.google.assistant.embedded.v1alpha2.DialogStateOut;
+import com.google.assistant.embedded.v1alpha2.EmbeddedAssistantGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a slow response callback does not hold up the gRPC transport.
+ */
+public class AssistStreamTest {
+    private static final String SERVER_NAME = "assist-stream-test";
+    private static final int RESPONSES = 20;
+    private static final long TIMEOUT_MS = 5000;
+
+    private Server mServer;
+    private ManagedChannel mChannel;
+    private final ExecutorService mResponseExecutor = Executors.newSingleThreadExecutor();
+    private final AssistantMetrics mMetrics = new AssistantMetrics(new MetricsRegistry());
+
+    @Before
+    public void setUp() throws IOException {
+        // Answers every call at once with numbered responses, without waiting for requests.
+        mServer = InProcessServerBuilder.forName(SERVER_NAME)
+                .addService(new EmbeddedAssistantGrpc.EmbeddedAssistantImplBase() {
+                    @Override
+                    public StreamObserver<AssistRequest> assist(
+                            StreamObserver<AssistResponse> responseObserver) {
+                        for (int i = 0; i < RESPONSES; i++) {
+                            responseObserver.onNext(AssistResponse.newBuilder()
+                                    .setDialogStateOut(DialogStateOut.newBuilder()
+                                            .setSupplementalDisplayText(String.valueOf(i)))
+                                    .build());
+                        }
+                        responseObserver.onCompleted();
+                        return new StreamObserver<AssistRequest>() {
+                            @Override
+                            public void onNext(AssistRequest value) {}
+
+                            @Override
+                            public void onError(Throwable t) {}
+
+                            @Override
+                            public void onCompleted() {}
+                        };
+                    }
+                })
+                .build()
+                .start();
+        mChannel = InProcessChannelBuilder.forName(SERVER_NAME).build();
+    }
+
+    @After
+    public void tearDown() {
+        mChannel.shutdownNow();
+        mServer.shutdownNow();
+        mResponseExecutor.shutdownNow();
+    }
+
+    @Test
+    public void slowCallbackDoesNotBlockTransport() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch completed = new CountDownLatch(1);
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        StreamObserver<AssistResponse> callback = new StreamObserver<AssistResponse>() {
+            @Override
+            public void onNext(AssistResponse value) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                received.add(value.getDialogStateOut().getSupplementalDisplayText());
+            }
+
+            @Override
+            public void onError(Throwable t) {}
+
+            @Override
+            public void onCompleted() {
+                completed.countDown();
+            }
+        };
+        AssistantEndpoint endpoint = new AssistantEndpoint(SERVER_NAME, mChannel,
+                EmbeddedAssistantGrpc.newStub(mChannel));
+        new AssistStream(callback, mResponseExecutor, new Handler(), 10,
+                EmbeddedAssistant.DROP_OLDEST, new UploadStats(),
+                new NetworkQuality(false, mMetrics).startCall(), mMetrics, null)
+                .start(new EndpointPool(Collections.singletonList(endpoint)), 0);
+
+        // gRPC asks for the next response only once the observer returns, so every response
+        // reaching the queue means the transport never waited for the blocked callback.
+        long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mMetrics.responseQueueDepth.get() < RESPONSES - 1
+                && System.currentTimeMillis() < deadlineMs) {
+            Thread.sleep(5);
+        }
+        assertEquals(RESPONSES - 1, mMetrics.responseQueueDepth.get());
+        assertTrue(received.isEmpty());
+
+        release.countDown();
+        assertTrue(completed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(RESPONSES, received.size());
+        for (int i = 0; i < RESPONSES; i++) {
+            assertEquals(String.valueOf(i), received.get(i));
+        }
+        assertEquals(0, mMetrics.responseQueueDepth.get());
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import com.google.assistant.embedded.v1alpha2.AssistRequest;
+import com.google.assistant.embedded.v1alpha2.AssistResponse;
+import com.google.assistant.embedded.v1alpha2.DialogStateOut;
+import com.google.assistant.embedded.v1alpha2.EmbeddedAssistantGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Soaks the Android-free part of a connection: endpoints, calls and their teardown.
+ *
+ * <p>Each cycle connects like {@link EmbeddedAssistant#connect()}, with fresh channels and a
+ * fresh response executor, runs calls of which every other one is cancelled as by a barge-in,
+ * then tears down like {@link EmbeddedAssistant#destroy()}. The channels and the executor must
+ * terminate, and the live threads must not grow from cycle to cycle.
+ */
+public class CallTeardownSoakTest {
+    private static final String SERVER_NAME = "call-teardown-soak-test";
+    private static final int ENDPOINTS = 2;
+    private static final int CYCLES = 100;
+    private static final int WARMUP_CYCLES = 3;
+    private static final int CALLS_PER_CYCLE = 50;
+    private static final long REPLY_DELAY_MS = 5;
+    private static final int MAX_THREAD_GROWTH = 4;
+    private static final long TIMEOUT_MS = 5000;
+
+    private Server mServer;
+    private final ScheduledExecutorService mServerScheduler =
+            Executors.newSingleThreadScheduledExecutor();
+    private final AssistantMetrics mMetrics = new AssistantMetrics(new MetricsRegistry());
+
+    @Before
+    public void setUp() throws IOException {
+        // Answers every call once and completes it shortly after, unless it was cancelled.
+        mServer = InProcessServerBuilder.forName(SERVER_NAME)
+                .addService(new EmbeddedAssistantGrpc.EmbeddedAssistantImplBase() {
+                    @Override
+                    public StreamObserver<AssistRequest> assist(
+                            StreamObserver<AssistResponse> responseObserver) {
+                        final ServerCallStreamObserver<AssistResponse> call =
+                                (ServerCallStreamObserver<AssistResponse>) responseObserver;
+                        call.onNext(AssistResponse.newBuilder()
+                                .setDialogStateOut(DialogStateOut.newBuilder()
+                                        .setSupplementalDisplayText("reply"))
+                                .build());
+                        mServerScheduler.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!call.isCancelled()) {
+                                    call.onCompleted();
+                                }
+                            }
+                        }, REPLY_DELAY_MS, TimeUnit.MILLISECONDS);
+                        return new StreamObserver<AssistRequest>() {
+                            @Override
+                            public void onNext(AssistRequest value) {}
+
+                            @Override
+                            public void onError(Throwable t) {}
+
+                            @Override
+                            public void onCompleted() {}
+                        };
+                    }
+                })
+                .build()
+                .start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdownNow();
+        mServerScheduler.shutdownNow();
+    }
+
+    @Test
+    public void connectCyclesDoNotLeak() throws InterruptedException {
+        int baselineThreads = 0;
+        for (int cycle = 0; cycle < CYCLES; cycle++) {
+            runCycle();
+            if (cycle == WARMUP_CYCLES - 1) {
+                baselineThreads = countThreads();
+            }
+        }
+        int threads = countThreads();
+        assertTrue("threads grew from " + baselineThreads + " to " + threads,
+                threads <= baselineThreads + MAX_THREAD_GROWTH);
+        assertEquals(0, mMetrics.responseQueueDepth.get());
+    }
+
+    /**
+     * Returns the number of live threads, except those of the executor gRPC shares between
+     * channels. It keeps idle threads for a minute and grows with the peak number of calls.
+     */
+    private static int countThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && !thread.getName().startsWith("grpc-default-executor")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void runCycle() throws InterruptedException {
+        List<AssistantEndpoint> endpoints = new ArrayList<>();
+        for (int i = 0; i < ENDPOINTS; i++) {
+            ManagedChannel channel = InProcessChannelBuilder.forName(SERVER_NAME).build();
+            endpoints.add(new AssistantEndpoint(SERVER_NAME + i, channel,
+                    EmbeddedAssistantGrpc.newStub(channel)));
+        }
+        EndpointPool pool = new EndpointPool(endpoints);
+        ExecutorService responseExecutor = Executors.newSingleThreadExecutor();
+        NetworkQuality quality = new NetworkQuality(false, mMetrics);
+
+        final CountDownLatch completed = new CountDownLatch(CALLS_PER_CYCLE / 2);
+        StreamObserver<AssistResponse> callback = new StreamObserver<AssistResponse>() {
+            @Override
+            public void onNext(AssistResponse value) {}
+
+            @Override
+            public void onError(Throwable t) {}
+
+            @Override
+            public void onCompleted() {
+                completed.countDown();
+            }
+        };
+        for (int i = 0; i < CALLS_PER_CYCLE; i++) {
+            AssistStream call = new AssistStream(callback, responseExecutor, new Handler(), 10,
+                    EmbeddedAssistant.DROP_OLDEST, new UploadStats(), quality.startCall(),
+                    mMetrics, null)
+                    .start(pool, 0);
+            if (i % 2 == 1) {
+                call.cancel("interrupted by the user");
+            }
+        }
+        assertTrue(completed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // What destroy() does with the channels it created and the response thread.
+        pool.shutdown();
+        responseExecutor.shutdown();
+        for (AssistantEndpoint endpoint : endpoints) {
+            assertTrue(endpoint.getChannel().awaitTermination(TIMEOUT_MS,
+                    TimeUnit.MILLISECONDS));
+        }
+        assertTrue(responseExecutor.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.example.androidthings.assistant.EmbeddedAssistant.ConversationCallback;
+import com.example.androidthings.assistant.EmbeddedAssistant.RequestCallback;
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Cycles {@link EmbeddedAssistant#connect()} and {@link EmbeddedAssistant#destroy()} on one
+ * Assistant, as an activity that is recreated does.
+ *
+ * <p>The Android classes are those of the mockable android.jar, so handlers drop what is posted
+ * to them and the Assistant never becomes ready. What runs for real is the thread and channel
+ * bookkeeping: every thread a cycle starts must be gone shortly after destroy() returns, and
+ * destroy() must not wait longer than its playback timeout.
+ */
+public class ConnectCycleTest {
+    private static final String SERVER_NAME = "connect-cycle-test";
+    private static final int CYCLES = 200;
+    private static final int SAMPLE_RATE = 16000;
+    private static final long DESTROY_TIMEOUT_MS = 2000;
+    private static final long THREAD_EXIT_TIMEOUT_MS = 5000;
+
+    private ManagedChannel mChannel;
+    private EmbeddedAssistant mAssistant;
+
+    @Before
+    public void setUp() {
+        mChannel = InProcessChannelBuilder.forName(SERVER_NAME).build();
+        mAssistant = new EmbeddedAssistant.Builder()
+                .setChannel(mChannel)
+                .setDeviceInstanceId("test-device")
+                .setDeviceModelId("test-model")
+                .setAudioSampleRate(SAMPLE_RATE)
+                .setRequestCallback(new RequestCallback() {})
+                .setConversationCallback(new ConversationCallback() {})
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        mChannel.shutdownNow();
+    }
+
+    @Test
+    public void connectDestroyCyclesDoNotLeak() throws InterruptedException {
+        for (int cycle = 0; cycle < CYCLES; cycle++) {
+            mAssistant.connect();
+            long startMs = System.currentTimeMillis();
+            mAssistant.destroy();
+            long destroyMs = System.currentTimeMillis() - startMs;
+            assertTrue("destroy() took " + destroyMs + " ms in cycle " + cycle,
+                    destroyMs < DESTROY_TIMEOUT_MS);
+            assertEquals("threads left after cycle " + cycle, 0,
+                    awaitAssistantThreadsExit(THREAD_EXIT_TIMEOUT_MS));
+        }
+        // The channel was given to the builder, so it belongs to the caller.
+        assertFalse(mChannel.isShutdown());
+    }
+
+    /**
+     * Waits for the threads the Assistant starts to exit and returns how many are left.
+     */
+    private static int awaitAssistantThreadsExit(long timeoutMs) throws InterruptedException {
+        long deadlineMs = System.currentTimeMillis() + timeoutMs;
+        int live;
+        while ((live = countAssistantThreads()) > 0 && System.currentTimeMillis() < deadlineMs) {
+            Thread.sleep(5);
+        }
+        return live;
+    }
+
+    private static int countAssistantThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("assistant")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
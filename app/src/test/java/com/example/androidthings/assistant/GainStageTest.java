@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class GainStageTest {
+    private static final int SAMPLE_RATE = 16000;
+
+    @Test
+    public void unityVolumeLeavesAudioUntouched() {
+        GainStage stage = new GainStage(SAMPLE_RATE, 100);
+        short[] samples = fullScale(512);
+        short[] expected = samples.clone();
+        stage.process(samples, samples.length);
+        assertArrayEquals(expected, samples);
+    }
+
+    @Test
+    public void lowerVolumeScalesWithoutLimiting() {
+        GainStage stage = new GainStage(SAMPLE_RATE, 50);
+        short[] samples = fullScale(512);
+        stage.process(samples, samples.length);
+        assertEquals(Short.MAX_VALUE / 2, samples[0]);
+        assertEquals(Short.MIN_VALUE / 2, samples[1]);
+    }
+
+    @Test
+    public void loudnessTargetIsLimited() {
+        GainStage stage = new GainStage(SAMPLE_RATE, 100);
+        stage.setLoudnessTarget(-3);
+        short[] samples = new short[SAMPLE_RATE];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (8000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE));
+        }
+        stage.process(samples, samples.length);
+        int peak = 0;
+        for (int i = SAMPLE_RATE / 2; i < samples.length; i++) {
+            peak = Math.max(peak, Math.abs(samples[i]));
+        }
+        // Boosted above the input, but held at -1 dBFS.
+        assertTrue(String.valueOf(peak), peak > 8000 && peak <= 0.89f * Short.MAX_VALUE + 1);
+    }
+
+    private static short[] fullScale(int length) {
+        short[] samples = new short[length];
+        for (int i = 0; i < length; i++) {
+            samples[i] = i % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+        }
+        return samples;
+    }
+}
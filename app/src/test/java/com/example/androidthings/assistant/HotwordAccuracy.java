@@ -0,0 +1,159 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the false accepts and false rejects of {@link TemplateHotwordDetector} over a
+ * labelled corpus of WAV files.
+ *
+ * <p>A corpus is a directory with a {@code positive} folder of clips containing the wake word and
+ * a {@code negative} folder of clips that do not. Run it on a recorded corpus with
+ * <pre>
+ * HotwordAccuracy &lt;template.wav&gt; &lt;corpus dir&gt; [threshold...]
+ * </pre>
+ * to print the error rates at each threshold.
+ */
+public class HotwordAccuracy {
+    static final int SAMPLE_RATE = 16000;
+    // Clips are fed in blocks of the size captured on the device.
+    private static final int BLOCK_SIZE = 512;
+
+    final int positives;
+    final int negatives;
+    final int falseRejects;
+    final int falseAccepts;
+    // False accepts per hour of negative audio.
+    final float falseAcceptsPerHour;
+
+    private HotwordAccuracy(int positives, int negatives, int falseRejects, int falseAccepts,
+            float negativeHours) {
+        this.positives = positives;
+        this.negatives = negatives;
+        this.falseRejects = falseRejects;
+        this.falseAccepts = falseAccepts;
+        falseAcceptsPerHour = negativeHours > 0 ? falseAccepts / negativeHours : 0;
+    }
+
+    float getFalseRejectRate() {
+        return positives == 0 ? 0 : (float) falseRejects / positives;
+    }
+
+    float getFalseAcceptRate() {
+        return negatives == 0 ? 0 : (float) falseAccepts / negatives;
+    }
+
+    /**
+     * Runs a detector over labelled clips. The detector is reset before each clip.
+     */
+    static HotwordAccuracy evaluate(HotwordDetector detector, List<short[]> positives,
+            List<short[]> negatives) {
+        int falseRejects = 0;
+        for (short[] clip : positives) {
+            if (!detects(detector, clip)) {
+                falseRejects++;
+            }
+        }
+        int falseAccepts = 0;
+        long negativeSamples = 0;
+        for (short[] clip : negatives) {
+            negativeSamples += clip.length;
+            if (detects(detector, clip)) {
+                falseAccepts++;
+            }
+        }
+        return new HotwordAccuracy(positives.size(), negatives.size(), falseRejects,
+                falseAccepts, negativeSamples / (float) SAMPLE_RATE / 3600);
+    }
+
+    /**
+     * Runs a detector over the {@code positive} and {@code negative} folders of a corpus.
+     */
+    static HotwordAccuracy evaluate(HotwordDetector detector, File corpus) throws IOException {
+        return evaluate(detector, readClips(new File(corpus, "positive")),
+                readClips(new File(corpus, "negative")));
+    }
+
+    private static boolean detects(HotwordDetector detector, short[] clip) {
+        detector.reset();
+        short[] block = new short[BLOCK_SIZE];
+        boolean detected = false;
+        for (int offset = 0; offset < clip.length; offset += BLOCK_SIZE) {
+            int length = Math.min(BLOCK_SIZE, clip.length - offset);
+            System.arraycopy(clip, offset, block, 0, length);
+            detected |= detector.process(block, length);
+        }
+        return detected;
+    }
+
+    static List<short[]> readClips(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Missing " + dir);
+        }
+        Arrays.sort(files);
+        List<short[]> clips = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().endsWith(".wav")) {
+                clips.add(readWav(file));
+            }
+        }
+        return clips;
+    }
+
+    static short[] readWav(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return WavReader.readMono16(in, SAMPLE_RATE);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("false rejects %d/%d (%.1f%%), false accepts %d/%d (%.1f%%, %.1f/h)",
+                falseRejects, positives, 100 * getFalseRejectRate(), falseAccepts, negatives,
+                100 * getFalseAcceptRate(), falseAcceptsPerHour);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: HotwordAccuracy <template.wav> <corpus dir> [threshold...]");
+            System.exit(2);
+        }
+        short[] template = readWav(new File(args[0]));
+        File corpus = new File(args[1]);
+        List<short[]> positives = readClips(new File(corpus, "positive"));
+        List<short[]> negatives = readClips(new File(corpus, "negative"));
+        float[] thresholds = args.length > 2 ? new float[args.length - 2]
+                : new float[] {TemplateHotwordDetector.DEFAULT_THRESHOLD};
+        for (int i = 2; i < args.length; i++) {
+            thresholds[i - 2] = Float.parseFloat(args[i]);
+        }
+        for (float threshold : thresholds) {
+            TemplateHotwordDetector detector =
+                    new TemplateHotwordDetector(template, SAMPLE_RATE, threshold);
+            System.out.println("threshold " + threshold + ": "
+                    + evaluate(detector, positives, negatives));
+        }
+    }
+}
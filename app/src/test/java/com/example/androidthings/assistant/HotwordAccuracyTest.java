@@ -0,0 +1,139 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs {@link HotwordAccuracy} over a synthetic corpus written as WAV files: a "word" of three
+ * tones, said faster, slower, louder and over noise, against other tone sequences and noise.
+ */
+public class HotwordAccuracyTest {
+    private static final float[] WORD = {500, 1500, 750};
+    private static final float[][] OTHER_WORDS = {{2000, 300, 2700}, {3500, 1100, 3500}};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(1);
+
+    @Test
+    public void defaultThresholdSeparatesWordFromOtherSounds() throws IOException {
+        File corpus = writeCorpus();
+        HotwordAccuracy accuracy = HotwordAccuracy.evaluate(
+                newDetector(TemplateHotwordDetector.DEFAULT_THRESHOLD), corpus);
+
+        assertEquals(6, accuracy.positives);
+        assertEquals(5, accuracy.negatives);
+        assertEquals(accuracy.toString(), 0, accuracy.falseRejects);
+        assertEquals(accuracy.toString(), 0, accuracy.falseAccepts);
+    }
+
+    @Test
+    public void stricterThresholdTradesRejectsForAccepts() throws IOException {
+        File corpus = writeCorpus();
+        HotwordAccuracy previous = null;
+        float[] thresholds = {0.1f, 0.35f, TemplateHotwordDetector.DEFAULT_THRESHOLD, 1f};
+        for (float threshold : thresholds) {
+            HotwordAccuracy accuracy = HotwordAccuracy.evaluate(newDetector(threshold), corpus);
+            if (previous != null) {
+                assertTrue(threshold + ": " + accuracy,
+                        accuracy.falseRejects <= previous.falseRejects);
+                assertTrue(threshold + ": " + accuracy,
+                        accuracy.falseAccepts >= previous.falseAccepts);
+            }
+            previous = accuracy;
+        }
+        assertEquals(6, HotwordAccuracy.evaluate(newDetector(0), corpus).falseRejects);
+    }
+
+    private TemplateHotwordDetector newDetector(float threshold) throws IOException {
+        return new TemplateHotwordDetector(clip(WORD, 1, 1, 200), HotwordAccuracy.SAMPLE_RATE,
+                threshold);
+    }
+
+    private File writeCorpus() throws IOException {
+        File positive = mFolder.newFolder("positive");
+        File negative = mFolder.newFolder("negative");
+        float[] stretches = {0.85f, 1f, 1.15f};
+        float[] gains = {0.3f, 1f};
+        int clip = 0;
+        for (float stretch : stretches) {
+            for (float gain : gains) {
+                writeWav(new File(positive, clip++ + ".wav"), clip(WORD, stretch, gain, 200));
+            }
+        }
+        clip = 0;
+        for (float[] other : OTHER_WORDS) {
+            for (float gain : gains) {
+                writeWav(new File(negative, clip++ + ".wav"), clip(other, 1, gain, 200));
+            }
+        }
+        writeWav(new File(negative, clip + ".wav"), clip(new float[0], 1, 1, 3000));
+        return mFolder.getRoot();
+    }
+
+    /**
+     * Returns background noise, then 150 ms tones with a smooth envelope, then noise again.
+     */
+    private short[] clip(float[] tones, float stretch, float gain, int noiseMs) {
+        int noise = HotwordAccuracy.SAMPLE_RATE * noiseMs / 1000;
+        int toneLength = (int) (HotwordAccuracy.SAMPLE_RATE * 0.15f * stretch);
+        short[] samples = new short[2 * noise + tones.length * toneLength];
+        double phase = 0;
+        for (int i = 0; i < samples.length; i++) {
+            double value = mRandom.nextGaussian() * 30;
+            int t = i - noise;
+            if (t >= 0 && t < tones.length * toneLength) {
+                float frequency = tones[t / toneLength];
+                phase += 2 * Math.PI * frequency / HotwordAccuracy.SAMPLE_RATE;
+                double envelope = Math.sin(Math.PI * (t % toneLength) / toneLength);
+                value += 12000 * gain * envelope * Math.sin(phase);
+            }
+            samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+        }
+        return samples;
+    }
+
+    private static void writeWav(File file, short[] samples) throws IOException {
+        ByteBuffer wav = ByteBuffer.allocate(44 + 2 * samples.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        wav.putInt(0x46464952).putInt(36 + 2 * samples.length).putInt(0x45564157);
+        wav.putInt(0x20746d66).putInt(16).putShort((short) 1).putShort((short) 1)
+                .putInt(HotwordAccuracy.SAMPLE_RATE).putInt(2 * HotwordAccuracy.SAMPLE_RATE)
+                .putShort((short) 2).putShort((short) 16);
+        wav.putInt(0x61746164).putInt(2 * samples.length);
+        for (short sample : samples) {
+            wav.putShort(sample);
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(wav.array());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.assistant.embedded.v1alpha2.AssistRequest;
+import com.google.assistant.embedded.v1alpha2.AssistResponse;
+import com.google.assistant.embedded.v1alpha2.AudioOut;
+import com.google.assistant.embedded.v1alpha2.DialogStateOut;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+
+public class JitterBufferTunerTest {
+    private static final int SAMPLE_RATE = 16000;
+    // 100 ms of 16-bit mono audio.
+    private static final int CHUNK_BYTES = SAMPLE_RATE * 2 / 10;
+
+    @Test
+    public void steadyReplyShrinksTarget() throws IOException {
+        JitterBufferTuner tuner = new JitterBufferTuner(SAMPLE_RATE, 200, 40, 2000);
+        // Every chunk arrives just as the previous one would finish playing.
+        assertEquals(0, tuner.replay(trace(0, 100, 200, 300, 400, 500)));
+        // A quarter of the way from 200 ms towards the 40 ms floor.
+        assertEquals(160, tuner.getTargetMs());
+    }
+
+    @Test
+    public void lateChunkGrowsTarget() throws IOException {
+        JitterBufferTuner tuner = new JitterBufferTuner(SAMPLE_RATE, 200, 40, 2000);
+        // The fourth chunk is 300 ms late, the rest keep its pace.
+        assertEquals(300, tuner.replay(trace(0, 100, 200, 600, 700, 800)));
+        assertEquals(320, tuner.getTargetMs());
+    }
+
+    @Test
+    public void targetIsCapped() throws IOException {
+        JitterBufferTuner tuner = new JitterBufferTuner(SAMPLE_RATE, 200, 40, 500);
+        assertEquals(900, tuner.replay(trace(0, 1000)));
+        assertEquals(500, tuner.getTargetMs());
+    }
+
+    /**
+     * Returns a recorded call with one config request, one audio chunk per arrival time and a
+     * final response without audio.
+     */
+    private static ConversationTrace trace(long... arrivalMs) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        ConversationTrace.writeHeader(output);
+        ConversationTrace.writeFrame(output, 0, ConversationTrace.DIRECTION_REQUEST,
+                AssistRequest.getDefaultInstance());
+        ByteString chunk = ByteString.copyFrom(new byte[CHUNK_BYTES]);
+        long lastMs = 0;
+        for (long ms : arrivalMs) {
+            ConversationTrace.writeFrame(output, ms * 1000, ConversationTrace.DIRECTION_RESPONSE,
+                    AssistResponse.newBuilder()
+                            .setAudioOut(AudioOut.newBuilder().setAudioData(chunk))
+                            .build());
+            lastMs = ms;
+        }
+        ConversationTrace.writeFrame(output, (lastMs + 10) * 1000,
+                ConversationTrace.DIRECTION_RESPONSE,
+                AssistResponse.newBuilder()
+                        .setDialogStateOut(DialogStateOut.newBuilder()
+                                .setSupplementalDisplayText("done"))
+                        .build());
+        output.flush();
+        return ConversationTrace.read(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+}
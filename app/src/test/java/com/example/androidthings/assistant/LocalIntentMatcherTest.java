@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import org.junit.Test;
+
+public class LocalIntentMatcherTest {
+    private static final String ON = "{\"on\":true}";
+    private static final String OFF = "{\"on\":false}";
+
+    private final LocalIntentMatcher mMatcher = new LocalIntentMatcher(
+            Collections.singletonList(LocalIntentMatcher.TRAIT_ON_OFF));
+
+    @Test
+    public void matchesOnOffPhrases() {
+        assertOnOff(ON, "turn on the light");
+        assertOnOff(ON, "Turn the lights on.");
+        assertOnOff(OFF, "switch it off");
+        assertOnOff(OFF, "could you turn off the LED?");
+        assertOnOff(ON, "lights on");
+    }
+
+    @Test
+    public void ignoresFillers() {
+        assertOnOff(ON, "please turn on the light");
+        assertOnOff(OFF, "turn the light off, please");
+        assertOnOff(ON, "can you please turn the light on please");
+    }
+
+    @Test
+    public void leavesOtherQueriesToAssistant() {
+        assertNull(mMatcher.match("turn on the light in the kitchen"));
+        assertNull(mMatcher.match("what is the weather"));
+        assertNull(mMatcher.match("turn the light"));
+        assertNull(mMatcher.match("turn"));
+    }
+
+    @Test
+    public void emptyQueriesDoNotMatch() {
+        assertNull(mMatcher.match(""));
+        assertNull(mMatcher.match("   "));
+        assertNull(mMatcher.match("?!"));
+        assertNull(mMatcher.match("please"));
+        assertNull(mMatcher.match("please, please"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTraitsWithoutPhrases() {
+        new LocalIntentMatcher(Collections.singletonList("action.devices.traits.Brightness"));
+    }
+
+    private void assertOnOff(String params, String query) {
+        LocalIntentMatcher.Match match = mMatcher.match(query);
+        assertNotNull(query, match);
+        assertEquals(query, LocalIntentMatcher.COMMAND_ON_OFF, match.command);
+        assertEquals(query, params, match.params);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.assistant.embedded.v1alpha2.AssistRequest;
+import com.google.assistant.embedded.v1alpha2.AssistResponse;
+import com.google.assistant.embedded.v1alpha2.AudioInConfig;
+import com.google.assistant.embedded.v1alpha2.AudioOut;
+import com.google.assistant.embedded.v1alpha2.EmbeddedAssistantGrpc;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.stub.StreamObserver;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives the link assessment with calls replayed from a trace over a throttled downlink.
+ */
+public class NetworkQualityTest {
+    private static final String SERVER_NAME = "network-quality-test";
+    // 16 KB of reply audio in 20 chunks, sent as fast as the link allows.
+    private static final int CHUNKS = 20;
+    private static final int CHUNK_BYTES = 800;
+    // About 96 kbit/s, below the poor threshold of 128.
+    private static final int SLOW_BYTES_PER_SECOND = 12000;
+    // About 384 kbit/s, above the good threshold of 256.
+    private static final int FAST_BYTES_PER_SECOND = 48000;
+    private static final long TIMEOUT_MS = 10000;
+
+    private final AssistantMetrics mMetrics = new AssistantMetrics(new MetricsRegistry());
+    private TraceReplayService mService;
+    private Server mServer;
+    private ManagedChannel mChannel;
+
+    @Before
+    public void setUp() throws IOException {
+        mService = new TraceReplayService(Collections.singletonList(trace()),
+                Float.POSITIVE_INFINITY);
+        mServer = mService.start(SERVER_NAME);
+        mChannel = TraceReplayService.newChannel(SERVER_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mChannel.shutdownNow();
+        mServer.shutdownNow();
+        mService.shutdown();
+    }
+
+    @Test
+    public void slowDownlinkSwitchesToFlacAndBack() throws InterruptedException {
+        NetworkQuality quality = new NetworkQuality(true, mMetrics);
+        quality.decide(true);
+        assertGood(quality);
+
+        mService.setDownlinkBandwidth(SLOW_BYTES_PER_SECOND);
+        runCall(quality);
+        quality.decide(true);
+        assertTrue(quality.toString(), quality.isPoorLink());
+        assertEquals(AudioInConfig.Encoding.FLAC, quality.getUploadEncoding());
+        assertEquals(NetworkQuality.POOR_LINK_CHUNK_MS, quality.getUploadChunkMs());
+        assertEquals(1, mMetrics.linkPoor.get());
+        assertEquals(1, mMetrics.uploadEncodingFlac.get());
+        assertEquals(0, mMetrics.uploadEncodingLinear16.get());
+        assertEquals(NetworkQuality.POOR_LINK_CHUNK_MS, mMetrics.uploadChunkMs.get());
+        assertTrue(mMetrics.linkDownlinkKbps.get() < 128);
+        assertEquals(1, mMetrics.linkSwitches.get());
+
+        // One fast call lifts the average between the thresholds, where the link stays poor.
+        mService.setDownlinkBandwidth(FAST_BYTES_PER_SECOND);
+        runCall(quality);
+        quality.decide(true);
+        assertTrue(quality.toString(), quality.isPoorLink());
+
+        while (quality.isPoorLink() && quality.getCalls() < 10) {
+            runCall(quality);
+            quality.decide(true);
+        }
+        assertGood(quality);
+        assertTrue(mMetrics.linkDownlinkKbps.get() >= 256);
+        assertEquals(2, mMetrics.linkSwitches.get());
+        assertEquals(Math.round(quality.getLatencyMs()), mMetrics.linkLatencyMs.get());
+    }
+
+    @Test
+    public void slowDownlinkKeepsLinear16WithoutFlac() throws InterruptedException {
+        NetworkQuality quality = new NetworkQuality(true, mMetrics);
+        mService.setDownlinkBandwidth(SLOW_BYTES_PER_SECOND);
+        runCall(quality);
+        quality.decide(false);
+        assertTrue(quality.isPoorLink());
+        assertEquals(AudioInConfig.Encoding.LINEAR16, quality.getUploadEncoding());
+        assertEquals(1, mMetrics.uploadEncodingLinear16.get());
+    }
+
+    private void assertGood(NetworkQuality quality) {
+        assertFalse(quality.toString(), quality.isPoorLink());
+        assertEquals(AudioInConfig.Encoding.LINEAR16, quality.getUploadEncoding());
+        assertEquals(NetworkQuality.GOOD_LINK_CHUNK_MS, quality.getUploadChunkMs());
+        assertEquals(0, mMetrics.linkPoor.get());
+        assertEquals(1, mMetrics.uploadEncodingLinear16.get());
+        assertEquals(NetworkQuality.GOOD_LINK_CHUNK_MS, mMetrics.uploadChunkMs.get());
+    }
+
+    /**
+     * Runs one call against the replay service and reports it to the link assessment.
+     */
+    private void runCall(NetworkQuality quality) throws InterruptedException {
+        final NetworkQuality.Call call = quality.startCall();
+        final CountDownLatch completed = new CountDownLatch(1);
+        StreamObserver<AssistRequest> requests = EmbeddedAssistantGrpc.newStub(mChannel).assist(
+                new StreamObserver<AssistResponse>() {
+                    @Override
+                    public void onNext(AssistResponse value) {
+                        call.onResponse(value, System.currentTimeMillis());
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        completed.countDown();
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        completed.countDown();
+                    }
+                });
+        call.onRequestWritten(System.currentTimeMillis());
+        requests.onNext(AssistRequest.getDefaultInstance());
+        requests.onCompleted();
+        assertTrue(completed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        call.finish();
+    }
+
+    private static ConversationTrace trace() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        ConversationTrace.writeHeader(output);
+        ConversationTrace.writeFrame(output, 0, ConversationTrace.DIRECTION_REQUEST,
+                AssistRequest.getDefaultInstance());
+        ByteString chunk = ByteString.copyFrom(new byte[CHUNK_BYTES]);
+        for (int i = 0; i < CHUNKS; i++) {
+            ConversationTrace.writeFrame(output, i * 1000, ConversationTrace.DIRECTION_RESPONSE,
+                    AssistResponse.newBuilder()
+                            .setAudioOut(AudioOut.newBuilder().setAudioData(chunk))
+                            .build());
+        }
+        output.flush();
+        return ConversationTrace.read(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class SessionStateTest {
+    private static final int THREADS = 8;
+    private static final int TRIGGERS_PER_THREAD = 20000;
+
+    @Test
+    public void triggerFromIdleIsAccepted() {
+        SessionState session = new SessionState();
+        assertEquals(SessionState.ACCEPTED, session.trigger(SessionState.LISTENING, true));
+        assertEquals(SessionState.LISTENING, session.get());
+        assertEquals(SessionState.COALESCED, session.trigger(SessionState.LISTENING, true));
+        assertEquals(SessionState.REJECTED, session.trigger(SessionState.THINKING, true));
+    }
+
+    @Test
+    public void onlyFirstTriggerInterruptsReply() {
+        SessionState session = new SessionState();
+        session.set(SessionState.SPEAKING);
+        assertEquals(SessionState.PREEMPTED, session.trigger(SessionState.LISTENING, true));
+        assertEquals(SessionState.COALESCED, session.trigger(SessionState.LISTENING, true));
+        assertEquals(SessionState.REJECTED, session.trigger(SessionState.LISTENING, false));
+        assertTrue(session.takeInterrupt());
+        assertEquals(SessionState.PREEMPTED, session.trigger(SessionState.LISTENING, true));
+    }
+
+    /**
+     * Fires triggers from several threads. Whichever thread a trigger is accepted on owns the
+     * request and moves it through the states, serving the interrupts raised meanwhile.
+     */
+    @Test
+    public void concurrentTriggersKeepOneRequestInFlight() throws InterruptedException {
+        final SessionState session = new SessionState();
+        final AtomicInteger owners = new AtomicInteger();
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger preempted = new AtomicInteger();
+        final AtomicInteger interruptsTaken = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < TRIGGERS_PER_THREAD && failure.get() == null; i++) {
+                            int requested = random.nextInt(4) == 0
+                                    ? SessionState.THINKING : SessionState.LISTENING;
+                            switch (session.trigger(requested, true)) {
+                                case SessionState.ACCEPTED:
+                                    assertEquals(1, owners.incrementAndGet());
+                                    serve(requested);
+                                    break;
+                                case SessionState.PREEMPTED:
+                                    preempted.incrementAndGet();
+                                    break;
+                                default:
+                                    break;
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+
+                private void serve(int requested) {
+                    int state = requested;
+                    while (true) {
+                        requests.incrementAndGet();
+                        if (state == SessionState.LISTENING) {
+                            assertTrue(session.transition(SessionState.LISTENING,
+                                    SessionState.THINKING));
+                        }
+                        assertTrue(session.transition(SessionState.THINKING,
+                                SessionState.SPEAKING));
+                        Thread.yield();
+                        if (session.takeInterrupt()) {
+                            interruptsTaken.incrementAndGet();
+                            // Barge-in: the same owner starts listening again.
+                            assertTrue(session.transition(SessionState.SPEAKING,
+                                    SessionState.LISTENING));
+                            state = SessionState.LISTENING;
+                            continue;
+                        }
+                        owners.decrementAndGet();
+                        assertTrue(session.transition(SessionState.SPEAKING,
+                                SessionState.IDLE));
+                        return;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(String.valueOf(failure.get()), failure.get());
+        assertEquals(SessionState.IDLE, session.get());
+        assertEquals(0, owners.get());
+        // An interrupt raised after its reply finished is still pending.
+        if (session.takeInterrupt()) {
+            interruptsTaken.incrementAndGet();
+        }
+        assertEquals(preempted.get(), interruptsTaken.get());
+        assertTrue(requests.get() > 0);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.Handler;
+import com.google.assistant.embedded.v1alpha2.SpeechRecognitionResult;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class SpeechRecognitionAggregatorTest {
+    private final SpeechRecognitionAggregator mAggregator = new SpeechRecognitionAggregator(
+            new Handler(), new EmbeddedAssistant.RequestCallback() {}, 10);
+
+    @Test
+    public void unstableTailExtendsStablePrefix() {
+        mAggregator.update(Arrays.asList(result("hello ", 0.95f), result("wor", 0.3f)));
+        mAggregator.update(Arrays.asList(result("hello world", 0.5f)));
+        assertEquals("hello world", mAggregator.getHypothesis());
+    }
+
+    @Test
+    public void stableTextGrows() {
+        mAggregator.update(Arrays.asList(result("hello ", 0.95f)));
+        mAggregator.update(Arrays.asList(result("hello world", 0.95f), result(" how", 0.1f)));
+        assertEquals("hello world how", mAggregator.getHypothesis());
+    }
+
+    @Test
+    public void revisionReplacesStableText() {
+        mAggregator.update(Arrays.asList(result("hello ", 0.95f)));
+        mAggregator.update(Arrays.asList(result("yellow world", 0.3f)));
+        assertEquals("yellow world", mAggregator.getHypothesis());
+    }
+
+    @Test
+    public void revisionKeepsNewStableText() {
+        mAggregator.update(Arrays.asList(result("hello there ", 0.95f)));
+        mAggregator.update(Arrays.asList(result("yellow ", 0.95f), result("fellow", 0.2f)));
+        assertEquals("yellow fellow", mAggregator.getHypothesis());
+    }
+
+    private static SpeechRecognitionResult result(String transcript, float stability) {
+        return SpeechRecognitionResult.newBuilder()
+                .setTranscript(transcript)
+                .setStability(stability)
+                .build();
+    }
+}
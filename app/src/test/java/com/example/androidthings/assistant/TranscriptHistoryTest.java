@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TranscriptHistoryTest {
+    private static final long MAX_LOG_BYTES = 100;
+    private static final long TIMEOUT_MS = 5000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void keepsNewestLinesInMemory() {
+        TranscriptHistory history = new TranscriptHistory(3, null, MAX_LOG_BYTES, 0);
+        for (int i = 0; i < 5; i++) {
+            history.add("line " + i);
+        }
+        assertEquals(3, history.size());
+        assertEquals("line 2", history.get(0));
+        assertEquals("line 4", history.get(2));
+    }
+
+    @Test
+    public void rotatesThroughNumberedBackups() throws Exception {
+        File log = new File(mFolder.getRoot(), "transcript.log");
+        TranscriptHistory history = new TranscriptHistory(10, log, MAX_LOG_BYTES, 2);
+        for (int i = 0; i < 40; i++) {
+            history.add(String.format("line %02d", i));
+        }
+        history.close();
+        assertTrue(history.awaitClosed(TIMEOUT_MS));
+
+        File first = new File(log.getPath() + ".1");
+        File second = new File(log.getPath() + ".2");
+        assertTrue(first.exists());
+        assertTrue(second.exists());
+        assertFalse(new File(log.getPath() + ".3").exists());
+
+        // Oldest to newest, the kept lines are consecutive and end with the last one.
+        List<String> lines = new ArrayList<>();
+        for (File file : new File[] {second, first, log}) {
+            if (!file.exists()) {
+                // The last line filled the live log, which is recreated on the next one.
+                continue;
+            }
+            assertTrue(file + " is " + file.length() + " bytes", file.length() < 2 * MAX_LOG_BYTES);
+            lines.addAll(readLines(file));
+        }
+        assertTrue(lines.size() < 40);
+        for (int i = 0; i < lines.size(); i++) {
+            assertEquals(String.format("line %02d", 40 - lines.size() + i), lines.get(i));
+        }
+    }
+
+    @Test
+    public void dropsFullLogWithoutBackups() throws Exception {
+        File log = new File(mFolder.getRoot(), "transcript.log");
+        TranscriptHistory history = new TranscriptHistory(10, log, MAX_LOG_BYTES, 0);
+        for (int i = 0; i < 40; i++) {
+            history.add(String.format("line %02d", i));
+        }
+        history.close();
+        assertTrue(history.awaitClosed(TIMEOUT_MS));
+        assertFalse(new File(log.getPath() + ".1").exists());
+        assertTrue(log.length() < MAX_LOG_BYTES);
+    }
+
+    /**
+     * Returns the lines of a log without their timestamps.
+     */
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String record : Files.readAllLines(file.toPath(), Charset.forName("UTF-8"))) {
+            lines.add(record.substring(record.indexOf('\t') + 1));
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to run the capture stages on one 32 ms block at 16 kHz, alone and chained as in
+ * {@code AssistantActivity}. Each block is copied from the same speech-like input first;
+ * {@code none} measures the copy alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CaptureStageBenchmark {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int BLOCK_SIZE = SAMPLE_RATE * 32 / 1000;
+
+    @Param({"none", "dc", "gate", "agc", "chain"})
+    public String stages;
+
+    private CaptureStage[] mStages;
+    private final short[] mInput = new short[BLOCK_SIZE];
+    private final short[] mBlock = new short[BLOCK_SIZE];
+
+    @Setup
+    public void setUp() {
+        CaptureStage dc = new DcRemovalStage(SAMPLE_RATE, 60);
+        CaptureStage gate = new NoiseGateStage(SAMPLE_RATE, -50, 300);
+        CaptureStage agc = new AgcStage(-20, 20);
+        switch (stages) {
+            case "none":
+                mStages = new CaptureStage[0];
+                break;
+            case "dc":
+                mStages = new CaptureStage[] {dc};
+                break;
+            case "gate":
+                mStages = new CaptureStage[] {gate};
+                break;
+            case "agc":
+                mStages = new CaptureStage[] {agc};
+                break;
+            default:
+                mStages = new CaptureStage[] {dc, gate, agc};
+                break;
+        }
+        // Quiet speech: a tone with an offset and noise, so the AGC and the gate stay active.
+        Random random = new Random(1);
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            mInput[i] = (short) (200 + 1500 * Math.sin(2 * Math.PI * 220 * i / SAMPLE_RATE)
+                    + random.nextGaussian() * 100);
+        }
+    }
+
+    @Benchmark
+    public short[] processBlock() {
+        System.arraycopy(mInput, 0, mBlock, 0, BLOCK_SIZE);
+        for (CaptureStage stage : mStages) {
+            stage.process(mBlock, BLOCK_SIZE);
+        }
+        return mBlock;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.androidthings.assistant;
+
+import com.google.assistant.embedded.v1alpha2.AssistConfig;
+import com.google.assistant.embedded.v1alpha2.AssistRequest;
+import com.google.assistant.embedded.v1alpha2.AudioInConfig;
+import com.google.assistant.embedded.v1alpha2.AudioOutConfig;
+import com.google.assistant.embedded.v1alpha2.DeviceConfig;
+import com.google.assistant.embedded.v1alpha2.DialogStateIn;
+import com.google.assistant.embedded.v1alpha2.ScreenOutConfig;
+import com.google.protobuf.ByteString;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to build and size the first request of a conversation with {@link ConfigTemplate},
+ * against building it from scratch on every turn. A {@code first} turn has no conversation
+ * state; a {@code followUp} turn carries the state returned by the previous one. Run with
+ * {@code -prof gc} to also see the bytes allocated per request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigTemplateBenchmark {
+    private static final String LANGUAGE_CODE = "en-US";
+
+    @Param({"first", "followUp"})
+    public String turn;
+
+    private AudioInConfig mAudioInConfig;
+    private AudioOutConfig mAudioOutConfig;
+    private DeviceConfig mDeviceConfig;
+    private ScreenOutConfig mScreenOutConfig;
+    private ConfigTemplate mTemplate;
+    private ByteString mConversationState;
+
+    @Setup
+    public void setUp() {
+        mAudioInConfig = AudioInConfig.newBuilder()
+                .setEncoding(AudioInConfig.Encoding.LINEAR16)
+                .setSampleRateHertz(16000)
+                .build();
+        mAudioOutConfig = AudioOutConfig.newBuilder()
+                .setEncoding(AudioOutConfig.Encoding.LINEAR16)
+                .setSampleRateHertz(16000)
+                .setVolumePercentage(100)
+                .build();
+        mDeviceConfig = DeviceConfig.newBuilder()
+                .setDeviceId("my-device-id")
+                .setDeviceModelId("my-device-model-id")
+                .build();
+        mScreenOutConfig = ScreenOutConfig.newBuilder()
+                .setScreenMode(ScreenOutConfig.ScreenMode.PLAYING)
+                .build();
+        mTemplate = new ConfigTemplate(mAudioInConfig, mAudioOutConfig, mDeviceConfig,
+                mScreenOutConfig, LANGUAGE_CODE, null);
+        mConversationState = "followUp".equals(turn)
+                ? ByteString.copyFrom(new byte[64]) : null;
+    }
+
+    @Benchmark
+    public int template() {
+        return mTemplate.audioRequest(AudioInConfig.Encoding.LINEAR16, mConversationState)
+                .getSerializedSize();
+    }
+
+    @Benchmark
+    public int fromScratch() {
+        DialogStateIn.Builder dialogStateIn = DialogStateIn.newBuilder()
+                .setLanguageCode(LANGUAGE_CODE);
+        if (mConversationState != null) {
+            dialogStateIn.setConversationState(mConversationState);
+        }
+        return AssistRequest.newBuilder()
+                .setConfig(AssistConfig.newBuilder()
+                        .setAudioInConfig(mAudioInConfig)
+                        .setAudioOutConfig(mAudioOutConfig)
+                        .setDeviceConfig(mDeviceConfig)
+                        .setDialogStateIn(dialogStateIn)
+                        .setScreenOutConfig(mScreenOutConfig))
+                .build()
+                .getSerializedSize();
+    }
+}
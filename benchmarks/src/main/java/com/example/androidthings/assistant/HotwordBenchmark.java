@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.androidthings.assistant;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for the {@link TemplateHotwordDetector} to listen to one second of 16 kHz audio, fed in
+ * 32 ms blocks, so the result reads as milliseconds of CPU per second of audio. The cost grows
+ * with the length of the wake word template.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotwordBenchmark {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int BLOCK_SIZE = SAMPLE_RATE * 32 / 1000;
+    private static final float[] TONES = {500, 1500, 750, 2000};
+
+    @Param({"500", "1000"})
+    public int templateMs;
+
+    private TemplateHotwordDetector mDetector;
+    private final short[] mSecond = new short[SAMPLE_RATE];
+    private final short[] mBlock = new short[BLOCK_SIZE];
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(1);
+        mDetector = new TemplateHotwordDetector(tones(templateMs * SAMPLE_RATE / 1000, random),
+                SAMPLE_RATE, TemplateHotwordDetector.DEFAULT_THRESHOLD);
+        // Other speech-like sounds, so the speech tracking and the alignment stay busy.
+        short[] speech = tones(SAMPLE_RATE, random);
+        for (int i = 0; i < SAMPLE_RATE; i++) {
+            mSecond[i] = speech[(i * 7) % SAMPLE_RATE];
+        }
+    }
+
+    @Benchmark
+    public boolean processSecond() {
+        boolean detected = false;
+        for (int offset = 0; offset < SAMPLE_RATE; offset += BLOCK_SIZE) {
+            int length = Math.min(BLOCK_SIZE, SAMPLE_RATE - offset);
+            System.arraycopy(mSecond, offset, mBlock, 0, length);
+            detected |= mDetector.process(mBlock, length);
+        }
+        return detected;
+    }
+
+    /**
+     * Returns a sequence of tones with a smooth envelope over low noise.
+     */
+    private static short[] tones(int length, Random random) {
+        short[] samples = new short[length];
+        int toneLength = length / TONES.length;
+        double phase = 0;
+        for (int i = 0; i < length; i++) {
+            float frequency = TONES[Math.min(i / toneLength, TONES.length - 1)];
+            phase += 2 * Math.PI * frequency / SAMPLE_RATE;
+            double envelope = Math.sin(Math.PI * (i % toneLength) / toneLength);
+            samples[i] = (short) (8000 * envelope * Math.sin(phase)
+                    + random.nextGaussian() * 30);
+        }
+        return samples;
+    }
+}
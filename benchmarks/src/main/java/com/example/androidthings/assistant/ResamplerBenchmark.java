@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to resample one 32 ms block, for the conversions a device makes: capture at the device
+ * rate down to the Assistant rate, and Assistant audio up to the output rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResamplerBenchmark {
+    private static final int BLOCK_MS = 32;
+
+    /** Input rate, channels and output rate. */
+    @Param({"48000:2:16000", "44100:1:16000", "16000:1:48000", "24000:1:48000"})
+    public String conversion;
+
+    private Resampler mResampler;
+    private short[] mInput;
+    private short[] mOutput;
+
+    @Setup
+    public void setUp() {
+        String[] parts = conversion.split(":");
+        int inputRate = Integer.parseInt(parts[0]);
+        int channels = Integer.parseInt(parts[1]);
+        int outputRate = Integer.parseInt(parts[2]);
+        mInput = new short[inputRate * BLOCK_MS / 1000 * channels];
+        Random random = new Random(1);
+        for (int i = 0; i < mInput.length; i++) {
+            mInput[i] = (short) (random.nextGaussian() * 3000);
+        }
+        mResampler = new Resampler(inputRate, outputRate, channels, mInput.length);
+        mOutput = new short[mResampler.getMaxOutputSamples()];
+    }
+
+    @Benchmark
+    public int resampleBlock() {
+        return mResampler.process(mInput, mInput.length, mOutput);
+    }
+}
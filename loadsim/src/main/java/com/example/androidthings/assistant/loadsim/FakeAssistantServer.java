@@ -0,0 +1,257 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.loadsim;
+
+import com.google.assistant.embedded.v1alpha2.AssistRequest;
+import com.google.assistant.embedded.v1alpha2.AssistResponse;
+import com.google.assistant.embedded.v1alpha2.AudioOut;
+import com.google.assistant.embedded.v1alpha2.DialogStateOut;
+import com.google.assistant.embedded.v1alpha2.EmbeddedAssistantGrpc;
+import com.google.assistant.embedded.v1alpha2.SpeechRecognitionResult;
+import com.google.protobuf.ByteString;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A scriptable fake Assistant service with latency and error injection.
+ *
+ * <p>Each call is answered once the client half-closes, like the real service answers once the
+ * user stops speaking. After the configured latency, it sends the end of the utterance, a
+ * transcript and the dialog state, then Assistant audio paced in real time, and completes. A
+ * share of calls fails instead, after the latency and at a random point before or during the
+ * audio.
+ *
+ * <p>Settings apply to calls started after they change, so a script can vary them during a run.
+ */
+public class FakeAssistantServer extends EmbeddedAssistantGrpc.EmbeddedAssistantImplBase {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int AUDIO_CHUNK_MS = 100;
+    private static final ByteString SILENCE_CHUNK =
+            ByteString.copyFrom(new byte[SAMPLE_RATE * 2 * AUDIO_CHUNK_MS / 1000]);
+
+    private final ScheduledExecutorService mScheduler;
+    private final Random mRandom = new Random();
+    private final AtomicLong mCalls = new AtomicLong();
+    private final AtomicLong mInjectedErrors = new AtomicLong();
+
+    private volatile long mLatencyMs = 300;
+    private volatile long mLatencyJitterMs = 100;
+    private volatile long mResponseAudioMs = 2000;
+    private volatile double mErrorRate;
+    private volatile Status mErrorStatus = Status.UNAVAILABLE;
+    private volatile String mTranscript = "what time is it";
+
+    /**
+     * @param threads Threads used to send responses.
+     */
+    public FakeAssistantServer(int threads) {
+        mScheduler = Executors.newScheduledThreadPool(threads);
+    }
+
+    /**
+     * Sets the time from the client half-closing to the first response.
+     *
+     * @param latencyMs The mean latency.
+     * @param jitterMs The latency varies uniformly by up to this much either way.
+     */
+    public void setLatency(long latencyMs, long jitterMs) {
+        mLatencyMs = latencyMs;
+        mLatencyJitterMs = jitterMs;
+    }
+
+    /**
+     * Sets the duration of Assistant audio sent per call.
+     */
+    public void setResponseAudio(long durationMs) {
+        mResponseAudioMs = durationMs;
+    }
+
+    /**
+     * Fails a share of calls with the given status.
+     *
+     * @param rate The share of calls to fail, from 0 to 1.
+     */
+    public void setErrors(double rate, Status status) {
+        mErrorRate = rate;
+        mErrorStatus = status;
+    }
+
+    /**
+     * Sets the transcript returned for every call.
+     */
+    public void setTranscript(String transcript) {
+        mTranscript = transcript;
+    }
+
+    /**
+     * Returns the number of calls received.
+     */
+    public long getCalls() {
+        return mCalls.get();
+    }
+
+    /**
+     * Returns the number of calls failed on purpose.
+     */
+    public long getInjectedErrors() {
+        return mInjectedErrors.get();
+    }
+
+    /**
+     * Starts serving on a TCP port.
+     */
+    public Server start(int port) throws IOException {
+        return ServerBuilder.forPort(port).addService(this).build().start();
+    }
+
+    /**
+     * Starts an in-process server, reached with {@code InProcessChannelBuilder.forName(name)}.
+     */
+    public Server startInProcess(String name) throws IOException {
+        return InProcessServerBuilder.forName(name).addService(this).build().start();
+    }
+
+    /**
+     * Stops sending responses.
+     */
+    public void shutdown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Override
+    public StreamObserver<AssistRequest> assist(
+            final StreamObserver<AssistResponse> responseObserver) {
+        mCalls.incrementAndGet();
+        final Call call = new Call(responseObserver);
+        return new StreamObserver<AssistRequest>() {
+            @Override
+            public void onNext(AssistRequest value) {
+                // Audio is accepted and discarded.
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                call.cancel();
+            }
+
+            @Override
+            public void onCompleted() {
+                call.respond();
+            }
+        };
+    }
+
+    /**
+     * The response side of one call. Runs on the scheduler.
+     */
+    private class Call implements Runnable {
+        private final StreamObserver<AssistResponse> mResponseObserver;
+        private final long mLatencyMs;
+        private final int mAudioChunks;
+        private final int mFailAfterChunks;
+        private final Status mErrorStatus;
+        private int mChunksSent;
+        private volatile boolean mCancelled;
+        private ScheduledFuture<?> mNext;
+
+        Call(StreamObserver<AssistResponse> responseObserver) {
+            mResponseObserver = responseObserver;
+            long jitterMs = FakeAssistantServer.this.mLatencyJitterMs;
+            int audioChunks = (int) (mResponseAudioMs / AUDIO_CHUNK_MS);
+            synchronized (mRandom) {
+                long offsetMs = (long) ((mRandom.nextDouble() * 2 - 1) * jitterMs);
+                mLatencyMs = Math.max(0, FakeAssistantServer.this.mLatencyMs + offsetMs);
+                // Failing calls fail at a random point, before or during the audio.
+                mFailAfterChunks = mRandom.nextDouble() < mErrorRate
+                        ? mRandom.nextInt(audioChunks + 1) : -1;
+            }
+            mAudioChunks = audioChunks;
+            mErrorStatus = FakeAssistantServer.this.mErrorStatus;
+            if (responseObserver instanceof ServerCallStreamObserver) {
+                ((ServerCallStreamObserver<AssistResponse>) responseObserver).setOnCancelHandler(
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                cancel();
+                            }
+                        });
+            }
+        }
+
+        void respond() {
+            schedule(mLatencyMs);
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            if (mNext != null) {
+                mNext.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            if (mChunksSent == mFailAfterChunks) {
+                mInjectedErrors.incrementAndGet();
+                mResponseObserver.onError(mErrorStatus.asRuntimeException());
+                return;
+            }
+            if (mChunksSent == 0) {
+                mResponseObserver.onNext(AssistResponse.newBuilder()
+                        .setEventType(AssistResponse.EventType.END_OF_UTTERANCE)
+                        .addSpeechResults(SpeechRecognitionResult.newBuilder()
+                                .setTranscript(mTranscript)
+                                .setStability(1))
+                        .build());
+                mResponseObserver.onNext(AssistResponse.newBuilder()
+                        .setDialogStateOut(DialogStateOut.newBuilder()
+                                .setSupplementalDisplayText(mTranscript)
+                                .setMicrophoneMode(DialogStateOut.MicrophoneMode.CLOSE_MICROPHONE))
+                        .build());
+            }
+            if (mChunksSent < mAudioChunks) {
+                mResponseObserver.onNext(AssistResponse.newBuilder()
+                        .setAudioOut(AudioOut.newBuilder().setAudioData(SILENCE_CHUNK))
+                        .build());
+                mChunksSent++;
+                schedule(AUDIO_CHUNK_MS);
+            } else {
+                mResponseObserver.onCompleted();
+            }
+        }
+
+        private synchronized void schedule(long delayMs) {
+            if (!mCancelled && !mScheduler.isShutdown()) {
+                mNext = mScheduler.schedule(this, delayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.loadsim;
+
+import com.google.assistant.embedded.v1alpha2.EmbeddedAssistantGrpc;
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates a fleet of devices talking to the Assistant, or to a proxy in front of it, and
+ * reports throughput, stream concurrency and latency percentiles.
+ *
+ * <p>Options are given as {@code --name=value}:
+ * <ul>
+ * <li>{@code target}: {@code host:port} to load, or {@code fake} for an in-process
+ *     {@link FakeAssistantServer}. Defaults to {@code fake}.</li>
+ * <li>{@code plaintext}: whether to connect without TLS. Defaults to true.</li>
+ * <li>{@code sessions}: number of simulated devices. Defaults to 100.</li>
+ * <li>{@code connections}: number of channels the devices share. Defaults to 8.</li>
+ * <li>{@code duration-s}: length of the run. Defaults to 60.</li>
+ * <li>{@code ramp-s}: time over which the devices start. Defaults to 10.</li>
+ * <li>{@code think-ms}: mean pause between conversations of a device. Defaults to 5000.</li>
+ * <li>{@code wav}: 16 kHz 16-bit PCM utterance to send. Defaults to 2 s of a tone.</li>
+ * <li>{@code report-s}: interval between reports. Defaults to 5.</li>
+ * <li>{@code fake-port}: also serve the fake on this TCP port, to load a proxy that forwards to
+ *     it. Defaults to none.</li>
+ * <li>{@code fake-latency-ms}, {@code fake-jitter-ms}, {@code fake-audio-ms},
+ *     {@code fake-error-rate}, {@code fake-error-status}: behavior of the fake.</li>
+ * </ul>
+ */
+public class LoadSimulator {
+    static final String FAKE_TARGET = "fake";
+    static final String FAKE_SERVER_NAME = "loadsim";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String target = option(options, "target", FAKE_TARGET);
+        boolean plaintext = Boolean.parseBoolean(option(options, "plaintext", "true"));
+        int sessions = Integer.parseInt(option(options, "sessions", "100"));
+        int connections = Integer.parseInt(option(options, "connections", "8"));
+        long durationS = Long.parseLong(option(options, "duration-s", "60"));
+        long rampS = Long.parseLong(option(options, "ramp-s", "10"));
+        long thinkMs = Long.parseLong(option(options, "think-ms", "5000"));
+        long reportS = Long.parseLong(option(options, "report-s", "5"));
+        String wav = options.remove("wav");
+
+        FakeAssistantServer fake = null;
+        List<Server> servers = new ArrayList<>();
+        if (FAKE_TARGET.equals(target) || options.containsKey("fake-port")) {
+            fake = new FakeAssistantServer(Runtime.getRuntime().availableProcessors());
+            fake.setLatency(Long.parseLong(option(options, "fake-latency-ms", "300")),
+                    Long.parseLong(option(options, "fake-jitter-ms", "100")));
+            fake.setResponseAudio(Long.parseLong(option(options, "fake-audio-ms", "2000")));
+            fake.setErrors(Double.parseDouble(option(options, "fake-error-rate", "0")),
+                    Status.fromCode(Status.Code.valueOf(
+                            option(options, "fake-error-status", "UNAVAILABLE"))));
+            servers.add(fake.startInProcess(FAKE_SERVER_NAME));
+            String fakePort = options.remove("fake-port");
+            if (fakePort != null) {
+                servers.add(fake.start(Integer.parseInt(fakePort)));
+            }
+        }
+        if (!options.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options: " + options.keySet());
+        }
+
+        List<ByteString> utterance = toBlocks(wav == null ? tone(2000) : readWav(wav));
+        List<ManagedChannel> channels = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, connections); i++) {
+            channels.add(newChannel(target, plaintext));
+        }
+        // Pacing only needs a few threads; gRPC runs the transport on its own.
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()));
+        LoadStats stats = new LoadStats();
+        List<Session> fleet = new ArrayList<>();
+        for (int i = 0; i < sessions; i++) {
+            Session session = new Session("loadsim-" + i,
+                    EmbeddedAssistantGrpc.newStub(channels.get(i % channels.size())), utterance,
+                    scheduler, stats, thinkMs, i);
+            fleet.add(session);
+            session.start(rampS * 1000 * i / Math.max(1, sessions));
+        }
+
+        System.out.println("running " + sessions + " sessions against " + target + " for "
+                + durationS + " s");
+        long startMs = System.currentTimeMillis();
+        long endMs = startMs + durationS * 1000;
+        Report report = new Report(stats, startMs);
+        while (System.currentTimeMillis() < endMs) {
+            Thread.sleep(Math.min(reportS * 1000, endMs - System.currentTimeMillis()));
+            System.out.println(report.interval());
+        }
+
+        // Let conversations in progress finish before the summary.
+        for (Session session : fleet) {
+            session.stop();
+        }
+        long drainEndMs = System.currentTimeMillis() + 30000;
+        while (stats.activeStreams.get() > 0 && System.currentTimeMillis() < drainEndMs) {
+            Thread.sleep(100);
+        }
+        System.out.println(report.summary());
+        if (fake != null) {
+            System.out.println("fake server: calls=" + fake.getCalls()
+                    + " injectedErrors=" + fake.getInjectedErrors());
+        }
+
+        scheduler.shutdownNow();
+        for (ManagedChannel channel : channels) {
+            channel.shutdownNow();
+        }
+        for (Server server : servers) {
+            server.shutdownNow();
+        }
+        if (fake != null) {
+            fake.shutdown();
+        }
+    }
+
+    static ManagedChannel newChannel(String target, boolean plaintext) {
+        if (FAKE_TARGET.equals(target)) {
+            return InProcessChannelBuilder.forName(FAKE_SERVER_NAME).build();
+        }
+        return ManagedChannelBuilder.forTarget(target).usePlaintext(plaintext).build();
+    }
+
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value, found " + arg);
+            }
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        return options;
+    }
+
+    static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.remove(name);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * Splits little-endian PCM into blocks of the size a device sends.
+     */
+    static List<ByteString> toBlocks(byte[] pcm) {
+        int blockBytes = Session.SAMPLE_RATE * 2 * Session.BLOCK_MS / 1000;
+        List<ByteString> blocks = new ArrayList<>();
+        for (int offset = 0; offset < pcm.length; offset += blockBytes) {
+            blocks.add(ByteString.copyFrom(pcm, offset, Math.min(blockBytes, pcm.length - offset)));
+        }
+        return blocks;
+    }
+
+    static byte[] tone(int durationMs) {
+        int samples = Session.SAMPLE_RATE * durationMs / 1000;
+        ByteBuffer pcm = ByteBuffer.allocate(samples * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < samples; i++) {
+            pcm.putShort((short) (8000 * Math.sin(2 * Math.PI * 440 * i / Session.SAMPLE_RATE)));
+        }
+        return pcm.array();
+    }
+
+    /**
+     * Returns the samples of a 16 kHz mono 16-bit PCM WAV file, as little-endian bytes.
+     */
+    static byte[] readWav(String path) throws IOException {
+        ByteBuffer wav;
+        try (InputStream in = new FileInputStream(path)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            wav = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        wav.position(12);
+        int channels = 0;
+        while (wav.remaining() >= 8) {
+            int chunkId = wav.getInt();
+            int chunkSize = Math.min(wav.getInt(), wav.remaining());
+            if (chunkId == 0x20746d66) { // "fmt "
+                int chunkEnd = wav.position() + chunkSize;
+                wav.getShort(); // format
+                channels = wav.getShort();
+                int sampleRate = wav.getInt();
+                wav.position(wav.position() + 6);
+                int bitsPerSample = wav.getShort();
+                if (channels != 1 || sampleRate != Session.SAMPLE_RATE || bitsPerSample != 16) {
+                    throw new IOException("Expected 16 kHz mono 16-bit PCM");
+                }
+                wav.position(chunkEnd);
+            } else if (chunkId == 0x61746164 && channels != 0) { // "data"
+                byte[] pcm = new byte[chunkSize];
+                wav.get(pcm);
+                return pcm;
+            } else {
+                wav.position(Math.min(wav.limit(), wav.position() + chunkSize + (chunkSize & 1)));
+            }
+        }
+        throw new IOException("Missing data chunk in " + path);
+    }
+
+    /**
+     * Formats the statistics for the console.
+     */
+    private static class Report {
+        private final LoadStats mStats;
+        private final long mStartMs;
+        private long mLastMs;
+        private long mLastCompleted;
+        private long mLastBytesUp;
+        private long mLastBytesDown;
+
+        Report(LoadStats stats, long startMs) {
+            mStats = stats;
+            mStartMs = startMs;
+            mLastMs = startMs;
+        }
+
+        String interval() {
+            long nowMs = System.currentTimeMillis();
+            float seconds = Math.max(1, nowMs - mLastMs) / 1000f;
+            long completed = mStats.callsCompleted.sum();
+            long bytesUp = mStats.bytesUp.sum();
+            long bytesDown = mStats.bytesDown.sum();
+            String line = String.format("t=%ds active=%d calls/s=%.1f up=%.0fkB/s down=%.0fkB/s"
+                            + " failed=%d latency p50=%dms p99=%dms",
+                    (nowMs - mStartMs) / 1000, mStats.activeStreams.get(),
+                    (completed - mLastCompleted) / seconds,
+                    (bytesUp - mLastBytesUp) / 1024f / seconds,
+                    (bytesDown - mLastBytesDown) / 1024f / seconds,
+                    mStats.callsFailed.sum(), mStats.responseLatencyMs.getQuantile(0.5),
+                    mStats.responseLatencyMs.getQuantile(0.99));
+            mLastMs = nowMs;
+            mLastCompleted = completed;
+            mLastBytesUp = bytesUp;
+            mLastBytesDown = bytesDown;
+            return line;
+        }
+
+        String summary() {
+            float seconds = Math.max(1, System.currentTimeMillis() - mStartMs) / 1000f;
+            LoadStats.Histogram latency = mStats.responseLatencyMs;
+            LoadStats.Histogram duration = mStats.callDurationMs;
+            return String.format("calls started=%d completed=%d failed=%d errors=%s%n"
+                            + "throughput %.1f calls/s, up %.0f kB/s, down %.0f kB/s%n"
+                            + "streams peak=%d%n"
+                            + "response latency ms p50=%d p90=%d p99=%d p99.9=%d%n"
+                            + "call duration ms p50=%d p90=%d p99=%d",
+                    mStats.callsStarted.sum(), mStats.callsCompleted.sum(),
+                    mStats.callsFailed.sum(), mStats.getErrors(),
+                    mStats.callsCompleted.sum() / seconds,
+                    mStats.bytesUp.sum() / 1024f / seconds,
+                    mStats.bytesDown.sum() / 1024f / seconds,
+                    mStats.peakStreams.get(),
+                    latency.getQuantile(0.5), latency.getQuantile(0.9),
+                    latency.getQuantile(0.99), latency.getQuantile(0.999),
+                    duration.getQuantile(0.5), duration.getQuantile(0.9),
+                    duration.getQuantile(0.99));
+        }
+    }
+}
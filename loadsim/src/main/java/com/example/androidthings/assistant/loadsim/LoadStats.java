@@ -0,0 +1,145 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.loadsim;
+
+import io.grpc.Status;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregate results of all simulated sessions. Updated from any thread without locks.
+ */
+class LoadStats {
+    final LongAdder callsStarted = new LongAdder();
+    final LongAdder callsCompleted = new LongAdder();
+    final LongAdder callsFailed = new LongAdder();
+    final LongAdder bytesUp = new LongAdder();
+    final LongAdder bytesDown = new LongAdder();
+    final AtomicInteger activeStreams = new AtomicInteger();
+    final AtomicInteger peakStreams = new AtomicInteger();
+    // From the end of the user's audio to the first Assistant audio, as a user perceives it.
+    final Histogram responseLatencyMs = new Histogram();
+    // From the start of a call to its end.
+    final Histogram callDurationMs = new Histogram();
+    private final ConcurrentHashMap<Status.Code, LongAdder> mErrors = new ConcurrentHashMap<>();
+
+    void onStreamOpened() {
+        callsStarted.increment();
+        int active = activeStreams.incrementAndGet();
+        int peak = peakStreams.get();
+        while (active > peak && !peakStreams.compareAndSet(peak, active)) {
+            peak = peakStreams.get();
+        }
+    }
+
+    void onStreamClosed(long durationMs, Status status) {
+        activeStreams.decrementAndGet();
+        callDurationMs.record(durationMs);
+        if (status.isOk()) {
+            callsCompleted.increment();
+            return;
+        }
+        callsFailed.increment();
+        LongAdder errors = mErrors.get(status.getCode());
+        if (errors == null) {
+            mErrors.putIfAbsent(status.getCode(), new LongAdder());
+            errors = mErrors.get(status.getCode());
+        }
+        errors.increment();
+    }
+
+    /**
+     * Returns the failed calls by status code.
+     */
+    Map<Status.Code, Long> getErrors() {
+        Map<Status.Code, Long> errors = new TreeMap<>();
+        for (Map.Entry<Status.Code, LongAdder> entry : mErrors.entrySet()) {
+            errors.put(entry.getKey(), entry.getValue().sum());
+        }
+        return errors;
+    }
+
+    /**
+     * A distribution of millisecond values in log-linear buckets, each within 1/8 of the values
+     * it counts.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int MAX_EXPONENT = 24;
+        private static final int BUCKETS =
+                SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+
+        void record(long value) {
+            mCounts.incrementAndGet(bucket(Math.max(0, value)));
+        }
+
+        long getCount() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += mCounts.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * Returns an upper bound of the given quantile, or -1 if nothing was recorded.
+         */
+        long getQuantile(double quantile) {
+            long total = getCount();
+            if (total == 0) {
+                return -1;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts.get(i);
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            if (value >= 1L << MAX_EXPONENT) {
+                return BUCKETS - 1;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = SUB_BUCKET_BITS + (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+            int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+            return (1L << exponent) + ((sub + 1L) << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.loadsim;
+
+import com.google.assistant.embedded.v1alpha2.AssistConfig;
+import com.google.assistant.embedded.v1alpha2.AssistRequest;
+import com.google.assistant.embedded.v1alpha2.AssistResponse;
+import com.google.assistant.embedded.v1alpha2.AudioInConfig;
+import com.google.assistant.embedded.v1alpha2.AudioOutConfig;
+import com.google.assistant.embedded.v1alpha2.DeviceConfig;
+import com.google.assistant.embedded.v1alpha2.DialogStateIn;
+import com.google.assistant.embedded.v1alpha2.EmbeddedAssistantGrpc.EmbeddedAssistantStub;
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One simulated device talking to the Assistant in a loop, headless.
+ *
+ * <p>Each conversation sends the config an {@code EmbeddedAssistant} sends, then the utterance
+ * in blocks paced in real time. It half-closes at the end of the utterance and waits for the
+ * response before pausing for a think time and starting over. Like on a device, audio waits in
+ * a bounded queue while flow control stalls the upload, and the oldest is dropped when it fills.
+ */
+class Session {
+    static final int SAMPLE_RATE = 16000;
+    static final int BLOCK_MS = 32;
+    private static final int MAX_QUEUED_BLOCKS = 2000 / BLOCK_MS;
+
+    private final String mDeviceId;
+    private final EmbeddedAssistantStub mStub;
+    private final List<ByteString> mUtterance;
+    private final ScheduledExecutorService mScheduler;
+    private final LoadStats mStats;
+    private final long mThinkTimeMs;
+    private final Random mRandom;
+    private volatile boolean mStopped;
+
+    Session(String deviceId, EmbeddedAssistantStub stub, List<ByteString> utterance,
+            ScheduledExecutorService scheduler, LoadStats stats, long thinkTimeMs, long seed) {
+        mDeviceId = deviceId;
+        mStub = stub;
+        mUtterance = utterance;
+        mScheduler = scheduler;
+        mStats = stats;
+        mThinkTimeMs = thinkTimeMs;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Starts the first conversation after the given delay.
+     */
+    void start(long delayMs) {
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                new Conversation().start();
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops starting conversations. The current one runs to its end.
+     */
+    void stop() {
+        mStopped = true;
+    }
+
+    private void next() {
+        if (mStopped || mScheduler.isShutdown()) {
+            return;
+        }
+        // Spread the next conversation between half and one and a half think times.
+        long delayMs = (long) (mThinkTimeMs * (0.5 + mRandom.nextDouble()));
+        start(delayMs);
+    }
+
+    private AssistRequest configRequest() {
+        return AssistRequest.newBuilder()
+                .setConfig(AssistConfig.newBuilder()
+                        .setAudioInConfig(AudioInConfig.newBuilder()
+                                .setEncoding(AudioInConfig.Encoding.LINEAR16)
+                                .setSampleRateHertz(SAMPLE_RATE))
+                        .setAudioOutConfig(AudioOutConfig.newBuilder()
+                                .setEncoding(AudioOutConfig.Encoding.LINEAR16)
+                                .setSampleRateHertz(SAMPLE_RATE)
+                                .setVolumePercentage(100))
+                        .setDialogStateIn(DialogStateIn.newBuilder()
+                                .setLanguageCode("en-US"))
+                        .setDeviceConfig(DeviceConfig.newBuilder()
+                                .setDeviceId(mDeviceId)
+                                .setDeviceModelId("loadsim")))
+                .build();
+    }
+
+    /**
+     * One {@code assist} call. Requests are sent on the scheduler and responses arrive on a
+     * transport thread, so the request side is synchronized.
+     */
+    private class Conversation implements ClientResponseObserver<AssistRequest, AssistResponse> {
+        private final ArrayDeque<AssistRequest> mPending = new ArrayDeque<>();
+        private ClientCallStreamObserver<AssistRequest> mRequestStream;
+        private ScheduledFuture<?> mCapture;
+        private long mStartMs;
+        private volatile long mUtteranceEndMs;
+        private boolean mFirstAudio = true;
+        private int mNextBlock;
+        private boolean mHalfClosed;
+        private boolean mDone;
+
+        synchronized void start() {
+            mStartMs = System.currentTimeMillis();
+            mStats.onStreamOpened();
+            mStub.assist(this);
+            send(configRequest());
+            mCapture = mScheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    capture();
+                }
+            }, BLOCK_MS, BLOCK_MS, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void capture() {
+            if (mDone) {
+                return;
+            }
+            if (mNextBlock == mUtterance.size()) {
+                mCapture.cancel(false);
+                mUtteranceEndMs = System.currentTimeMillis();
+                mHalfClosed = true;
+                drain();
+                return;
+            }
+            if (mPending.size() >= MAX_QUEUED_BLOCKS) {
+                dropOldestAudio();
+            }
+            send(AssistRequest.newBuilder().setAudioIn(mUtterance.get(mNextBlock++)).build());
+        }
+
+        private void dropOldestAudio() {
+            for (Iterator<AssistRequest> it = mPending.iterator(); it.hasNext(); ) {
+                if (it.next().getTypeCase() == AssistRequest.TypeCase.AUDIO_IN) {
+                    it.remove();
+                    return;
+                }
+            }
+        }
+
+        private synchronized void send(AssistRequest request) {
+            mPending.add(request);
+            drain();
+        }
+
+        private synchronized void drain() {
+            if (mDone) {
+                return;
+            }
+            while (!mPending.isEmpty() && mRequestStream.isReady()) {
+                AssistRequest request = mPending.poll();
+                mStats.bytesUp.add(request.getSerializedSize());
+                mRequestStream.onNext(request);
+            }
+            if (mPending.isEmpty() && mHalfClosed) {
+                mHalfClosed = false;
+                mRequestStream.onCompleted();
+            }
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<AssistRequest> requestStream) {
+            mRequestStream = requestStream;
+            requestStream.setOnReadyHandler(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+
+        @Override
+        public void onNext(AssistResponse value) {
+            mStats.bytesDown.add(value.getSerializedSize());
+            if (value.hasAudioOut() && mFirstAudio && mUtteranceEndMs != 0) {
+                mFirstAudio = false;
+                mStats.responseLatencyMs.record(System.currentTimeMillis() - mUtteranceEndMs);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            finish(Status.fromThrowable(t));
+        }
+
+        @Override
+        public void onCompleted() {
+            finish(Status.OK);
+        }
+
+        private void finish(Status status) {
+            synchronized (this) {
+                mDone = true;
+                mPending.clear();
+                if (mCapture != null) {
+                    mCapture.cancel(false);
+                }
+            }
+            mStats.onStreamClosed(System.currentTimeMillis() - mStartMs, status);
+            next();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.loadsim;
+
+import com.google.assistant.embedded.v1alpha2.EmbeddedAssistantGrpc;
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs simulated devices for many conversations in connect and disconnect cycles, and fails if
+ * memory or threads grow along the way.
+ *
+ * <p>Each cycle opens fresh channels and a fresh scheduler, like a device connecting, runs
+ * conversations until enough have started, then lets them finish and tears everything down,
+ * like a device being destroyed. After each cycle the heap is collected and the used heap,
+ * direct buffers and live threads are sampled. Once warm, the first sample is the baseline; the
+ * run exits with status 1 if the lowest of the last samples exceeds it by more than a limit, so
+ * a CI job fails on a leak while a one-off spike passes.
+ *
+ * <p>This soaks the simulated devices and the server, not the app: {@code EmbeddedAssistant}
+ * needs Android, so leaks in its microphone and audio output are out of reach here. Its calls,
+ * endpoints and channel teardown are soaked on the JVM by {@code CallTeardownSoakTest}, and its
+ * {@code connect()} and {@code destroy()} cycles by {@code ConnectCycleTest}, in the app's unit
+ * tests.
+ *
+ * <p>Options are given as {@code --name=value}:
+ * <ul>
+ * <li>{@code target}, {@code plaintext}, {@code wav} and the {@code fake-*} options: as for
+ *     {@link LoadSimulator}. The fake defaults to a fast reply and a 1% error rate.</li>
+ * <li>{@code sessions}: number of simulated devices. Defaults to 200.</li>
+ * <li>{@code connections}: number of channels per cycle. Defaults to 4.</li>
+ * <li>{@code turns}: conversations to run in total. Defaults to 200000.</li>
+ * <li>{@code cycle-turns}: conversations per connect and disconnect cycle. Defaults to 5000.</li>
+ * <li>{@code think-ms}: mean pause between conversations of a device. Defaults to 100.</li>
+ * <li>{@code utterance-ms}: length of the tone sent without {@code wav}. Defaults to 320.</li>
+ * <li>{@code warmup-cycles}: cycles run before the baseline. Defaults to 3.</li>
+ * <li>{@code cycle-timeout-s}: time a cycle may take to start its conversations before the run
+ *     fails, so a stuck target fails a CI job rather than hanging it. Defaults to 600.</li>
+ * <li>{@code max-heap-growth-mb}, {@code max-direct-growth-mb}, {@code max-thread-growth}:
+ *     allowed growth over the baseline. Default to 16, 4 and 8.</li>
+ * </ul>
+ */
+public class SoakRunner {
+    // The lowest of this many last samples is compared with the baseline.
+    private static final int TRAILING_SAMPLES = 3;
+    private static final long DRAIN_TIMEOUT_MS = 30000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = LoadSimulator.parseOptions(args);
+        String target = LoadSimulator.option(options, "target", LoadSimulator.FAKE_TARGET);
+        boolean plaintext = Boolean.parseBoolean(LoadSimulator.option(options, "plaintext",
+                "true"));
+        int sessions = Integer.parseInt(LoadSimulator.option(options, "sessions", "200"));
+        int connections = Integer.parseInt(LoadSimulator.option(options, "connections", "4"));
+        long turns = Long.parseLong(LoadSimulator.option(options, "turns", "200000"));
+        long cycleTurns = Long.parseLong(LoadSimulator.option(options, "cycle-turns", "5000"));
+        long thinkMs = Long.parseLong(LoadSimulator.option(options, "think-ms", "100"));
+        int utteranceMs = Integer.parseInt(LoadSimulator.option(options, "utterance-ms", "320"));
+        int warmupCycles = Integer.parseInt(LoadSimulator.option(options, "warmup-cycles", "3"));
+        long cycleTimeoutMs = TimeUnit.SECONDS.toMillis(Long.parseLong(LoadSimulator.option(
+                options, "cycle-timeout-s", "600")));
+        long maxHeapGrowth = Long.parseLong(LoadSimulator.option(options, "max-heap-growth-mb",
+                "16")) << 20;
+        long maxDirectGrowth = Long.parseLong(LoadSimulator.option(options,
+                "max-direct-growth-mb", "4")) << 20;
+        int maxThreadGrowth = Integer.parseInt(LoadSimulator.option(options,
+                "max-thread-growth", "8"));
+        String wav = options.remove("wav");
+
+        FakeAssistantServer fake = null;
+        Server server = null;
+        if (LoadSimulator.FAKE_TARGET.equals(target)) {
+            fake = new FakeAssistantServer(Runtime.getRuntime().availableProcessors());
+            fake.setLatency(Long.parseLong(LoadSimulator.option(options, "fake-latency-ms", "20")),
+                    Long.parseLong(LoadSimulator.option(options, "fake-jitter-ms", "10")));
+            fake.setResponseAudio(Long.parseLong(LoadSimulator.option(options, "fake-audio-ms",
+                    "200")));
+            fake.setErrors(Double.parseDouble(LoadSimulator.option(options, "fake-error-rate",
+                    "0.01")),
+                    Status.fromCode(Status.Code.valueOf(LoadSimulator.option(options,
+                            "fake-error-status", "UNAVAILABLE"))));
+            server = fake.startInProcess(LoadSimulator.FAKE_SERVER_NAME);
+        }
+        if (!options.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options: " + options.keySet());
+        }
+        List<ByteString> utterance = LoadSimulator.toBlocks(wav == null
+                ? LoadSimulator.tone(utteranceMs) : LoadSimulator.readWav(wav));
+
+        System.out.println("soaking " + sessions + " sessions against " + target + " for "
+                + turns + " conversations, " + cycleTurns + " per cycle");
+        long startMs = System.currentTimeMillis();
+        List<Sample> samples = new ArrayList<>();
+        long completed = 0;
+        long failed = 0;
+        for (int cycle = 0; completed + failed < turns; cycle++) {
+            LoadStats stats = runCycle(target, plaintext, sessions, connections,
+                    Math.min(cycleTurns, turns - completed - failed), thinkMs, utterance, cycle,
+                    cycleTimeoutMs);
+            completed += stats.callsCompleted.sum();
+            failed += stats.callsFailed.sum();
+            Sample sample = Sample.take();
+            if (cycle >= warmupCycles) {
+                samples.add(sample);
+            }
+            System.out.println(String.format("cycle=%d t=%ds turns=%d failed=%d %s", cycle,
+                    (System.currentTimeMillis() - startMs) / 1000, completed + failed, failed,
+                    sample));
+        }
+
+        if (server != null) {
+            server.shutdownNow();
+        }
+        if (fake != null) {
+            fake.shutdown();
+        }
+        if (samples.size() <= TRAILING_SAMPLES) {
+            System.out.println("PASS: too few cycles after warmup to compare");
+            System.exit(0);
+        }
+        Sample baseline = samples.get(0);
+        Sample trailing = Sample.min(samples.subList(samples.size() - TRAILING_SAMPLES,
+                samples.size()));
+        List<String> failures = new ArrayList<>();
+        check(failures, "heap", trailing.mHeapBytes - baseline.mHeapBytes, maxHeapGrowth);
+        check(failures, "direct", trailing.mDirectBytes - baseline.mDirectBytes,
+                maxDirectGrowth);
+        check(failures, "threads", trailing.mThreads - baseline.mThreads, maxThreadGrowth);
+        System.out.println("baseline " + baseline + ", trailing " + trailing);
+        if (!failures.isEmpty()) {
+            System.out.println("FAIL: " + failures);
+            System.exit(1);
+        }
+        System.out.println("PASS");
+        // Leaked threads would keep the JVM running.
+        System.exit(0);
+    }
+
+    /**
+     * Connects, runs conversations until the given number started, then lets them finish and
+     * disconnects. Exits with status 1 if they do not start within the timeout.
+     */
+    private static LoadStats runCycle(String target, boolean plaintext, int sessions,
+            int connections, long cycleTurns, long thinkMs, List<ByteString> utterance,
+            int cycle, long timeoutMs) throws InterruptedException {
+        List<ManagedChannel> channels = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, connections); i++) {
+            channels.add(LoadSimulator.newChannel(target, plaintext));
+        }
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()));
+        LoadStats stats = new LoadStats();
+        List<Session> fleet = new ArrayList<>();
+        for (int i = 0; i < sessions; i++) {
+            Session session = new Session("soak-" + i,
+                    EmbeddedAssistantGrpc.newStub(channels.get(i % channels.size())), utterance,
+                    scheduler, stats, thinkMs, cycle * (long) sessions + i);
+            fleet.add(session);
+            // Spread the starts over one think time.
+            session.start(thinkMs * i / Math.max(1, sessions));
+        }
+        long deadlineMs = System.currentTimeMillis() + timeoutMs;
+        while (stats.callsStarted.sum() < cycleTurns) {
+            if (System.currentTimeMillis() >= deadlineMs) {
+                System.out.println("FAIL: cycle " + cycle + " started " + stats.callsStarted.sum()
+                        + " of " + cycleTurns + " conversations in " + timeoutMs + " ms");
+                System.exit(1);
+            }
+            Thread.sleep(50);
+        }
+        for (Session session : fleet) {
+            session.stop();
+        }
+        long drainEndMs = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        while (stats.activeStreams.get() > 0 && System.currentTimeMillis() < drainEndMs) {
+            Thread.sleep(20);
+        }
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        for (ManagedChannel channel : channels) {
+            channel.shutdownNow();
+        }
+        for (ManagedChannel channel : channels) {
+            channel.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        return stats;
+    }
+
+    private static void check(List<String> failures, String name, long growth, long limit) {
+        if (growth > limit) {
+            failures.add(name + " grew by " + growth + ", over " + limit);
+        }
+    }
+
+    /**
+     * Memory and threads in use after a full collection.
+     */
+    private static class Sample {
+        final long mHeapBytes;
+        final long mDirectBytes;
+        final int mThreads;
+
+        Sample(long heapBytes, long directBytes, int threads) {
+            mHeapBytes = heapBytes;
+            mDirectBytes = directBytes;
+            mThreads = threads;
+        }
+
+        static Sample take() throws InterruptedException {
+            // Two collections, so objects freed by finalizers are gone too.
+            System.gc();
+            System.runFinalization();
+            System.gc();
+            long directBytes = 0;
+            for (BufferPoolMXBean pool
+                    : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                if ("direct".equals(pool.getName())) {
+                    directBytes = pool.getMemoryUsed();
+                }
+            }
+            return new Sample(
+                    ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(),
+                    directBytes, ManagementFactory.getThreadMXBean().getThreadCount());
+        }
+
+        static Sample min(List<Sample> samples) {
+            long heapBytes = Long.MAX_VALUE;
+            long directBytes = Long.MAX_VALUE;
+            int threads = Integer.MAX_VALUE;
+            for (Sample sample : samples) {
+                heapBytes = Math.min(heapBytes, sample.mHeapBytes);
+                directBytes = Math.min(directBytes, sample.mDirectBytes);
+                threads = Math.min(threads, sample.mThreads);
+            }
+            return new Sample(heapBytes, directBytes, threads);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("heap=%.1fMB direct=%.1fMB threads=%d", mHeapBytes / 1048576f,
+                    mDirectBytes / 1048576f, mThreads);
+        }
+    }
+}